@@ -0,0 +1,263 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * This class writes a binary snapshot of the entries next to the data file,
+ * as "<data file>.snap", which SnapshotEntryStore maps to load the entries
+ * in a time that does not depend on how many there are. The data file stays
+ * in the plain text format and is always the one that is kept up to date;
+ * the snapshot is only used while it matches the length and modification
+ * time of the data file it was written with.
+ *
+ * The snapshot is laid out as:
+ * - a HEADER_SIZE byte header, ending with a checksum of the header;
+ * - a table of the offset of each entry in the payload, as 8-byte longs;
+ * - the payload, where each entry is a varint length and its UTF-8 bytes,
+ *   the same as in PackedEntryStore;
+ * - a checksum of each block of BLOCK_SIZE bytes of the table, then of each
+ *   block of the payload, as 4-byte ints.
+ *
+ * Checksums are CRC32C where the JVM has java.util.zip.CRC32C, found through
+ * reflection so the code still builds for Java 8, else CRC32. The header
+ * records which one was used. Every String survives a round trip except
+ * unpaired surrogates, which become '?' as they do when written as UTF-8
+ * text.
+ *
+ * @author Wz
+ *
+ */
+class BinarySnapshot {
+    static final String SNAPSHOT_SUFFIX = ".snap";
+    static final long MAGIC = 0x5442534e41500a1aL;
+    static final int VERSION = 1;
+    static final int CHECKSUM_CRC32 = 0;
+    static final int CHECKSUM_CRC32C = 1;
+    static final int HEADER_SIZE = 64;
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    // positions of the fields of the header
+    static final int MAGIC_POSITION = 0;
+    static final int VERSION_POSITION = 8;
+    static final int CHECKSUM_TYPE_POSITION = 12;
+    static final int BLOCK_SIZE_POSITION = 16;
+    static final int LINE_COUNT_POSITION = 24;
+    static final int PAYLOAD_LENGTH_POSITION = 32;
+    static final int TEXT_LENGTH_POSITION = 40;
+    static final int TEXT_MODIFIED_POSITION = 48;
+    static final int HEADER_CHECKSUM_POSITION = 60;
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String CRC32C_CLASS = "java.util.zip.CRC32C";
+    private static final int PREFERRED_CHECKSUM_TYPE = (newChecksum(CHECKSUM_CRC32C) != null)
+            ? CHECKSUM_CRC32C : CHECKSUM_CRC32;
+
+    static File getSnapshotFile(String dataFileName) {
+        return new File(dataFileName + SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * @return a new checksum of a type, or null if the JVM does not have it
+     */
+    static Checksum newChecksum(int checksumType) {
+        if (checksumType == CHECKSUM_CRC32) {
+            return new CRC32();
+        }
+        if (checksumType != CHECKSUM_CRC32C) {
+            return null;
+        }
+        try {
+            return (Checksum) Class.forName(CRC32C_CLASS).getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the entries through a temporary file, for a data
+     * file as it is now
+     */
+    static void write(String dataFileName, List<String> dataLines) throws IOException {
+        File dataFile = new File(dataFileName);
+        File snapshotFile = getSnapshotFile(dataFileName);
+        File temporaryFile = new File(snapshotFile.getPath() + TEMPORARY_SUFFIX);
+        write(temporaryFile, dataLines, dataFile.length(), dataFile.lastModified());
+        Files.move(temporaryFile.toPath(), snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes a snapshot in one pass over the entries: the table and the
+     * payload are each written through a buffer of one block, which is
+     * checksummed as it is written out
+     *
+     * @param textLength
+     *            - the length of the data file the snapshot matches
+     * @param textModified
+     *            - the modification time of that data file
+     */
+    static void write(File snapshotFile, List<String> dataLines, long textLength,
+            long textModified) throws IOException {
+        FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            int lineCount = dataLines.size();
+            long tableLength = (long) lineCount * 8;
+            BlockWriter table = new BlockWriter(channel, HEADER_SIZE, tableLength);
+            BlockWriter payload = new BlockWriter(channel, HEADER_SIZE + tableLength, -1);
+
+            byte[] bytes = new byte[16];
+            for (String dataLine : dataLines) {
+                table.putLong(payload.getWrittenLength());
+                int length = PackedEntryStore.getUtf8Length(dataLine);
+                if (bytes.length < length + 5) {
+                    bytes = new byte[Math.max(length + 5, bytes.length * 2)];
+                }
+                int end = PackedEntryStore.encodeUtf8(dataLine, bytes,
+                        PackedEntryStore.writeLength(bytes, 0, length));
+                payload.put(bytes, 0, end);
+            }
+            table.finish();
+            payload.finish();
+
+            long position = payload.getEnd();
+            position = table.writeChecksums(position);
+            payload.writeChecksums(position);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC_POSITION, MAGIC);
+            header.putInt(VERSION_POSITION, VERSION);
+            header.putInt(CHECKSUM_TYPE_POSITION, PREFERRED_CHECKSUM_TYPE);
+            header.putInt(BLOCK_SIZE_POSITION, BLOCK_SIZE);
+            header.putLong(LINE_COUNT_POSITION, lineCount);
+            header.putLong(PAYLOAD_LENGTH_POSITION, payload.getWrittenLength());
+            header.putLong(TEXT_LENGTH_POSITION, textLength);
+            header.putLong(TEXT_MODIFIED_POSITION, textModified);
+            header.putInt(HEADER_CHECKSUM_POSITION, getHeaderChecksum(header,
+                    newChecksum(PREFERRED_CHECKSUM_TYPE)));
+            writeFully(channel, header, 0);
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Checksums the header up to its checksum field
+     */
+    static int getHeaderChecksum(ByteBuffer header, Checksum checksum) {
+        byte[] bytes = new byte[HEADER_CHECKSUM_POSITION];
+        ByteBuffer view = header.duplicate();
+        view.position(0);
+        view.get(bytes);
+        checksum.update(bytes, 0, bytes.length);
+        return (int) checksum.getValue();
+    }
+
+    static long getBlockCount(long length) {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        buffer.position(0);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * This class writes one region of a snapshot a block at a time, keeping
+     * the checksum of each block
+     */
+    private static class BlockWriter {
+        private final FileChannel _channel;
+        private final long _start;
+        private final ByteBuffer _block = ByteBuffer.allocate(BLOCK_SIZE);
+        private final Checksum _checksum = newChecksum(PREFERRED_CHECKSUM_TYPE);
+        private int[] _blockChecksums;
+        private int _blockCount = 0;
+        private long _written = 0;
+
+        /**
+         * @param length
+         *            - the length of the region if known, else -1
+         */
+        BlockWriter(FileChannel channel, long start, long length) {
+            _channel = channel;
+            _start = start;
+            _blockChecksums = new int[(length >= 0) ? (int) getBlockCount(length) : 16];
+        }
+
+        long getWrittenLength() {
+            return _written + _block.position();
+        }
+
+        long getEnd() {
+            return _start + _written;
+        }
+
+        void putLong(long value) throws IOException {
+            if (_block.remaining() < 8) {
+                writeBlock();
+            }
+            _block.putLong(value);
+        }
+
+        void put(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!_block.hasRemaining()) {
+                    writeBlock();
+                }
+                int count = Math.min(length, _block.remaining());
+                _block.put(bytes, offset, count);
+                offset += count;
+                length -= count;
+            }
+        }
+
+        void finish() throws IOException {
+            if (_block.position() > 0) {
+                writeBlock();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            _checksum.reset();
+            _checksum.update(_block.array(), 0, _block.position());
+            if (_blockCount == _blockChecksums.length) {
+                int[] checksums = new int[Math.max(16, _blockCount * 2)];
+                System.arraycopy(_blockChecksums, 0, checksums, 0, _blockCount);
+                _blockChecksums = checksums;
+            }
+            _blockChecksums[_blockCount++] = (int) _checksum.getValue();
+
+            _block.flip();
+            long position = _start + _written;
+            while (_block.hasRemaining()) {
+                position += _channel.write(_block, position);
+            }
+            _written += _block.limit();
+            _block.clear();
+        }
+
+        /**
+         * @return the position after the checksums
+         */
+        long writeChecksums(long position) throws IOException {
+            ByteBuffer checksums = ByteBuffer.allocate(_blockCount * 4);
+            for (int i = 0; i < _blockCount; i++) {
+                checksums.putInt(_blockChecksums[i]);
+            }
+            writeFully(_channel, checksums, position);
+            return position + checksums.capacity();
+        }
+    }
+}
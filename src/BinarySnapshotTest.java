@@ -0,0 +1,206 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BinarySnapshotTest {
+    private String fileName = "binarySnapshotTest.txt";
+
+    @After
+    public void deleteFiles() {
+        new File(fileName).delete();
+        new File(fileName + OperationLog.LOG_SUFFIX).delete();
+        BinarySnapshot.getSnapshotFile(fileName).delete();
+    }
+
+    private ArrayList<String> createEntries() {
+        ArrayList<String> dataLines = new ArrayList<String>();
+        StringBuilder longLine = new StringBuilder();
+        while (longLine.length() < 3 * BinarySnapshot.BLOCK_SIZE) {
+            longLine.append("long line ");
+        }
+        dataLines.add("");
+        dataLines.add("caf\u00e9 \u4e16\u754c \ud83d\ude00");
+        dataLines.add(longLine.toString());
+        for (int i = 0; i < 20000; i++) {
+            dataLines.add("entry " + i);
+        }
+        return dataLines;
+    }
+
+    @Test
+    public void roundTripTest() throws Exception {
+        ArrayList<String> dataLines = createEntries();
+        Files.write(Paths.get(fileName), dataLines, StandardCharsets.UTF_8);
+        BinarySnapshot.write(fileName, dataLines);
+
+        SnapshotEntryStore store = SnapshotEntryStore.open(fileName);
+        assertEquals(dataLines, store);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputSink sink = new OutputSink(bytes, StandardCharsets.UTF_8);
+        store.writeEntry(1, sink);
+        sink.flush();
+        assertEquals(dataLines.get(1), new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+
+        // appends keep the table mapped, other changes copy it
+        store.add("appended");
+        dataLines.add("appended");
+        assertEquals(dataLines, store);
+        store.add(1, "inserted");
+        dataLines.add(1, "inserted");
+        store.subList(5, 1000).clear();
+        dataLines.subList(5, 1000).clear();
+        store.sort(String.CASE_INSENSITIVE_ORDER);
+        dataLines.sort(String.CASE_INSENSITIVE_ORDER);
+        assertEquals(dataLines, store);
+
+        // a snapshot written from the changed store reads back the same
+        BinarySnapshot.write(fileName, store);
+        assertEquals(dataLines, SnapshotEntryStore.open(fileName));
+    }
+
+    @Test
+    public void snapshotTest() throws Exception {
+        ArrayList<String> dataLines = createEntries();
+        Files.write(Paths.get(fileName), dataLines, StandardCharsets.UTF_8);
+        BinarySnapshot.write(fileName, dataLines);
+        SnapshotEntryStore store = SnapshotEntryStore.open(fileName);
+        store.add("appended");
+        dataLines.add("appended");
+
+        // both sides append to the shared entries, then the store copies the
+        // table, and neither change shows in the other
+        EntryStore snapshot = store.snapshot();
+        assertTrue(snapshot instanceof SnapshotEntryStore);
+        ArrayList<String> expected = new ArrayList<String>(dataLines);
+        store.add("store");
+        snapshot.add("snapshot");
+        expected.add("snapshot");
+        dataLines.add("store");
+        store.add(1, "inserted");
+        dataLines.add(1, "inserted");
+        store.subList(5, 1000).clear();
+        dataLines.subList(5, 1000).clear();
+        assertEquals(dataLines, store);
+        assertEquals(expected, snapshot);
+
+        // a snapshot of the copied table is copied again before it changes
+        snapshot = store.snapshot();
+        ArrayList<String> changed = new ArrayList<String>(dataLines);
+        snapshot.set(1, "changed");
+        snapshot.add(2, "added");
+        snapshot.sort(String.CASE_INSENSITIVE_ORDER);
+        store.remove(0);
+        changed.remove(0);
+        assertEquals(changed, store);
+        dataLines.set(1, "changed");
+        dataLines.add(2, "added");
+        dataLines.sort(String.CASE_INSENSITIVE_ORDER);
+        assertEquals(dataLines, snapshot);
+    }
+
+    /**
+     * Writes the entries to the data file and a binary snapshot of it, with a
+     * changed byte in the long line
+     */
+    private void writeDamagedSnapshot(ArrayList<String> dataLines) throws Exception {
+        Files.write(Paths.get(fileName), dataLines, StandardCharsets.UTF_8);
+        BinarySnapshot.write(fileName, dataLines);
+        RandomAccessFile file = new RandomAccessFile(BinarySnapshot.getSnapshotFile(fileName), "rw");
+        long position = BinarySnapshot.HEADER_SIZE + dataLines.size() * 8L + 100;
+        file.seek(position);
+        int b = file.read();
+        file.seek(position);
+        file.write(b ^ 1);
+        file.close();
+    }
+
+    @Test
+    public void unusableSnapshotTest() throws Exception {
+        ArrayList<String> dataLines = createEntries();
+
+        // a changed byte in the long line is found when its block is read
+        writeDamagedSnapshot(dataLines);
+        SnapshotEntryStore store = SnapshotEntryStore.open(fileName);
+        assertEquals("entry 19999", store.get(store.size() - 1));
+        try {
+            store.get(2);
+            fail();
+        } catch (SnapshotEntryStore.CorruptSnapshotException e) {
+            // expected
+        }
+
+        // a snapshot of an older data file is not used
+        Files.write(Paths.get(fileName), Arrays.asList("changed"), StandardCharsets.UTF_8);
+        assertNull(SnapshotEntryStore.open(fileName));
+    }
+
+    @Test
+    public void loadFromSnapshotTest() throws Exception {
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        textBuddy.applyOption("--binary-snapshot");
+        textBuddy.loadData();
+        textBuddy.addEntry("first");
+        textBuddy.addEntry("second");
+        textBuddy.save();
+        assertTrue(BinarySnapshot.getSnapshotFile(fileName).exists());
+
+        TextBuddy reloaded = new TextBuddy(fileName);
+        reloaded.applyOption("--binary-snapshot");
+        reloaded.loadData();
+        assertTrue(reloaded.getDataLines() instanceof SnapshotEntryStore);
+        assertEquals(Arrays.asList("first", "second"), reloaded.getDataLines());
+        assertEquals(Arrays.asList("first", "second"),
+                Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void damagedSnapshotTest() throws Exception {
+        // the data file is read again in the default charset
+        ArrayList<String> dataLines = createEntries();
+        dataLines.remove(1);
+        writeDamagedSnapshot(dataLines);
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        textBuddy.applyOption("--binary-snapshot");
+        textBuddy.loadData();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        textBuddy.setOutput(new OutputSink(bytes, StandardCharsets.UTF_8));
+        textBuddy.processInput("add added");
+        dataLines.add("added");
+
+        // the command that reads the damaged block reloads the entries from the
+        // data file and the log, and the session carries on
+        textBuddy.processInput("display 2 1");
+        assertTrue(bytes.toString("UTF-8").endsWith("Error, the binary snapshot of " + fileName
+                + " is damaged, the entries were loaded again from the file"
+                + System.lineSeparator()));
+        assertFalse(textBuddy.getDataLines() instanceof SnapshotEntryStore);
+        assertEquals(dataLines, textBuddy.getDataLines());
+        bytes.reset();
+        textBuddy.processInput("display 2 1");
+        assertEquals("2. " + dataLines.get(1) + System.lineSeparator(),
+                bytes.toString("UTF-8"));
+        textBuddy.close();
+        assertEquals(dataLines, Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8));
+
+        // a save that reads the damaged block folds the log into the data file
+        dataLines.remove(dataLines.size() - 1);
+        writeDamagedSnapshot(dataLines);
+        TextBuddy saved = new TextBuddy(fileName);
+        saved.applyOption("--binary-snapshot");
+        saved.loadData();
+        saved.addEntry("added again");
+        dataLines.add("added again");
+        saved.close();
+        assertEquals(dataLines, Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class reads the lines of a file on the fork-join pool. The file is
+ * split into chunks of about chunkSize bytes, and each boundary is moved
+ * forward to just after the next '\n' so that no line is split. Each chunk
+ * is read, split into lines and added to a store of its own on a thread of
+ * the pool, then the stores are appended in the order of the chunks.
+ *
+ * Lines are split the same way as BufferedReader.readLine, on "\n", "\r" or
+ * "\r\n". A boundary always follows a '\n', so it never falls inside a
+ * "\r\n". The charset must encode '\n' and '\r' as single bytes that are not
+ * part of any other char, which is what MappedEntryStore.canMap checks.
+ *
+ * @author Wz
+ *
+ */
+class ChunkedLoader {
+    private static final int MIN_CHUNK_SIZE = 1 << 20;
+    private static final int MAX_CHUNK_SIZE = 64 << 20;
+    // more chunks than threads, so a thread that finishes early takes over
+    // chunks of the others
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int SCAN_BUFFER_SIZE = 8 * 1024;
+
+    private final FileChannel _channel;
+    private final Charset _charset;
+    private final String _storeType;
+    // the start of each chunk, then the size of the file
+    private final long[] _boundaries;
+    private final EntryStore[] _chunkStores;
+
+    private ChunkedLoader(FileChannel channel, Charset charset, String storeType,
+            long[] boundaries) {
+        _channel = channel;
+        _charset = charset;
+        _storeType = storeType;
+        _boundaries = boundaries;
+        _chunkStores = new EntryStore[boundaries.length - 1];
+    }
+
+    /**
+     * @return a chunk size that gives each thread of the pool a few chunks
+     */
+    static int getChunkSize(long fileSize) {
+        long chunkSize = fileSize / (ForkJoinPool.getCommonPoolParallelism() * CHUNKS_PER_THREAD);
+        return (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+    }
+
+    /**
+     * Reads the lines of a file into a new store
+     *
+     * @param storeType
+     *            - EntryStore.STORE_LIST or EntryStore.STORE_PACKED
+     * @param chunkSize
+     *            - the number of bytes of a chunk before its end is moved to
+     *            the end of a line
+     */
+    static EntryStore load(String fileName, Charset charset, String storeType, int chunkSize)
+            throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            ChunkedLoader loader = new ChunkedLoader(channel, charset, storeType,
+                    findBoundaries(channel, chunkSize));
+            ForkJoinPool.commonPool().invoke(loader.new ChunkLoad(0, loader._chunkStores.length));
+
+            EntryStore dataLines = EntryStore.create(storeType);
+            for (EntryStore chunkStore : loader._chunkStores) {
+                dataLines.appendStore(chunkStore);
+            }
+            return dataLines;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static long[] findBoundaries(FileChannel channel, int chunkSize)
+            throws IOException {
+        long fileSize = channel.size();
+        long[] boundaries = new long[(int) (fileSize / chunkSize) + 2];
+        int count = 1;
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        for (long position = chunkSize; position < fileSize; position += chunkSize) {
+            // a line longer than a chunk may already reach past this position
+            if (position > boundaries[count - 1]) {
+                long boundary = findLineStart(channel, position, buffer);
+                if (boundary < fileSize) {
+                    boundaries[count++] = boundary;
+                }
+            }
+        }
+        boundaries[count++] = fileSize;
+        return Arrays.copyOf(boundaries, count);
+    }
+
+    /**
+     * @return the first position at or after a position that follows a '\n',
+     *         or the size of the file if there is none
+     */
+    private static long findLineStart(FileChannel channel, long position, ByteBuffer buffer)
+            throws IOException {
+        long scanned = position - 1;
+        while (true) {
+            buffer.clear();
+            if (channel.read(buffer, scanned) == -1) {
+                return channel.size();
+            }
+            for (int i = 0; i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') {
+                    return scanned + i + 1;
+                }
+            }
+            scanned += buffer.position();
+        }
+    }
+
+    private EntryStore loadChunk(long start, long end) throws IOException {
+        byte[] bytes = new byte[(int) (end - start)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (_channel.read(buffer, start + buffer.position()) == -1) {
+                throw new EOFException("File shrank while loading");
+            }
+        }
+
+        EntryStore chunkStore = EntryStore.create(_storeType);
+        int lineStart = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            byte b = bytes[i];
+            if (b == '\n' || b == '\r') {
+                chunkStore.add(new String(bytes, lineStart, i - lineStart, _charset));
+                if (b == '\r' && i + 1 < bytes.length && bytes[i + 1] == '\n') {
+                    i++;
+                }
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < bytes.length) {
+            chunkStore.add(new String(bytes, lineStart, bytes.length - lineStart, _charset));
+        }
+        return chunkStore;
+    }
+
+    /**
+     * This class loads a range of chunks by splitting it in half until one
+     * chunk is left
+     */
+    private class ChunkLoad extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int _fromChunk;
+        private final int _toChunk;
+
+        ChunkLoad(int fromChunk, int toChunk) {
+            _fromChunk = fromChunk;
+            _toChunk = toChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (_toChunk - _fromChunk == 1) {
+                try {
+                    _chunkStores[_fromChunk] = loadChunk(_boundaries[_fromChunk],
+                            _boundaries[_fromChunk + 1]);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            } else {
+                int middle = (_fromChunk + _toChunk) >>> 1;
+                invokeAll(new ChunkLoad(_fromChunk, middle), new ChunkLoad(middle, _toChunk));
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ChunkedLoaderTest {
+    private static final String[] BREAKS = { "\n", "\r", "\r\n", "\n\n", "\r\r\n" };
+    private static final String[] WORDS = { "line", "caf\u00e9", "\u4e2d\u6587", "\ud83d\ude00", "" };
+
+    private static ArrayList<String> readLines(String content) throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader(content));
+        ArrayList<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    @Test
+    public void matchesReadLineTest() throws IOException {
+        Random random = new Random(1);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            int wordCount = random.nextInt(i % 50 == 0 ? 200 : 4);
+            for (int j = 0; j < wordCount; j++) {
+                content.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            content.append(BREAKS[random.nextInt(BREAKS.length)]);
+        }
+        content.append("no line break at the end\r");
+
+        File file = new File("chunkedLoaderTest.txt");
+        Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+        ArrayList<String> expected = readLines(content.toString());
+
+        // chunk boundaries land inside "\r\n", inside chars and inside long lines
+        int[] chunkSizes = { 1, 2, 3, 7, 64, 1000, 1 << 20 };
+        for (int chunkSize : chunkSizes) {
+            for (String storeType : new String[] { EntryStore.STORE_LIST, EntryStore.STORE_PACKED }) {
+                EntryStore dataLines = ChunkedLoader.load(file.getPath(), StandardCharsets.UTF_8,
+                        storeType, chunkSize);
+                assertEquals(storeType + " " + chunkSize, expected, dataLines);
+
+                // the appended chunks can be changed like any other store
+                dataLines.add(1, "inserted");
+                dataLines.remove(dataLines.size() - 1);
+                dataLines.add("added");
+                ArrayList<String> changed = new ArrayList<String>(expected);
+                changed.add(1, "inserted");
+                changed.remove(changed.size() - 1);
+                changed.add("added");
+                assertEquals(changed, dataLines);
+            }
+        }
+
+        Files.write(file.toPath(), new byte[0]);
+        assertTrue(ChunkedLoader.load(file.getPath(), StandardCharsets.UTF_8,
+                EntryStore.STORE_LIST, 4).isEmpty());
+        file.delete();
+    }
+}
@@ -0,0 +1,167 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * This class keeps a latency histogram for each command of a TextBuddy, the
+ * durations of the last load and save, and reads the size of the store when
+ * asked. It is shown by the "stats" command and can be registered as a JMX
+ * MBean named "TextBuddy:type=Metrics,file=<file name>".
+ *
+ * @author Wz
+ *
+ */
+class CommandMetrics implements TextBuddyMetricsMXBean {
+    private static final String OBJECT_NAME = "TextBuddy:type=Metrics,file=";
+    private static final String ENTRIES_MSG = "entries: %1$s";
+    private static final String HEAP_MSG = "store heap bytes (estimated): %1$s";
+    private static final String LOAD_SAVE_MSG = "last load: %1$.1f ms, last save: %2$.1f ms";
+    private static final String HEADER_MSG = "command      count   mean us    p50 us    p99 us    max us";
+    private static final String COMMAND_MSG = "%-8s %9d %9.1f %9d %9d %9d";
+    private static final double NANOS_PER_MICRO = 1000.0;
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final TextBuddy _textBuddy;
+    private final Map<String, LatencyHistogram> _histograms;
+    private volatile long _lastLoadNanos = 0;
+    private volatile long _lastSaveNanos = 0;
+
+    /**
+     * @param commands
+     *            - the commands to keep a histogram for, in the order they are
+     *            shown
+     */
+    CommandMetrics(TextBuddy textBuddy, String... commands) {
+        _textBuddy = textBuddy;
+        _histograms = new LinkedHashMap<String, LatencyHistogram>();
+        for (String command : commands) {
+            _histograms.put(command, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records how long a command took. Commands without a histogram are not
+     * recorded.
+     */
+    void recordCommand(String command, long nanos) {
+        LatencyHistogram histogram = _histograms.get(command);
+        if (histogram != null) {
+            histogram.record(nanos);
+        }
+    }
+
+    /**
+     * Records count runs of a command that were done together, as count
+     * runs of an equal share of the time
+     */
+    void recordCommands(String command, int count, long nanos) {
+        LatencyHistogram histogram = _histograms.get(command);
+        if (histogram != null && count > 0) {
+            histogram.record(nanos / count, count);
+        }
+    }
+
+    void recordLoad(long nanos) {
+        _lastLoadNanos = nanos;
+    }
+
+    void recordSave(long nanos) {
+        _lastSaveNanos = nanos;
+    }
+
+    void register(String fileName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName(OBJECT_NAME + ObjectName.quote(fileName)));
+    }
+
+    @Override
+    public int getEntryCount() {
+        return _textBuddy.getEntryCount();
+    }
+
+    @Override
+    public long getStoreHeapBytes() {
+        return _textBuddy.estimateStoreHeapBytes();
+    }
+
+    @Override
+    public double getLastLoadMillis() {
+        return _lastLoadNanos / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getLastSaveMillis() {
+        return _lastSaveNanos / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, LatencyHistogram> entry : _histograms.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().getCount());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getMeanMicros() {
+        Map<String, Double> means = new LinkedHashMap<String, Double>();
+        for (Map.Entry<String, LatencyHistogram> entry : _histograms.entrySet()) {
+            means.put(entry.getKey(), entry.getValue().getMeanNanos() / NANOS_PER_MICRO);
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Long> getP50Micros() {
+        return getPercentileMicros(50);
+    }
+
+    @Override
+    public Map<String, Long> getP99Micros() {
+        return getPercentileMicros(99);
+    }
+
+    @Override
+    public Map<String, Long> getMaxMicros() {
+        return getPercentileMicros(100);
+    }
+
+    private Map<String, Long> getPercentileMicros(double percentile) {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, LatencyHistogram> entry : _histograms.entrySet()) {
+            values.put(entry.getKey(), toMicros(entry.getValue().getPercentileNanos(percentile)));
+        }
+        return values;
+    }
+
+    private static long toMicros(long nanos) {
+        return Math.round(nanos / NANOS_PER_MICRO);
+    }
+
+    @Override
+    public String getStats() {
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append(String.format(ENTRIES_MSG, getEntryCount()));
+        stringBuilder.append(System.lineSeparator());
+        stringBuilder.append(String.format(HEAP_MSG, getStoreHeapBytes()));
+        stringBuilder.append(System.lineSeparator());
+        stringBuilder.append(String.format(LOAD_SAVE_MSG, getLastLoadMillis(),
+                getLastSaveMillis()));
+        stringBuilder.append(System.lineSeparator());
+        stringBuilder.append(HEADER_MSG);
+        for (Map.Entry<String, LatencyHistogram> entry : _histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            stringBuilder.append(System.lineSeparator());
+            stringBuilder.append(String.format(COMMAND_MSG, entry.getKey(),
+                    histogram.getCount(), histogram.getMeanNanos() / NANOS_PER_MICRO,
+                    toMicros(histogram.getPercentileNanos(50)),
+                    toMicros(histogram.getPercentileNanos(99)),
+                    toMicros(histogram.getMaxNanos())));
+        }
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,277 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * This class writes snapshots of the entries in the plain text format of the
+ * data file, and describes a snapshot once it is written: how many lines it
+ * has, its length and its CRC32.
+ *
+ * A snapshot can be written from a previous data file whose first lines are
+ * still the first entries. The bytes of those lines are copied from the old
+ * file by the file system with FileChannel.transferTo, and only the entries
+ * after them are encoded and written. When the old file was written by this
+ * class and only entries were appended, its length and checksum are already
+ * known, so the old file is not read at all. The export command copies
+ * unchanged lines of the data file to another file the same way.
+ *
+ * @author Wz
+ *
+ */
+class DataSnapshot {
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    private static final long CRC32_POLYNOMIAL = 0xEDB88320L;
+
+    private final int _lineCount;
+    private final long _length;
+    private final long _checksum;
+
+    private DataSnapshot(int lineCount, long length, long checksum) {
+        _lineCount = lineCount;
+        _length = length;
+        _checksum = checksum;
+    }
+
+    long getChecksum() {
+        return _checksum;
+    }
+
+    /**
+     * Writes every entry to a snapshot file and syncs it to disk
+     */
+    static DataSnapshot write(File snapshotFile, List<String> dataLines) throws IOException {
+        return write(snapshotFile, dataLines, null, null, 0);
+    }
+
+    /**
+     * Writes a snapshot that reuses the first lines of the current data file
+     *
+     * @param dataFile
+     *            - the current data file
+     * @param previous
+     *            - the snapshot the data file was written as, or null if it is
+     *            not known
+     * @param cleanCount
+     *            - the number of leading entries that are the same as the
+     *            first lines of the data file
+     */
+    static DataSnapshot write(File snapshotFile, List<String> dataLines, File dataFile,
+            DataSnapshot previous, int cleanCount) throws IOException {
+        int keptLines = Math.min(cleanCount, dataLines.size());
+        if (keptLines == 0 || dataFile == null || !dataFile.exists()) {
+            return writeFrom(snapshotFile, dataLines, null, 0, 0, 0);
+        }
+        FileChannel source = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+        try {
+            if (previous != null && previous._lineCount == keptLines
+                    && previous._length == source.size()) {
+                return writeFrom(snapshotFile, dataLines, source, keptLines, previous._length,
+                        previous._checksum);
+            }
+            CRC32 prefixChecksum = new CRC32();
+            long[] lineStarts = findLineStarts(source, keptLines, keptLines, prefixChecksum);
+            if (lineStarts == null) {
+                return writeFrom(snapshotFile, dataLines, null, 0, 0, 0);
+            }
+            return writeFrom(snapshotFile, dataLines, source, keptLines, lineStarts[1],
+                    prefixChecksum.getValue());
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Copies the bytes of some lines of a file, with their line breaks, to
+     * the position of a channel with FileChannel.transferTo
+     *
+     * @param toLine
+     *            - the line after the last one copied
+     * @return false if the file does not have these lines followed by a line
+     *         break, in which case nothing is copied
+     */
+    static boolean copyLines(File file, int fromLine, int toLine, FileChannel target)
+            throws IOException {
+        FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long[] lineStarts = findLineStarts(source, fromLine, toLine, null);
+            if (lineStarts == null) {
+                return false;
+            }
+            long start = lineStarts[0];
+            long end = lineStarts[1];
+            long position = target.position();
+            long copied = 0;
+            while (copied < end - start) {
+                copied += source.transferTo(start + copied, end - start - copied, target);
+            }
+            target.position(position + copied);
+            return true;
+        } finally {
+            source.close();
+        }
+    }
+
+    private static DataSnapshot writeFrom(File snapshotFile, List<String> dataLines,
+            FileChannel source, int keptLines, long prefixLength, long prefixChecksum)
+            throws IOException {
+        FileChannel target = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            long copied = 0;
+            while (copied < prefixLength) {
+                copied += source.transferTo(copied, prefixLength - copied, target);
+            }
+            target.position(prefixLength);
+
+            CheckedOutputStream cs = new CheckedOutputStream(Channels.newOutputStream(target),
+                    new CRC32());
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(cs));
+            for (String line : dataLines.subList(keptLines, dataLines.size())) {
+                bw.write(line);
+                bw.newLine();
+            }
+            bw.flush();
+            target.force(false);
+
+            long length = target.size();
+            long checksum = combineChecksums(prefixChecksum, cs.getChecksum().getValue(),
+                    length - prefixLength);
+            return new DataSnapshot(dataLines.size(), length, checksum);
+        } finally {
+            target.close();
+        }
+    }
+
+    /**
+     * Finds where two lines start in one pass over the file, splitting lines
+     * the same way as BufferedReader.readLine, on "\n", "\r" or "\r\n"
+     *
+     * @param fromLine
+     *            - the first line, at most toLine
+     * @param checksum
+     *            - updated with the bytes before toLine, or null if the
+     *            checksum is not needed
+     * @return the offsets of fromLine and toLine, or null if the file has
+     *         fewer lines or its last line has no line break
+     */
+    private static long[] findLineStarts(FileChannel channel, int fromLine, int toLine,
+            CRC32 checksum) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+        long[] lineStarts = new long[2];
+        boolean isFromLineFound = false;
+        long position = 0;
+        int linesFound = 0;
+        boolean isAfterCarriageReturn = false;
+        int read;
+        while ((read = channel.read(buffer, position)) != -1) {
+            for (int i = 0; i < read; i++) {
+                byte b = bytes[i];
+                if (isAfterCarriageReturn) {
+                    isAfterCarriageReturn = false;
+                    if (b == '\n') {
+                        continue;
+                    }
+                }
+                if (linesFound == fromLine && !isFromLineFound) {
+                    lineStarts[0] = position + i;
+                    isFromLineFound = true;
+                }
+                if (linesFound == toLine) {
+                    lineStarts[1] = position + i;
+                    if (checksum != null) {
+                        checksum.update(bytes, 0, i);
+                    }
+                    return lineStarts;
+                }
+                if (b == '\n') {
+                    linesFound++;
+                } else if (b == '\r') {
+                    linesFound++;
+                    isAfterCarriageReturn = true;
+                }
+            }
+            if (checksum != null) {
+                checksum.update(bytes, 0, read);
+            }
+            position += read;
+            buffer.clear();
+        }
+        if (linesFound != toLine) {
+            return null;
+        }
+        if (!isFromLineFound) {
+            lineStarts[0] = position;
+        }
+        lineStarts[1] = position;
+        return lineStarts;
+    }
+
+    /**
+     * Works out the CRC32 of two blocks of bytes joined together from the
+     * CRC32 of each block, the same way as zlib's crc32_combine
+     *
+     * @param secondLength
+     *            - the length of the second block
+     */
+    static long combineChecksums(long firstChecksum, long secondChecksum, long secondLength) {
+        if (secondLength <= 0) {
+            return firstChecksum;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // the operator for one zero bit
+        odd[0] = CRC32_POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        squareMatrix(even, odd);
+        squareMatrix(odd, even);
+
+        // apply the operator for one zero byte, then for each bit of the length
+        long checksum = firstChecksum;
+        long length = secondLength;
+        do {
+            squareMatrix(even, odd);
+            if ((length & 1) != 0) {
+                checksum = multiplyMatrix(even, checksum);
+            }
+            length >>= 1;
+            if (length == 0) {
+                break;
+            }
+            squareMatrix(odd, even);
+            if ((length & 1) != 0) {
+                checksum = multiplyMatrix(odd, checksum);
+            }
+            length >>= 1;
+        } while (length != 0);
+        return checksum ^ secondChecksum;
+    }
+
+    private static long multiplyMatrix(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void squareMatrix(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = multiplyMatrix(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+public class DataSnapshotTest {
+    private static final String NEW_LINE = System.lineSeparator();
+
+    private static long getChecksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    @Test
+    public void combineChecksumsTest() {
+        byte[] first = "first part\n".getBytes(StandardCharsets.UTF_8);
+        byte[] second = "and the second, longer part\n".getBytes(StandardCharsets.UTF_8);
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+
+        assertEquals(getChecksum(both), DataSnapshot.combineChecksums(getChecksum(first),
+                getChecksum(second), second.length));
+        assertEquals(getChecksum(first),
+                DataSnapshot.combineChecksums(getChecksum(first), getChecksum(new byte[0]), 0));
+    }
+
+    @Test
+    public void keepUnchangedLinesTest() throws IOException {
+        File dataFile = new File("snapshotTest.txt");
+        File snapshotFile = new File("snapshotTest.txt.tmp");
+        ArrayList<String> dataLines = new ArrayList<String>(Arrays.asList("one", "two",
+                "three"));
+
+        // lines ending in \r\n are copied as they are
+        Files.write(dataFile.toPath(), "one\r\ntwo\r\nthree\r\n".getBytes(StandardCharsets.UTF_8));
+        dataLines.set(2, "THREE");
+        DataSnapshot snapshot = DataSnapshot.write(snapshotFile, dataLines, dataFile, null, 2);
+        byte[] written = Files.readAllBytes(snapshotFile.toPath());
+        assertEquals("one\r\ntwo\r\nTHREE" + NEW_LINE, new String(written, StandardCharsets.UTF_8));
+        assertEquals(getChecksum(written), snapshot.getChecksum());
+
+        // appending to a snapshot this class wrote does not read the old file
+        Files.move(snapshotFile.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        dataLines.add("four");
+        snapshot = DataSnapshot.write(snapshotFile, dataLines, dataFile, snapshot, 3);
+        written = Files.readAllBytes(snapshotFile.toPath());
+        assertEquals("one\r\ntwo\r\nTHREE" + NEW_LINE + "four" + NEW_LINE,
+                new String(written, StandardCharsets.UTF_8));
+        assertEquals(getChecksum(written), snapshot.getChecksum());
+
+        // without a line break after the last kept line, everything is written
+        Files.write(dataFile.toPath(), "one\ntwo".getBytes(StandardCharsets.UTF_8));
+        dataLines = new ArrayList<String>(Arrays.asList("one", "two", "three"));
+        DataSnapshot.write(snapshotFile, dataLines, dataFile, null, 2);
+        assertEquals("one" + NEW_LINE + "two" + NEW_LINE + "three" + NEW_LINE, new String(
+                Files.readAllBytes(snapshotFile.toPath()), StandardCharsets.UTF_8));
+
+        dataFile.delete();
+        snapshotFile.delete();
+    }
+
+    @Test
+    public void copyLinesTest() throws IOException {
+        File dataFile = new File("copyLinesTest.txt");
+        File targetFile = new File("copyLinesTest.txt.tmp");
+        Files.write(dataFile.toPath(),
+                "one\r\ntwo\nthree\rfour\n".getBytes(StandardCharsets.UTF_8));
+        FileChannel target = FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        // each line keeps its own line break, and the copy goes on from the
+        // position of the target
+        assertTrue(DataSnapshot.copyLines(dataFile, 1, 3, target));
+        assertTrue(DataSnapshot.copyLines(dataFile, 0, 4, target));
+        assertTrue(DataSnapshot.copyLines(dataFile, 4, 4, target));
+        assertFalse(DataSnapshot.copyLines(dataFile, 2, 5, target));
+        target.close();
+        assertEquals("two\nthree\rone\r\ntwo\nthree\rfour\n",
+                new String(Files.readAllBytes(targetFile.toPath()), StandardCharsets.UTF_8));
+
+        dataFile.delete();
+        targetFile.delete();
+    }
+}
@@ -0,0 +1,349 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is the base of the indexes kept over the entries of a file. It
+ * gives each entry an id and leaves it to subclasses to map the keys they
+ * index to ids.
+ *
+ * Entries are given ids in the order they are added and the index stores ids
+ * rather than positions, so an insert or a delete does not have to renumber
+ * every later entry. The ids are kept in a binary tree in the order of the
+ * positions of their entries, with the number of alive entries under each
+ * node, which turns an id into a position and back in O(log n) wherever
+ * entries are inserted. The tree is a scapegoat tree: an insert that ends up
+ * too deep rebuilds the smallest unbalanced subtree above it, perfectly
+ * balanced. A deleted entry only marks its node dead, and rebuilds drop the
+ * dead nodes.
+ *
+ * Sorting breaks the order of the ids, and only marks the index as stale. It
+ * is rebuilt on the next lookup.
+ *
+ * @author Wz
+ *
+ */
+abstract class EntryIndex {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MIN_DEAD_IDS_FOR_COMPACTION = 1024;
+    private static final int NO_NODE = -1;
+    // a subtree is unbalanced once a child holds more than 2/3 of its nodes,
+    // which keeps the depth within log base 3/2 of the number of nodes
+    private static final double MAX_DEPTH_FACTOR = 1 / Math.log(1.5);
+
+    private boolean[] _isAlive;
+    private int[] _left;
+    private int[] _right;
+    private int[] _parent;
+    // the nodes under each node, dead or alive, and the alive ones
+    private int[] _nodeCounts;
+    private int[] _aliveCounts;
+    private int _root;
+    private int _nextId;
+    private int _aliveCount;
+    private boolean _isStale = true;
+
+    EntryIndex() {
+        resetTree(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Drops every key, as part of invalidate
+     */
+    abstract void clearKeys();
+
+    /**
+     * Indexes the keys of a new entry under its id
+     */
+    abstract void addKeys(int id, String dataLine);
+
+    /**
+     * Removes the keys of an entry that is deleted
+     */
+    abstract void removeKeys(int id, String dataLine);
+
+    /**
+     * Replaces every id held with newIds[id] after a compaction
+     */
+    abstract void renumberIds(int[] newIds);
+
+    boolean isStale() {
+        return _isStale;
+    }
+
+    /**
+     * Drops the contents of the index. It will be rebuilt by the next call to
+     * build
+     */
+    void invalidate() {
+        _isStale = true;
+        clearKeys();
+        resetTree(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Rebuilds the index from scratch
+     *
+     * @param dataLines
+     *            - the entries in their current order
+     */
+    void build(List<String> dataLines) {
+        invalidate();
+        _isStale = false;
+        int count = dataLines.size();
+        ensureCapacity(count);
+        int[] ids = new int[count];
+        for (int id = 0; id < count; id++) {
+            ids[id] = id;
+            _isAlive[id] = true;
+            addKeys(id, dataLines.get(id));
+        }
+        _nextId = count;
+        _aliveCount = count;
+        _root = buildSubtree(ids, 0, count, NO_NODE);
+    }
+
+    void entryAdded(int position, String dataLine) {
+        if (_isStale) {
+            return;
+        }
+        int id = _nextId++;
+        ensureCapacity(_nextId);
+        insertNode(position, id);
+        addKeys(id, dataLine);
+    }
+
+    void entryRemoved(int position, String dataLine) {
+        if (_isStale) {
+            return;
+        }
+        int id = findId(position);
+        _isAlive[id] = false;
+        _aliveCount--;
+        for (int node = id; node != NO_NODE; node = _parent[node]) {
+            _aliveCounts[node]--;
+        }
+        removeKeys(id, dataLine);
+        int deadCount = _nextId - _aliveCount;
+        if (deadCount >= MIN_DEAD_IDS_FOR_COMPACTION && deadCount > _aliveCount) {
+            compactIds();
+        }
+    }
+
+    void cleared() {
+        invalidate();
+        _isStale = false;
+    }
+
+    /**
+     * @return the 0-based position of the alive entry with an id
+     */
+    int getPosition(int id) {
+        int position = getAliveCount(_left[id]);
+        for (int node = id; _parent[node] != NO_NODE; node = _parent[node]) {
+            int parent = _parent[node];
+            if (_right[parent] == node) {
+                position += getAliveCount(_left[parent]) + (_isAlive[parent] ? 1 : 0);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Turns ids into the positions of their entries
+     *
+     * @return the positions in ascending order
+     */
+    int[] toPositions(int[] ids, int count) {
+        int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = getPosition(ids[i]);
+        }
+        // ids given to entries inserted in the middle are out of order
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    private void resetTree(int capacity) {
+        _isAlive = new boolean[capacity];
+        _left = new int[capacity];
+        _right = new int[capacity];
+        _parent = new int[capacity];
+        _nodeCounts = new int[capacity];
+        _aliveCounts = new int[capacity];
+        _root = NO_NODE;
+        _nextId = 0;
+        _aliveCount = 0;
+    }
+
+    private int getAliveCount(int node) {
+        return (node == NO_NODE) ? 0 : _aliveCounts[node];
+    }
+
+    /**
+     * Adds a leaf for a new id where it has position alive nodes before it,
+     * then rebuilds a subtree above it if the leaf is too deep
+     */
+    private void insertNode(int position, int id) {
+        _isAlive[id] = true;
+        _aliveCount++;
+        _left[id] = NO_NODE;
+        _right[id] = NO_NODE;
+        _nodeCounts[id] = 1;
+        _aliveCounts[id] = 1;
+        if (_root == NO_NODE) {
+            _parent[id] = NO_NODE;
+            _root = id;
+            return;
+        }
+
+        int node = _root;
+        int depth = 1;
+        while (true) {
+            _nodeCounts[node]++;
+            _aliveCounts[node]++;
+            int leftAlive = getAliveCount(_left[node]);
+            if (position <= leftAlive) {
+                if (_left[node] == NO_NODE) {
+                    _left[node] = id;
+                    break;
+                }
+                node = _left[node];
+            } else {
+                position -= leftAlive + (_isAlive[node] ? 1 : 0);
+                if (_right[node] == NO_NODE) {
+                    _right[node] = id;
+                    break;
+                }
+                node = _right[node];
+            }
+            depth++;
+        }
+        _parent[id] = node;
+
+        if (depth > Math.log(_nodeCounts[_root]) * MAX_DEPTH_FACTOR) {
+            int child = id;
+            node = _parent[id];
+            while (_parent[node] != NO_NODE
+                    && 3L * _nodeCounts[child] <= 2L * _nodeCounts[node]) {
+                child = node;
+                node = _parent[node];
+            }
+            rebuildSubtree(node);
+        }
+    }
+
+    /**
+     * Rebuilds the subtree under a node perfectly balanced, leaving out its
+     * dead nodes
+     */
+    private void rebuildSubtree(int subtreeRoot) {
+        int parent = _parent[subtreeRoot];
+        boolean isLeftChild = parent != NO_NODE && _left[parent] == subtreeRoot;
+        int droppedCount = _nodeCounts[subtreeRoot] - _aliveCounts[subtreeRoot];
+        int[] ids = new int[_aliveCounts[subtreeRoot]];
+        collectAliveIds(subtreeRoot, ids, 0);
+
+        int newRoot = buildSubtree(ids, 0, ids.length, parent);
+        if (parent == NO_NODE) {
+            _root = newRoot;
+        } else if (isLeftChild) {
+            _left[parent] = newRoot;
+        } else {
+            _right[parent] = newRoot;
+        }
+        for (int node = parent; node != NO_NODE; node = _parent[node]) {
+            _nodeCounts[node] -= droppedCount;
+        }
+    }
+
+    /**
+     * Writes the alive ids under a node to ids from a given index, in the
+     * order of their positions
+     *
+     * @return the index after the last id written
+     */
+    private int collectAliveIds(int node, int[] ids, int index) {
+        if (node == NO_NODE) {
+            return index;
+        }
+        index = collectAliveIds(_left[node], ids, index);
+        if (_isAlive[node]) {
+            ids[index++] = node;
+        }
+        return collectAliveIds(_right[node], ids, index);
+    }
+
+    /**
+     * Links ids[from, to) into a balanced subtree of alive nodes
+     *
+     * @return the root of the subtree
+     */
+    private int buildSubtree(int[] ids, int from, int to, int parent) {
+        if (from >= to) {
+            return NO_NODE;
+        }
+        int middle = (from + to) >>> 1;
+        int id = ids[middle];
+        _parent[id] = parent;
+        _left[id] = buildSubtree(ids, from, middle, id);
+        _right[id] = buildSubtree(ids, middle + 1, to, id);
+        _nodeCounts[id] = to - from;
+        _aliveCounts[id] = to - from;
+        return id;
+    }
+
+    /**
+     * Renumbers the alive ids to 0..n-1 in the order of their positions once
+     * most ids belong to deleted entries, so the arrays stay proportional to
+     * the number of entries
+     */
+    private void compactIds() {
+        int[] ids = new int[_aliveCount];
+        collectAliveIds(_root, ids, 0);
+        int[] newIds = new int[_nextId];
+        Arrays.fill(newIds, NO_NODE);
+        for (int i = 0; i < ids.length; i++) {
+            newIds[ids[i]] = i;
+            ids[i] = i;
+        }
+        renumberIds(newIds);
+
+        int count = ids.length;
+        resetTree(Math.max(INITIAL_CAPACITY, count * 2));
+        Arrays.fill(_isAlive, 0, count, true);
+        _nextId = count;
+        _aliveCount = count;
+        _root = buildSubtree(ids, 0, count, NO_NODE);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= _isAlive.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, _isAlive.length * 2);
+        _isAlive = Arrays.copyOf(_isAlive, newCapacity);
+        _left = Arrays.copyOf(_left, newCapacity);
+        _right = Arrays.copyOf(_right, newCapacity);
+        _parent = Arrays.copyOf(_parent, newCapacity);
+        _nodeCounts = Arrays.copyOf(_nodeCounts, newCapacity);
+        _aliveCounts = Arrays.copyOf(_aliveCounts, newCapacity);
+    }
+
+    /**
+     * @return the id of the alive entry at a 0-based position
+     */
+    private int findId(int position) {
+        int node = _root;
+        while (true) {
+            int leftAlive = getAliveCount(_left[node]);
+            if (position < leftAlive) {
+                node = _left[node];
+            } else if (position == leftAlive && _isAlive[node]) {
+                return node;
+            } else {
+                position -= leftAlive + (_isAlive[node] ? 1 : 0);
+                node = _right[node];
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.RandomAccess;
+
+/**
+ * This class is the storage for the entries of a file. It is a list of
+ * Strings so that the commands can work on any implementation, and adds
+ * methods that let an implementation which does not keep Strings hand out an
+ * entry without creating one.
+ *
+ * Implementations: ListEntryStore keeps a String per entry, PackedEntryStore
+ * keeps the UTF-8 bytes of all entries in large chunks and MappedEntryStore
+ * reads them from a memory-mapped file.
+ *
+ * @author Wz
+ *
+ */
+public abstract class EntryStore extends AbstractList<String> implements RandomAccess {
+    static final String STORE_LIST = "list";
+    static final String STORE_PACKED = "packed";
+
+    // a String object and the header of its array, on a 64-bit JVM with
+    // compressed references
+    private static final int STRING_OVERHEAD_BYTES = 40;
+    // Strings of Latin-1 text use a byte per char since Java 9
+    private static final int BYTES_PER_CHAR = System.getProperty(
+            "java.specification.version").startsWith("1.") ? 2 : 1;
+
+    /**
+     * Creates an empty store of a given type
+     *
+     * @param storeType
+     *            - STORE_LIST or STORE_PACKED
+     */
+    static EntryStore create(String storeType) {
+        if (storeType.equals(STORE_PACKED)) {
+            return new PackedEntryStore();
+        } else {
+            return new ListEntryStore();
+        }
+    }
+
+    static boolean isStoreType(String storeType) {
+        return storeType.equals(STORE_LIST) || storeType.equals(STORE_PACKED);
+    }
+
+    /**
+     * Appends an entry to a StringBuilder. Implementations that do not keep
+     * Strings decode the entry straight into the builder.
+     *
+     * @param index
+     *            - 0-based position of the entry
+     */
+    void appendEntry(int index, StringBuilder stringBuilder) {
+        stringBuilder.append(get(index));
+    }
+
+    /**
+     * Writes an entry to an output sink. Implementations that keep the
+     * encoded bytes copy them when the sink uses the same charset.
+     *
+     * @param index
+     *            - 0-based position of the entry
+     */
+    void writeEntry(int index, OutputSink sink) {
+        sink.print(get(index));
+    }
+
+    /**
+     * Sorts the entries stably by working out their sorted order, then moving
+     * them into it with permute
+     */
+    @Override
+    public void sort(Comparator<? super String> comparator) {
+        permute(getSortOrder(comparator));
+    }
+
+    /**
+     * Works out the stable sorted order of the entries without moving them.
+     * Each entry is read once. A case-insensitive order is worked out from
+     * sort keys made once per entry.
+     *
+     * @return the order, where order[i] is the current position of the entry
+     *         that sorts i-th
+     */
+    int[] getSortOrder(final Comparator<? super String> comparator) {
+        if (comparator == String.CASE_INSENSITIVE_ORDER) {
+            return SortKey.getSortOrder(this);
+        }
+        final String[] dataLines = new String[size()];
+        Integer[] boxedOrder = new Integer[dataLines.length];
+        for (int i = 0; i < dataLines.length; i++) {
+            dataLines[i] = get(i);
+            boxedOrder[i] = i;
+        }
+        Arrays.sort(boxedOrder, new Comparator<Integer>() {
+            public int compare(Integer first, Integer second) {
+                return comparator.compare(dataLines[first], dataLines[second]);
+            }
+        });
+        int[] order = new int[boxedOrder.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = boxedOrder[i];
+        }
+        return order;
+    }
+
+    /**
+     * Reorders the entries so that the entry at position order[i] moves to
+     * position i. Implementations move their own representation of the
+     * entries instead of Strings where they can.
+     *
+     * @param order
+     *            - a permutation of the positions of the entries
+     */
+    void permute(int[] order) {
+        String[] dataLines = toArray(new String[size()]);
+        for (int i = 0; i < order.length; i++) {
+            set(i, dataLines[order[i]]);
+        }
+        modCount++;
+    }
+
+    /**
+     * Moves the entries of another store to the end of this one. This adds
+     * them one at a time; implementations take over the storage of a store
+     * of their own type instead. The other store must not be used afterwards.
+     */
+    void appendStore(EntryStore other) {
+        addAll(other);
+    }
+
+    /**
+     * Makes a copy of the entries as they are now, to be read on another
+     * thread while this store keeps changing. This copies every entry;
+     * implementations share their arrays with the copy instead, and whichever
+     * of the two changes a shared array first copies it (copy-on-write).
+     */
+    EntryStore snapshot() {
+        EntryStore copy = new ListEntryStore();
+        copy.addAll(this);
+        return copy;
+    }
+
+    /**
+     * Lets go of what the store holds outside the heap, such as the file
+     * channel of a mapped store. A snapshot holds the file open until it is
+     * closed too. This does nothing for stores kept on the heap.
+     */
+    void close() {
+    }
+
+    /**
+     * @return the order that undoes permute(order)
+     */
+    static int[] invertOrder(int[] order) {
+        int[] inverse = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            inverse[order[i]] = i;
+        }
+        return inverse;
+    }
+
+    /**
+     * Estimates the heap memory held by the store, for the stats command and
+     * the metrics. Implementations keep a running count of the heap of their
+     * Strings, so this does not read the entries.
+     */
+    abstract long estimateHeapBytes();
+
+    /**
+     * Estimates the heap memory of a String of mostly Latin-1 text
+     */
+    static long estimateStringBytes(String dataLine) {
+        long bytes = STRING_OVERHEAD_BYTES + (long) dataLine.length() * BYTES_PER_CHAR;
+        return (bytes + 7) & ~7L;
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class indexes the entries by a 64-bit hash of their contents, to find
+ * an entry equal to a given one in O(1) without keeping a copy of it.
+ *
+ * An open addressing table with linear probing maps each hash to the id of
+ * the last entry added with it, and _nextIds chains that entry to the earlier
+ * ones with the same hash. A lookup reads the entries of its chain back from
+ * the store to rule out a collision, which with 64 bits is almost always the
+ * first one read. The table is kept at most half full with 12 bytes a slot,
+ * and the chains take 4 bytes an entry, however long the entries are.
+ *
+ * @author Wz
+ *
+ */
+class HashIndex extends EntryIndex {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NO_ID = -1;
+
+    private long[] _hashes;
+    // the last id with each hash, or NO_ID for an empty slot
+    private int[] _heads;
+    private int[] _nextIds;
+    private int _slotsUsed;
+
+    HashIndex() {
+        clearKeys();
+    }
+
+    /**
+     * Hashes the chars of an entry with FNV-1a, then mixes the bits with the
+     * finalizer of MurmurHash3 so that the low bits pick a slot well
+     */
+    static long hash(String dataLine) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < dataLine.length(); i++) {
+            hash = (hash ^ dataLine.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Finds an entry equal to the given one
+     *
+     * @param dataLines
+     *            - the entries the index was built from
+     * @return the 0-based position of the entry, or -1 if there is none
+     */
+    int find(String dataLine, List<String> dataLines) {
+        int slot = findSlot(hash(dataLine));
+        if (_heads[slot] == NO_ID) {
+            return -1;
+        }
+        for (int id = _heads[slot]; id != NO_ID; id = _nextIds[id]) {
+            int position = getPosition(id);
+            if (dataLines.get(position).equals(dataLine)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    void clearKeys() {
+        _hashes = new long[INITIAL_CAPACITY];
+        _heads = newSlots(INITIAL_CAPACITY);
+        _nextIds = new int[INITIAL_CAPACITY];
+        _slotsUsed = 0;
+    }
+
+    @Override
+    void addKeys(int id, String dataLine) {
+        if (id >= _nextIds.length) {
+            int[] grown = new int[Math.max(id + 1, _nextIds.length * 2)];
+            System.arraycopy(_nextIds, 0, grown, 0, _nextIds.length);
+            _nextIds = grown;
+        }
+        if ((_slotsUsed + 1) * 2 > _heads.length) {
+            resize(_heads.length * 2);
+        }
+        long hash = hash(dataLine);
+        int slot = findSlot(hash);
+        if (_heads[slot] == NO_ID) {
+            _hashes[slot] = hash;
+            _slotsUsed++;
+        }
+        _nextIds[id] = _heads[slot];
+        _heads[slot] = id;
+    }
+
+    @Override
+    void removeKeys(int id, String dataLine) {
+        int slot = findSlot(hash(dataLine));
+        if (_heads[slot] == id) {
+            _heads[slot] = _nextIds[id];
+        } else {
+            int previous = _heads[slot];
+            while (_nextIds[previous] != id) {
+                previous = _nextIds[previous];
+            }
+            _nextIds[previous] = _nextIds[id];
+        }
+        if (_heads[slot] == NO_ID) {
+            _slotsUsed--;
+            closeGap(slot);
+        }
+    }
+
+    @Override
+    void renumberIds(int[] newIds) {
+        int[] nextIds = new int[Math.max(INITIAL_CAPACITY, _nextIds.length)];
+        for (int slot = 0; slot < _heads.length; slot++) {
+            if (_heads[slot] == NO_ID) {
+                continue;
+            }
+            for (int id = _heads[slot]; id != NO_ID; id = _nextIds[id]) {
+                nextIds[newIds[id]] = (_nextIds[id] == NO_ID) ? NO_ID : newIds[_nextIds[id]];
+            }
+            _heads[slot] = newIds[_heads[slot]];
+        }
+        _nextIds = nextIds;
+    }
+
+    /**
+     * @return the slot holding a hash, or the empty slot where it would go
+     */
+    private int findSlot(long hash) {
+        int mask = _heads.length - 1;
+        int slot = (int) hash & mask;
+        while (_heads[slot] != NO_ID && _hashes[slot] != hash) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Moves later slots of the same probe run back over an emptied slot, so
+     * lookups need no tombstones
+     */
+    private void closeGap(int gap) {
+        int mask = _heads.length - 1;
+        int slot = (gap + 1) & mask;
+        while (_heads[slot] != NO_ID) {
+            int home = (int) _hashes[slot] & mask;
+            // the slot can move back if the gap is between its home and it
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                _hashes[gap] = _hashes[slot];
+                _heads[gap] = _heads[slot];
+                _heads[slot] = NO_ID;
+                gap = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] hashes = _hashes;
+        int[] heads = _heads;
+        _hashes = new long[capacity];
+        _heads = newSlots(capacity);
+        for (int slot = 0; slot < heads.length; slot++) {
+            if (heads[slot] != NO_ID) {
+                int newSlot = findSlot(hashes[slot]);
+                _hashes[newSlot] = hashes[slot];
+                _heads[newSlot] = heads[slot];
+            }
+        }
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, NO_ID);
+        return slots;
+    }
+}
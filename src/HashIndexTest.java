@@ -0,0 +1,84 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HashIndexTest {
+
+    @Test
+    public void matchesLinearSearchTest() {
+        ArrayList<String> lines = new ArrayList<String>();
+        HashIndex index = new HashIndex();
+        index.build(lines);
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            String line = "entry " + random.nextInt(3000);
+            lines.add(line);
+            index.entryAdded(lines.size() - 1, line);
+        }
+        // deletes empty some chains and slots, and force the ids to be compacted
+        for (int i = 0; i < 15000; i++) {
+            int position = random.nextInt(lines.size());
+            index.entryRemoved(position, lines.remove(position));
+        }
+
+        for (int i = 0; i < 3000; i++) {
+            String line = "entry " + i;
+            int position = index.find(line, lines);
+            if (lines.contains(line)) {
+                assertEquals(line, lines.get(position));
+            } else {
+                assertEquals(-1, position);
+            }
+        }
+    }
+
+    @Test
+    public void insertsInTheMiddleTest() {
+        ArrayList<String> lines = new ArrayList<String>();
+        HashIndex index = new HashIndex();
+        index.build(lines);
+        Random random = new Random(1);
+        // add --unique under --keep-sorted inserts in sorted position, so the
+        // index must be kept without being rebuilt
+        for (int i = 0; i < 20000; i++) {
+            if (lines.size() > 0 && random.nextInt(3) == 0) {
+                int position = random.nextInt(lines.size());
+                index.entryRemoved(position, lines.remove(position));
+            } else {
+                int position = random.nextInt(lines.size() + 1);
+                String line = "entry " + random.nextInt(3000);
+                lines.add(position, line);
+                index.entryAdded(position, line);
+            }
+        }
+        assertFalse(index.isStale());
+
+        for (int i = 0; i < 3000; i++) {
+            String line = "entry " + i;
+            int position = index.find(line, lines);
+            if (lines.contains(line)) {
+                assertEquals(line, lines.get(position));
+            } else {
+                assertEquals(-1, position);
+            }
+        }
+    }
+
+    @Test
+    public void verifiesEntriesTest() {
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add("first");
+        lines.add("second");
+        HashIndex index = new HashIndex();
+        index.build(lines);
+        assertEquals(1, index.find("second", lines));
+
+        // an entry with the same hash but other contents is not a match
+        lines.set(1, "changed");
+        assertEquals(-1, index.find("second", lines));
+        assertNotEquals(HashIndex.hash("second"), HashIndex.hash("Second"));
+    }
+}
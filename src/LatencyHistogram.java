@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts durations in log-linear buckets, the way HdrHistogram
+ * does. Each power of two is split into SUB_BUCKET_COUNT buckets, so a
+ * percentile is accurate to about 3% from a nanosecond up to hours, in a
+ * fixed array of counters.
+ *
+ * Recording is a few arithmetic steps and one atomic increment, without
+ * locks or allocation, so it can be left on and used from several threads.
+ *
+ * @author Wz
+ *
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder _totalCount = new LongAdder();
+    private final LongAdder _totalNanos = new LongAdder();
+    private final AtomicLong _maxNanos = new AtomicLong();
+
+    void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    /**
+     * Records count durations of the same length
+     */
+    void record(long nanos, long count) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        _counts.addAndGet(getBucket(nanos), count);
+        _totalCount.add(count);
+        _totalNanos.add(nanos * count);
+        long max = _maxNanos.get();
+        while (nanos > max && !_maxNanos.compareAndSet(max, nanos)) {
+            max = _maxNanos.get();
+        }
+    }
+
+    long getCount() {
+        return _totalCount.sum();
+    }
+
+    long getMaxNanos() {
+        return _maxNanos.get();
+    }
+
+    double getMeanNanos() {
+        long count = getCount();
+        return (count == 0) ? 0 : (double) _totalNanos.sum() / count;
+    }
+
+    /**
+     * @param percentile
+     *            - from 0 to 100
+     * @return the highest duration in the bucket holding the percentile, or
+     *         0 if nothing was recorded
+     */
+    long getPercentileNanos(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += _counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(getBucketHighest(bucket), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    static int getBucket(long nanos) {
+        if (nanos < SUB_BUCKET_COUNT) {
+            return (int) nanos;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(nanos);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        int subBucket = (int) (nanos >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long getBucketHighest(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKET_COUNT - 1;
+        long lowest = (long) (SUB_BUCKET_COUNT + bucket % SUB_BUCKET_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
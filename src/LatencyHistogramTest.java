@@ -0,0 +1,36 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketBoundsTest() {
+        long[] values = { 0, 1, 31, 32, 33, 63, 64, 65, 1000, 123456789, Long.MAX_VALUE };
+        for (long value : values) {
+            int bucket = LatencyHistogram.getBucket(value);
+            assertTrue(value <= LatencyHistogram.getBucketHighest(bucket));
+            if (bucket > 0) {
+                assertTrue(value > LatencyHistogram.getBucketHighest(bucket - 1));
+            }
+            // each bucket is at most about 3% wide
+            assertTrue(LatencyHistogram.getBucketHighest(bucket) - value <= value / 32 + 1);
+        }
+    }
+
+    @Test
+    public void percentileTest() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileNanos(99));
+        for (long nanos = 1; nanos <= 1000; nanos++) {
+            histogram.record(nanos * 1000);
+        }
+        histogram.record(5000000, 10);
+
+        assertEquals(1010, histogram.getCount());
+        assertEquals(5000000, histogram.getMaxNanos());
+        long median = histogram.getPercentileNanos(50);
+        assertTrue(median >= 505000 && median <= 505000 * 33 / 32);
+        assertEquals(5000000, histogram.getPercentileNanos(100));
+    }
+}
@@ -0,0 +1,359 @@
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * This class stores each entry as a String in a list of blocks of at most
+ * MAX_BLOCK_SIZE entries, so inserting or deleting an entry only shifts the
+ * entries of one block instead of every later entry of the file.
+ *
+ * The first position of each block is kept in an array, which finds the
+ * block of a position by binary search and is updated for the later blocks
+ * on each insert or delete. With n entries, an insert or delete costs about
+ * MAX_BLOCK_SIZE + n / MAX_BLOCK_SIZE steps and a get costs O(log n).
+ *
+ * A snapshot copies only the array of blocks and shares the blocks. A block
+ * that is shared is copied before its first change, so a change after a
+ * snapshot costs one block copy more.
+ *
+ * @author Wz
+ *
+ */
+class ListEntryStore extends EntryStore {
+    static final int MAX_BLOCK_SIZE = 2048;
+    private static final int FILLED_BLOCK_SIZE = MAX_BLOCK_SIZE / 2;
+    private static final int MIN_BLOCK_SIZE = MAX_BLOCK_SIZE / 4;
+
+    private String[][] _blocks = new String[0][];
+    // _blockStarts[i] is the position of the first entry of block i, and
+    // _blockStarts[_blockCount] is the size
+    private int[] _blockStarts = new int[1];
+    private int _blockCount = 0;
+    // _isBlockShared[i] is true if block i is also in a snapshot
+    private boolean[] _isBlockShared = new boolean[0];
+    // the estimated heap of the Strings held, kept up to date by each change
+    private long _stringBytes = 0;
+
+    @Override
+    public String get(int index) {
+        checkIndex(index);
+        int block = findBlock(index);
+        return _blocks[block][index - _blockStarts[block]];
+    }
+
+    @Override
+    public String set(int index, String dataLine) {
+        checkIndex(index);
+        int block = findBlock(index);
+        int offset = index - _blockStarts[block];
+        String[] entries = ownBlock(block);
+        String previous = entries[offset];
+        entries[offset] = dataLine;
+        _stringBytes += estimateStringBytes(dataLine) - estimateStringBytes(previous);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, String dataLine) {
+        int size = size();
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        if (_blockCount == 0 || (index == size && getBlockSize(_blockCount - 1) == MAX_BLOCK_SIZE)) {
+            // appends fill a new block instead of splitting the last one
+            insertBlock(_blockCount, new String[MAX_BLOCK_SIZE], size);
+        }
+        int block = (index == size) ? _blockCount - 1 : findBlock(index);
+        if (getBlockSize(block) == MAX_BLOCK_SIZE) {
+            splitBlock(block);
+            if (index >= _blockStarts[block + 1]) {
+                block++;
+            }
+        }
+        int offset = index - _blockStarts[block];
+        String[] entries = ownBlock(block);
+        System.arraycopy(entries, offset, entries, offset + 1, getBlockSize(block) - offset);
+        entries[offset] = dataLine;
+        _stringBytes += estimateStringBytes(dataLine);
+        shiftBlockStarts(block + 1, 1);
+        modCount++;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends String> dataLines) {
+        for (String dataLine : dataLines) {
+            if (_blockCount == 0 || getBlockSize(_blockCount - 1) == MAX_BLOCK_SIZE) {
+                insertBlock(_blockCount, new String[MAX_BLOCK_SIZE], size());
+            }
+            int block = _blockCount - 1;
+            ownBlock(block)[getBlockSize(block)] = dataLine;
+            _blockStarts[_blockCount]++;
+            _stringBytes += estimateStringBytes(dataLine);
+        }
+        modCount++;
+        return !dataLines.isEmpty();
+    }
+
+    @Override
+    public String remove(int index) {
+        checkIndex(index);
+        int block = findBlock(index);
+        int offset = index - _blockStarts[block];
+        String[] entries = ownBlock(block);
+        String removed = entries[offset];
+        _stringBytes -= estimateStringBytes(removed);
+        int blockSize = getBlockSize(block);
+        System.arraycopy(entries, offset + 1, entries, offset, blockSize - offset - 1);
+        entries[blockSize - 1] = null;
+        shiftBlockStarts(block + 1, -1);
+        mergeIfSmall(block);
+        modCount++;
+        return removed;
+    }
+
+    /**
+     * Removes the entries in [fromIndex, toIndex) by trimming the first and
+     * last blocks of the range and dropping the blocks in between, then
+     * renumbering the later blocks once
+     */
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex) {
+            return;
+        }
+        int removedCount = toIndex - fromIndex;
+        subtractStringBytes(fromIndex, toIndex);
+        int firstBlock = findBlock(fromIndex);
+        int lastBlock = findBlock(toIndex - 1);
+        int firstOffset = fromIndex - _blockStarts[firstBlock];
+        int lastEnd = toIndex - _blockStarts[lastBlock];
+
+        if (firstBlock == lastBlock) {
+            String[] entries = ownBlock(firstBlock);
+            int blockSize = getBlockSize(firstBlock);
+            System.arraycopy(entries, lastEnd, entries, firstOffset, blockSize - lastEnd);
+            Arrays.fill(entries, blockSize - removedCount, blockSize, null);
+            shiftBlockStarts(firstBlock + 1, -removedCount);
+            mergeIfSmall(firstBlock);
+        } else {
+            // keep the head of the first block and the tail of the last one
+            String[] lastEntries = ownBlock(lastBlock);
+            int lastBlockSize = getBlockSize(lastBlock);
+            System.arraycopy(lastEntries, lastEnd, lastEntries, 0, lastBlockSize - lastEnd);
+            Arrays.fill(lastEntries, lastBlockSize - lastEnd, lastBlockSize, null);
+            Arrays.fill(ownBlock(firstBlock), firstOffset, getBlockSize(firstBlock), null);
+
+            int removedBlocks = lastBlock - firstBlock - 1;
+            System.arraycopy(_blocks, lastBlock, _blocks, firstBlock + 1, _blockCount - lastBlock);
+            System.arraycopy(_isBlockShared, lastBlock, _isBlockShared, firstBlock + 1,
+                    _blockCount - lastBlock);
+            System.arraycopy(_blockStarts, lastBlock, _blockStarts, firstBlock + 1,
+                    _blockCount - lastBlock + 1);
+            _blockCount -= removedBlocks;
+            Arrays.fill(_blocks, _blockCount, _blockCount + removedBlocks, null);
+            _blockStarts[firstBlock + 1] = fromIndex;
+            shiftBlockStarts(firstBlock + 2, -removedCount);
+
+            mergeIfSmall(firstBlock + 1);
+            mergeIfSmall(firstBlock);
+        }
+        modCount++;
+    }
+
+    @Override
+    public void clear() {
+        _blocks = new String[0][];
+        _blockStarts = new int[1];
+        _blockCount = 0;
+        _isBlockShared = new boolean[0];
+        _stringBytes = 0;
+        modCount++;
+    }
+
+    /**
+     * Moves the entries into one array in their new order, then refills the
+     * blocks half full so that later inserts do not split them straight away
+     */
+    @Override
+    void permute(int[] order) {
+        String[] current = toArray(new String[size()]);
+        String[] dataLines = new String[current.length];
+        for (int i = 0; i < order.length; i++) {
+            dataLines[i] = current[order[i]];
+        }
+        long stringBytes = _stringBytes;
+        clear();
+        _stringBytes = stringBytes;
+        for (int start = 0; start < dataLines.length; start += FILLED_BLOCK_SIZE) {
+            int length = Math.min(FILLED_BLOCK_SIZE, dataLines.length - start);
+            String[] entries = new String[MAX_BLOCK_SIZE];
+            System.arraycopy(dataLines, start, entries, 0, length);
+            insertBlock(_blockCount, entries, start);
+            _blockStarts[_blockCount] = start + length;
+        }
+    }
+
+    /**
+     * Appends the blocks of another list store as they are, without copying
+     * their entries
+     */
+    @Override
+    void appendStore(EntryStore other) {
+        if (!(other instanceof ListEntryStore)) {
+            super.appendStore(other);
+            return;
+        }
+        ListEntryStore list = (ListEntryStore) other;
+        for (int block = 0; block < list._blockCount; block++) {
+            int size = size();
+            insertBlock(_blockCount, list._blocks[block], size);
+            _blockStarts[_blockCount] = size + list.getBlockSize(block);
+            _isBlockShared[_blockCount - 1] = list._isBlockShared[block];
+        }
+        _stringBytes += list._stringBytes;
+        modCount++;
+    }
+
+    /**
+     * Shares every block with the snapshot, which gets its own array of
+     * blocks. Both sides copy a block before changing it.
+     */
+    @Override
+    EntryStore snapshot() {
+        ListEntryStore copy = new ListEntryStore();
+        copy._blocks = Arrays.copyOf(_blocks, _blockCount);
+        copy._blockStarts = Arrays.copyOf(_blockStarts, _blockCount + 1);
+        copy._blockCount = _blockCount;
+        copy._isBlockShared = new boolean[_blockCount];
+        Arrays.fill(copy._isBlockShared, true);
+        Arrays.fill(_isBlockShared, 0, _blockCount, true);
+        copy._stringBytes = _stringBytes;
+        return copy;
+    }
+
+    @Override
+    long estimateHeapBytes() {
+        return 16 + (long) _blocks.length * 4 + 16 + (long) _blockStarts.length * 4
+                + _blockCount * (16 + (long) MAX_BLOCK_SIZE * 4) + _stringBytes;
+    }
+
+    @Override
+    public int size() {
+        return _blockStarts[_blockCount];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+    }
+
+    private int getBlockSize(int block) {
+        return _blockStarts[block + 1] - _blockStarts[block];
+    }
+
+    /**
+     * @return the last block starting at or before a position
+     */
+    private int findBlock(int index) {
+        int low = 0;
+        int high = _blockCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (_blockStarts[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the entries of a block, copied first if a snapshot shares them
+     */
+    private String[] ownBlock(int block) {
+        if (_isBlockShared[block]) {
+            _blocks[block] = _blocks[block].clone();
+            _isBlockShared[block] = false;
+        }
+        return _blocks[block];
+    }
+
+    private void subtractStringBytes(int fromIndex, int toIndex) {
+        int block = findBlock(fromIndex);
+        for (int index = fromIndex; index < toIndex; block++) {
+            String[] entries = _blocks[block];
+            int end = Math.min(toIndex, _blockStarts[block + 1]);
+            for (; index < end; index++) {
+                _stringBytes -= estimateStringBytes(entries[index - _blockStarts[block]]);
+            }
+        }
+    }
+
+    private void shiftBlockStarts(int fromBlock, int delta) {
+        for (int i = fromBlock; i <= _blockCount; i++) {
+            _blockStarts[i] += delta;
+        }
+    }
+
+    /**
+     * Inserts a block holding no entries yet at a given block number
+     *
+     * @param start
+     *            - the position of the first entry of the block
+     */
+    private void insertBlock(int block, String[] entries, int start) {
+        if (_blockCount == _blocks.length) {
+            int capacity = Math.max(4, _blockCount * 2);
+            _blocks = Arrays.copyOf(_blocks, capacity);
+            _blockStarts = Arrays.copyOf(_blockStarts, capacity + 1);
+            _isBlockShared = Arrays.copyOf(_isBlockShared, capacity);
+        }
+        System.arraycopy(_blocks, block, _blocks, block + 1, _blockCount - block);
+        System.arraycopy(_blockStarts, block, _blockStarts, block + 1, _blockCount - block + 1);
+        System.arraycopy(_isBlockShared, block, _isBlockShared, block + 1, _blockCount - block);
+        _blocks[block] = entries;
+        _isBlockShared[block] = false;
+        _blockStarts[block] = start;
+        _blockCount++;
+    }
+
+    private void removeBlock(int block) {
+        System.arraycopy(_blocks, block + 1, _blocks, block, _blockCount - block - 1);
+        System.arraycopy(_blockStarts, block + 1, _blockStarts, block, _blockCount - block);
+        System.arraycopy(_isBlockShared, block + 1, _isBlockShared, block, _blockCount - block - 1);
+        _blockCount--;
+        _blocks[_blockCount] = null;
+    }
+
+    private void splitBlock(int block) {
+        String[] entries = ownBlock(block);
+        int half = getBlockSize(block) / 2;
+        String[] secondHalf = new String[MAX_BLOCK_SIZE];
+        System.arraycopy(entries, half, secondHalf, 0, MAX_BLOCK_SIZE - half);
+        Arrays.fill(entries, half, MAX_BLOCK_SIZE, null);
+        insertBlock(block + 1, secondHalf, _blockStarts[block] + half);
+    }
+
+    /**
+     * Drops an empty block, and moves the entries of a block with few entries
+     * left into the next block when they fit
+     */
+    private void mergeIfSmall(int block) {
+        if (block >= _blockCount) {
+            return;
+        }
+        int blockSize = getBlockSize(block);
+        if (blockSize == 0) {
+            removeBlock(block);
+        } else if (blockSize < MIN_BLOCK_SIZE && block + 1 < _blockCount
+                && blockSize + getBlockSize(block + 1) <= MAX_BLOCK_SIZE) {
+            String[] next = ownBlock(block + 1);
+            int nextSize = getBlockSize(block + 1);
+            System.arraycopy(next, 0, next, blockSize, nextSize);
+            System.arraycopy(_blocks[block], 0, next, 0, blockSize);
+            _blockStarts[block + 1] = _blockStarts[block];
+            removeBlock(block);
+        }
+    }
+}
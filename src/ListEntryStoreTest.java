@@ -0,0 +1,89 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ListEntryStoreTest {
+
+    @Test
+    public void matchesArrayListTest() {
+        ListEntryStore store = new ListEntryStore();
+        ArrayList<String> expected = new ArrayList<String>();
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            String dataLine = "entry " + i;
+            int index = random.nextInt(expected.size() + 1);
+            store.add(index, dataLine);
+            expected.add(index, dataLine);
+        }
+        // deletes spread over many blocks split and merge them
+        for (int i = 0; i < 15000; i++) {
+            int index = random.nextInt(expected.size());
+            assertEquals(expected.remove(index), store.remove(index));
+        }
+        assertEquals(expected, store);
+
+        store.set(0, "first");
+        expected.set(0, "first");
+        store.sort(String.CASE_INSENSITIVE_ORDER);
+        expected.sort(String.CASE_INSENSITIVE_ORDER);
+        assertEquals(expected, store);
+    }
+
+    @Test
+    public void removeRangeTest() {
+        ListEntryStore store = new ListEntryStore();
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            store.add("entry " + i);
+            expected.add("entry " + i);
+        }
+
+        // within one block, across many blocks, and up to the end
+        store.subList(10, 20).clear();
+        expected.subList(10, 20).clear();
+        store.subList(100, 7000).clear();
+        expected.subList(100, 7000).clear();
+        store.subList(2000, store.size()).clear();
+        expected.subList(2000, expected.size()).clear();
+        assertEquals(expected, store);
+
+        store.add(150, "inserted");
+        expected.add(150, "inserted");
+        assertEquals(expected, store);
+
+        store.subList(0, store.size()).clear();
+        assertTrue(store.isEmpty());
+        store.add("again");
+        assertEquals("again", store.get(0));
+    }
+
+    @Test
+    public void snapshotTest() {
+        ListEntryStore store = new ListEntryStore();
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            store.add("entry " + i);
+            expected.add("entry " + i);
+        }
+        EntryStore snapshot = store.snapshot();
+
+        // changes to either side after the snapshot do not show in the other
+        Random random = new Random(1);
+        for (int i = 0; i < 3000; i++) {
+            store.add(random.nextInt(store.size() + 1), "added " + i);
+            store.remove(random.nextInt(store.size()));
+        }
+        store.set(0, "first");
+        store.subList(100, 5000).clear();
+        assertEquals(expected, snapshot);
+
+        ArrayList<String> changed = new ArrayList<String>(store);
+        snapshot.set(1, "changed");
+        snapshot.add(2, "inserted");
+        snapshot.sort(String.CASE_INSENSITIVE_ORDER);
+        assertEquals(changed, store);
+    }
+}
@@ -0,0 +1,368 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * This class stores the lines of a file that is memory-mapped instead of
+ * read. Loading only scans the file for line breaks and keeps the offset
+ * where each line starts; a line is decoded into a String each time it is
+ * read, and the String is not kept.
+ *
+ * Lines that are added or replaced are kept as Strings. Lines are split the
+ * same way as BufferedReader.readLine, on "\n", "\r" or "\r\n".
+ *
+ * The file is mapped in segments of at most SEGMENT_SIZE bytes, and the few
+ * lines that cross a segment boundary are read through the channel instead.
+ *
+ * A snapshot shares the mapped file and the line table, and the table is
+ * copied before its first change. The file stays open until the store and
+ * every snapshot of it are closed.
+ *
+ * @author Wz
+ *
+ */
+class MappedEntryStore extends EntryStore {
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long NOT_MAPPED = -1;
+
+    private final SharedChannel _channel;
+    private final MappedByteBuffer[] _segments;
+    private final long _fileSize;
+    private final Charset _charset;
+
+    private long[] _offsets = new long[INITIAL_CAPACITY];
+    private String[] _strings = new String[INITIAL_CAPACITY];
+    private int _size = 0;
+    private boolean _isTableShared = false;
+    private boolean _isClosed = false;
+    // the estimated heap of the lines kept as Strings
+    private long _stringBytes = 0;
+
+    /**
+     * Maps a file and indexes the start of each line
+     *
+     * @param fileName
+     *            - the file to map
+     * @param charset
+     *            - the charset of the file, which must encode '\n' and '\r' as
+     *            single bytes the way ASCII does
+     */
+    MappedEntryStore(String fileName, Charset charset) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        _channel = new SharedChannel(channel);
+        _charset = charset;
+        try {
+            _fileSize = channel.size();
+            int segmentCount = (int) ((_fileSize + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+            _segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                long length = Math.min(SEGMENT_SIZE, _fileSize - start);
+                _segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        indexLines();
+    }
+
+    /**
+     * Creates an empty store reading from the same mapped file as another,
+     * which holds the file open until this store is closed too
+     */
+    private MappedEntryStore(MappedEntryStore source) {
+        _channel = source._channel;
+        _channel.hold();
+        _segments = source._segments;
+        _fileSize = source._fileSize;
+        _charset = source._charset;
+    }
+
+    /**
+     * Checks if lines of a file in this charset can be found by looking for
+     * the bytes of '\n' and '\r'
+     */
+    static boolean canMap(Charset charset) {
+        return charset.newEncoder().maxBytesPerChar() == 1
+                || charset.name().equals("UTF-8");
+    }
+
+    private void indexLines() {
+        boolean isAtLineStart = true;
+        boolean isAfterCarriageReturn = false;
+        for (int s = 0; s < _segments.length; s++) {
+            MappedByteBuffer segment = _segments[s];
+            long segmentStart = (long) s << SEGMENT_SHIFT;
+            int limit = segment.limit();
+            for (int i = 0; i < limit; i++) {
+                byte b = segment.get(i);
+                if (isAfterCarriageReturn) {
+                    isAfterCarriageReturn = false;
+                    if (b == '\n') {
+                        continue;
+                    }
+                }
+                if (isAtLineStart) {
+                    appendOffset(segmentStart + i);
+                    isAtLineStart = false;
+                }
+                if (b == '\n') {
+                    isAtLineStart = true;
+                } else if (b == '\r') {
+                    isAtLineStart = true;
+                    isAfterCarriageReturn = true;
+                }
+            }
+        }
+    }
+
+    private void appendOffset(long offset) {
+        ensureCapacity(_size + 1);
+        _offsets[_size] = offset;
+        _strings[_size] = null;
+        _size++;
+    }
+
+    private long findLineEnd(long start) {
+        long position = start;
+        while (position < _fileSize) {
+            byte b = byteAt(position);
+            if (b == '\n' || b == '\r') {
+                break;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    private byte byteAt(long position) {
+        MappedByteBuffer segment = _segments[(int) (position >>> SEGMENT_SHIFT)];
+        return segment.get((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    private String decodeLine(long start) {
+        long end = findLineEnd(start);
+        int length = (int) (end - start);
+        byte[] bytes = new byte[length];
+        int segmentIndex = (int) (start >>> SEGMENT_SHIFT);
+
+        if (segmentIndex == (int) ((end - 1) >>> SEGMENT_SHIFT) || length == 0) {
+            ByteBuffer segment = _segments[segmentIndex].duplicate();
+            segment.position((int) (start & (SEGMENT_SIZE - 1)));
+            segment.get(bytes);
+        } else {
+            readAcrossSegments(start, bytes);
+        }
+        return new String(bytes, _charset);
+    }
+
+    private void readAcrossSegments(long start, byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            while (buffer.hasRemaining()) {
+                _channel.getChannel().read(buffer, start + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies the line table before its first change since a snapshot shared
+     * it
+     */
+    private void ownTable() {
+        if (_isTableShared) {
+            _offsets = _offsets.clone();
+            _strings = _strings.clone();
+            _isTableShared = false;
+        }
+    }
+
+    private void subtractStringBytes(int fromIndex, int toIndex) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            if (_strings[i] != null) {
+                _stringBytes -= estimateStringBytes(_strings[i]);
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= _offsets.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, _offsets.length + (_offsets.length >> 1));
+        long[] offsets = new long[newCapacity];
+        String[] strings = new String[newCapacity];
+        System.arraycopy(_offsets, 0, offsets, 0, _size);
+        System.arraycopy(_strings, 0, strings, 0, _size);
+        _offsets = offsets;
+        _strings = strings;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= _size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _size);
+        }
+    }
+
+    @Override
+    public String get(int index) {
+        checkIndex(index);
+        if (_offsets[index] == NOT_MAPPED) {
+            return _strings[index];
+        }
+        return decodeLine(_offsets[index]);
+    }
+
+    @Override
+    void writeEntry(int index, OutputSink sink) {
+        checkIndex(index);
+        long start = _offsets[index];
+        if (start == NOT_MAPPED || !sink.getCharset().equals(_charset)) {
+            super.writeEntry(index, sink);
+            return;
+        }
+        long end = findLineEnd(start);
+        int segmentIndex = (int) (start >>> SEGMENT_SHIFT);
+        if (end == start || segmentIndex == (int) ((end - 1) >>> SEGMENT_SHIFT)) {
+            ByteBuffer segment = _segments[segmentIndex].duplicate();
+            int segmentOffset = (int) (start & (SEGMENT_SIZE - 1));
+            segment.limit(segmentOffset + (int) (end - start));
+            segment.position(segmentOffset);
+            sink.write(segment);
+        } else {
+            super.writeEntry(index, sink);
+        }
+    }
+
+    @Override
+    public String set(int index, String dataLine) {
+        String previous = get(index);
+        ownTable();
+        subtractStringBytes(index, index + 1);
+        _offsets[index] = NOT_MAPPED;
+        _strings[index] = dataLine;
+        _stringBytes += estimateStringBytes(dataLine);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, String dataLine) {
+        if (index < 0 || index > _size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _size);
+        }
+        ownTable();
+        ensureCapacity(_size + 1);
+        System.arraycopy(_offsets, index, _offsets, index + 1, _size - index);
+        System.arraycopy(_strings, index, _strings, index + 1, _size - index);
+        _offsets[index] = NOT_MAPPED;
+        _strings[index] = dataLine;
+        _stringBytes += estimateStringBytes(dataLine);
+        _size++;
+        modCount++;
+    }
+
+    @Override
+    public String remove(int index) {
+        String removed = get(index);
+        ownTable();
+        subtractStringBytes(index, index + 1);
+        System.arraycopy(_offsets, index + 1, _offsets, index, _size - index - 1);
+        System.arraycopy(_strings, index + 1, _strings, index, _size - index - 1);
+        _size--;
+        _strings[_size] = null;
+        modCount++;
+        return removed;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        ownTable();
+        subtractStringBytes(fromIndex, toIndex);
+        System.arraycopy(_offsets, toIndex, _offsets, fromIndex, _size - toIndex);
+        System.arraycopy(_strings, toIndex, _strings, fromIndex, _size - toIndex);
+        int newSize = _size - (toIndex - fromIndex);
+        Arrays.fill(_strings, newSize, _size, null);
+        _size = newSize;
+        modCount++;
+    }
+
+    @Override
+    public void clear() {
+        _offsets = new long[INITIAL_CAPACITY];
+        _strings = new String[INITIAL_CAPACITY];
+        _isTableShared = false;
+        _stringBytes = 0;
+        _size = 0;
+        modCount++;
+    }
+
+    /**
+     * Reorders the line table, so entries that are still in the file stay
+     * mapped instead of being decoded into Strings
+     */
+    @Override
+    void permute(int[] order) {
+        long[] offsets = new long[_offsets.length];
+        String[] strings = new String[_strings.length];
+        for (int i = 0; i < _size; i++) {
+            offsets[i] = _offsets[order[i]];
+            strings[i] = _strings[order[i]];
+        }
+        _offsets = offsets;
+        _strings = strings;
+        _isTableShared = false;
+        modCount++;
+    }
+
+    @Override
+    EntryStore snapshot() {
+        MappedEntryStore copy = new MappedEntryStore(this);
+        copy._offsets = _offsets;
+        copy._strings = _strings;
+        copy._size = _size;
+        copy._stringBytes = _stringBytes;
+        copy._isTableShared = true;
+        _isTableShared = true;
+        return copy;
+    }
+
+    /**
+     * Closes the mapped file once no snapshot of the store reads it. The
+     * mapping itself is released when the segments are collected.
+     */
+    @Override
+    void close() {
+        if (!_isClosed) {
+            _isClosed = true;
+            _channel.release();
+        }
+    }
+
+    boolean isOpen() {
+        return _channel.getChannel().isOpen();
+    }
+
+    /**
+     * Counts the line table and the added lines. The mapped file is not on
+     * the heap.
+     */
+    @Override
+    long estimateHeapBytes() {
+        return 16 + (long) _offsets.length * 8 + 16 + (long) _strings.length * 4 + _stringBytes;
+    }
+
+    @Override
+    public int size() {
+        return _size;
+    }
+}
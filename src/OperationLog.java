@@ -0,0 +1,577 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * This class keeps an append-only log of the changes made to a data file, so
+ * that a crash does not lose the session and the data file does not have to
+ * be rewritten for every change.
+ *
+ * Each change is one line in "<data file>.log". Changes are written and
+ * fsynced by a background thread in batches (group commit): the records
+ * queued while one batch is being forced to disk go out together in the
+ * next, with one force for all of them. A command that changes the entries
+ * waits with awaitDurable until its records are on disk before it reports
+ * the change, and it waits without holding the lock of its TextBuddy, so
+ * the commands of other sessions can queue records for the same batch.
+ *
+ * Once the log grows past the size of the data file, it is renamed to
+ * "<data file>.log.old" and folded back into the data file on another thread
+ * while new changes go to a fresh log.
+ *
+ * Folding writes the snapshot to a temporary file, then appends a "k <crc>"
+ * record with the checksum of that snapshot to every log being folded before
+ * renaming the snapshot over the data file. On replay, a log ending in a "k"
+ * record whose checksum matches the data file is already part of it and is
+ * skipped, so a crash between the rename and the deletion of the logs does
+ * not apply the same changes twice.
+ *
+ * The log also tracks how many leading entries are unchanged since the data
+ * file was last loaded or folded. A fold copies the bytes of those lines
+ * from the old data file and only writes the entries after them.
+ *
+ * @author Wz
+ *
+ */
+class OperationLog {
+    static final String LOG_SUFFIX = ".log";
+    static final String OLD_LOG_SUFFIX = ".log.old";
+    static final String SNAPSHOT_SUFFIX = ".tmp";
+
+    private static final char RECORD_ADD = 'a';
+    private static final char RECORD_INSERT = 'i';
+    private static final char RECORD_DELETE = 'd';
+    private static final char RECORD_CLEAR = 'c';
+    private static final char RECORD_SORT = 's';
+    private static final char RECORD_FOLDED = 'k';
+
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private final File _dataFile;
+    private final File _logFile;
+    private final File _oldLogFile;
+
+    private FileChannel _channel;
+    private Thread _flusher;
+    private Thread _compactor;
+    private ByteArrayOutputStream _pending = new ByteArrayOutputStream();
+    private long _appendedBytes = 0;
+    private long _durableBytes = 0;
+    private long _logSize = 0;
+    private boolean _isClosing = false;
+    // a background fold stopped on a damaged binary snapshot, and left the
+    // old log to be folded by the next checkpoint
+    private boolean _isFoldFailed = false;
+    // the number of leading entries that are the same as the first lines of
+    // the data file, and the layout of the data file if this log wrote it
+    private int _cleanCount = 0;
+    private DataSnapshot _dataSnapshot = null;
+
+    OperationLog(String dataFileName) {
+        _dataFile = new File(dataFileName);
+        _logFile = new File(dataFileName + LOG_SUFFIX);
+        _oldLogFile = new File(dataFileName + OLD_LOG_SUFFIX);
+        _logSize = _logFile.length();
+    }
+
+    /**
+     * Checks if a previous session left changes in a log that are not yet
+     * folded into the data file
+     */
+    boolean hasPendingLogs() {
+        return _logFile.exists() || _oldLogFile.exists();
+    }
+
+    synchronized void logAdd(String dataLine) {
+        append(RECORD_ADD + " " + escape(dataLine));
+    }
+
+    /**
+     * Queues an add record for each entry in one batch
+     */
+    synchronized void logAdds(List<String> dataLines) {
+        if (dataLines.isEmpty()) {
+            return;
+        }
+        StringBuilder records = new StringBuilder();
+        for (String dataLine : dataLines) {
+            records.append(RECORD_ADD).append(' ').append(escape(dataLine)).append('\n');
+        }
+        records.setLength(records.length() - 1);
+        append(records.toString());
+    }
+
+    synchronized void logInsert(int lineIndex, String dataLine) {
+        markChangedFrom(lineIndex);
+        append(RECORD_INSERT + " " + lineIndex + " " + escape(dataLine));
+    }
+
+    synchronized void logDelete(int lineIndex) {
+        markChangedFrom(lineIndex);
+        append(RECORD_DELETE + " " + lineIndex);
+    }
+
+    /**
+     * Logs the deletion of count entries starting at lineIndex as one record
+     */
+    synchronized void logDeleteRange(int lineIndex, int count) {
+        markChangedFrom(lineIndex);
+        append(RECORD_DELETE + " " + lineIndex + " " + count);
+    }
+
+    synchronized void logClear() {
+        markChangedFrom(0);
+        append(String.valueOf(RECORD_CLEAR));
+    }
+
+    synchronized void logSort() {
+        markChangedFrom(0);
+        append(String.valueOf(RECORD_SORT));
+    }
+
+    /**
+     * Records that the entries are the lines of the data file as it was
+     * loaded, so the next fold only has to write what changes after this
+     */
+    synchronized void setLoadedLineCount(int lineCount) {
+        _cleanCount = lineCount;
+    }
+
+    /**
+     * @return the number of leading entries that are the same as the first
+     *         lines of the data file, or 0 while a compaction is replacing the
+     *         data file
+     */
+    synchronized int getCleanCount() {
+        return (_compactor == null) ? _cleanCount : 0;
+    }
+
+    private void markChangedFrom(int lineIndex) {
+        _cleanCount = Math.min(_cleanCount, lineIndex);
+    }
+
+    /**
+     * Checks if changes were logged that are not folded into the data file
+     * yet, or are being folded now
+     */
+    synchronized boolean hasChanges() {
+        return _logSize > 0 || _compactor != null || _isFoldFailed;
+    }
+
+    /**
+     * Checks if a background fold stopped because a block of the binary
+     * snapshot it was reading from did not match its checksum
+     */
+    synchronized boolean hasFailedFold() {
+        return _isFoldFailed;
+    }
+
+    /**
+     * Blocks until every change logged so far is on disk
+     */
+    synchronized void sync() {
+        awaitDurable(_appendedBytes);
+    }
+
+    /**
+     * @return the end of the records logged so far, to be given to
+     *         awaitDurable
+     */
+    synchronized long getAppendedBytes() {
+        return _appendedBytes;
+    }
+
+    /**
+     * Blocks until the records logged up to an end returned by
+     * getAppendedBytes are on disk. Records logged later do not hold it up.
+     */
+    synchronized void awaitDurable(long appendedBytes) {
+        while (_durableBytes < appendedBytes) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks if the log has grown big enough that replaying it would cost more
+     * than reading the data file again
+     */
+    synchronized boolean needsCompaction() {
+        return _compactor == null && _logSize >= MIN_COMPACTION_BYTES
+                && _logSize >= _dataFile.length();
+    }
+
+    synchronized boolean isCompacting() {
+        return _compactor != null;
+    }
+
+    /**
+     * Blocks until a background compaction that is running has finished
+     */
+    synchronized void awaitCompaction() {
+        while (_compactor != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts folding the current log into the data file on a background
+     * thread. Changes made after this call go to a new log. Nothing is
+     * started while the log of a failed fold is still to be folded.
+     *
+     * @param dataLines
+     *            - a snapshot of the entries as of the last logged change,
+     *            which is closed once it is written, or at once if nothing is
+     *            started
+     * @param afterFold
+     *            - run on the same thread once the data file is written, or
+     *            null
+     */
+    synchronized void compactInBackground(final EntryStore dataLines,
+            final Runnable afterFold) {
+        if (_compactor != null || _isFoldFailed) {
+            dataLines.close();
+            return;
+        }
+        try {
+            closeChannel();
+            Files.move(_logFile.toPath(), _oldLogFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            _logSize = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        final int cleanCount = _cleanCount;
+        final DataSnapshot previous = _dataSnapshot;
+        _cleanCount = dataLines.size();
+        _dataSnapshot = null;
+        _compactor = new Thread(new Runnable() {
+            public void run() {
+                DataSnapshot snapshot = null;
+                boolean isFoldFailed = false;
+                try {
+                    snapshot = fold(_dataFile, dataLines, previous, cleanCount, _oldLogFile);
+                    if (afterFold != null) {
+                        afterFold.run();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.exit(1);
+                } catch (SnapshotEntryStore.CorruptSnapshotException e) {
+                    // the old log is kept, so no change is lost
+                    isFoldFailed = true;
+                } finally {
+                    dataLines.close();
+                }
+                synchronized (OperationLog.this) {
+                    _dataSnapshot = snapshot;
+                    _isFoldFailed = isFoldFailed;
+                    if (isFoldFailed) {
+                        _cleanCount = 0;
+                    }
+                    _compactor = null;
+                    OperationLog.this.notifyAll();
+                }
+            }
+        }, "TextBuddy log compactor");
+        _compactor.setDaemon(true);
+        _compactor.start();
+    }
+
+    /**
+     * Waits for any background compaction, then folds every log into a new
+     * snapshot of the data file and removes the logs. The log can still be
+     * appended to afterwards.
+     *
+     * @param dataLines
+     *            - the entries to write to the data file
+     */
+    synchronized void checkpoint(List<String> dataLines) throws IOException {
+        awaitCompaction();
+        closeChannel();
+        _dataSnapshot = fold(_dataFile, dataLines, _dataSnapshot, _cleanCount, _oldLogFile,
+                _logFile);
+        _cleanCount = dataLines.size();
+        _logSize = 0;
+        _isFoldFailed = false;
+    }
+
+    /**
+     * Waits for any background compaction and for every logged change to be
+     * on disk, then closes the log file, for a TextBuddy that loads its
+     * entries again with a new log
+     */
+    synchronized void close() {
+        awaitCompaction();
+        try {
+            closeChannel();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes the entries to a temporary file in the plain text format and
+     * atomically renames it over the data file. Each log given is marked as
+     * folded before the rename and deleted after it.
+     */
+    static void fold(File dataFile, List<String> dataLines, File... logFiles)
+            throws IOException {
+        fold(dataFile, dataLines, null, 0, logFiles);
+    }
+
+    /**
+     * Folds the entries into the data file, copying the bytes of the first
+     * cleanCount lines from the current data file instead of writing them
+     *
+     * @param previous
+     *            - how the current data file was written, or null
+     * @return how the new data file was written
+     */
+    private static DataSnapshot fold(File dataFile, List<String> dataLines,
+            DataSnapshot previous, int cleanCount, File... logFiles) throws IOException {
+        File snapshotFile = new File(dataFile.getPath() + SNAPSHOT_SUFFIX);
+        DataSnapshot snapshot = DataSnapshot.write(snapshotFile, dataLines, dataFile, previous,
+                cleanCount);
+        long checksum = snapshot.getChecksum();
+
+        for (File logFile : logFiles) {
+            if (logFile.exists()) {
+                FileChannel channel = FileChannel.open(logFile.toPath(),
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                channel.write(encode(RECORD_FOLDED + " " + checksum));
+                channel.force(false);
+                channel.close();
+            }
+        }
+        Files.move(snapshotFile.toPath(), dataFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (File logFile : logFiles) {
+            logFile.delete();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Applies the changes recorded in the logs of a data file, oldest first.
+     * A partly written last record, left by a crash, is ignored.
+     *
+     * @param dataLines
+     *            - the entries read from the data file
+     */
+    static void replay(String dataFileName, List<String> dataLines) throws IOException {
+        File dataFile = new File(dataFileName);
+        replayLog(dataFile, new File(dataFileName + OLD_LOG_SUFFIX), dataLines);
+        replayLog(dataFile, new File(dataFileName + LOG_SUFFIX), dataLines);
+    }
+
+    private static void replayLog(File dataFile, File logFile, List<String> dataLines)
+            throws IOException {
+        if (!logFile.exists()) {
+            return;
+        }
+        String content = new String(Files.readAllBytes(logFile.toPath()),
+                StandardCharsets.UTF_8);
+        int end = content.lastIndexOf('\n');
+        if (end == -1) {
+            return;
+        }
+        String[] records = content.substring(0, end).split("\n", -1);
+
+        String lastRecord = records[records.length - 1];
+        if (lastRecord.length() > 2 && lastRecord.charAt(0) == RECORD_FOLDED
+                && Long.parseLong(lastRecord.substring(2)) == getChecksum(dataFile)) {
+            return;
+        }
+        for (String record : records) {
+            if (!record.isEmpty()) {
+                applyRecord(record, dataLines);
+            }
+        }
+    }
+
+    private static void applyRecord(String record, List<String> dataLines) {
+        switch (record.charAt(0)) {
+            case RECORD_ADD :
+                dataLines.add(unescape(record.substring(2)));
+                break;
+            case RECORD_INSERT :
+                int separator = record.indexOf(' ', 2);
+                dataLines.add(Integer.parseInt(record.substring(2, separator)),
+                        unescape(record.substring(separator + 1)));
+                break;
+            case RECORD_DELETE :
+                int countSeparator = record.indexOf(' ', 2);
+                if (countSeparator == -1) {
+                    dataLines.remove(Integer.parseInt(record.substring(2)));
+                } else {
+                    int from = Integer.parseInt(record.substring(2, countSeparator));
+                    int count = Integer.parseInt(record.substring(countSeparator + 1));
+                    dataLines.subList(from, from + count).clear();
+                }
+                break;
+            case RECORD_CLEAR :
+                dataLines.clear();
+                break;
+            case RECORD_SORT :
+                Collections.sort(dataLines, String.CASE_INSENSITIVE_ORDER);
+                break;
+            default :
+                // folded markers of a log that was not folded after all
+        }
+    }
+
+    private static long getChecksum(File file) throws IOException {
+        CheckedInputStream cs = new CheckedInputStream(Files.newInputStream(file.toPath()),
+                new CRC32());
+        byte[] buffer = new byte[64 * 1024];
+        while (cs.read(buffer) != -1) {
+            // only the checksum is needed
+        }
+        cs.close();
+        return cs.getChecksum().getValue();
+    }
+
+    /**
+     * Queues a record for the flusher thread, which writes it out with any
+     * other records queued before it takes the next batch
+     */
+    private synchronized void append(String record) {
+        byte[] bytes = (record + "\n").getBytes(StandardCharsets.UTF_8);
+        _pending.write(bytes, 0, bytes.length);
+        _appendedBytes += bytes.length;
+        _logSize += bytes.length;
+        if (_flusher == null) {
+            startFlusher();
+        }
+        notifyAll();
+    }
+
+    private void startFlusher() {
+        _isClosing = false;
+        _flusher = new Thread(new Runnable() {
+            public void run() {
+                runFlusher();
+            }
+        }, "TextBuddy log flusher");
+        _flusher.setDaemon(true);
+        _flusher.start();
+    }
+
+    private void runFlusher() {
+        try {
+            while (true) {
+                byte[] batch;
+                synchronized (this) {
+                    while (_pending.size() == 0 && !_isClosing) {
+                        wait();
+                    }
+                    if (_pending.size() == 0 || _flusher != Thread.currentThread()) {
+                        return;
+                    }
+                    batch = _pending.toByteArray();
+                    _pending.reset();
+                }
+                writeBatch(batch);
+                synchronized (this) {
+                    _durableBytes += batch.length;
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private void writeBatch(byte[] batch) throws IOException {
+        if (_channel == null) {
+            _channel = FileChannel.open(_logFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(batch);
+        while (buffer.hasRemaining()) {
+            _channel.write(buffer);
+        }
+        _channel.force(false);
+    }
+
+    /**
+     * Waits until every queued record is on disk, then stops the flusher and
+     * closes the log file. Must be called while holding the lock.
+     */
+    private void closeChannel() throws IOException {
+        if (_flusher != null) {
+            _isClosing = true;
+            notifyAll();
+            while (_durableBytes < _appendedBytes) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            _flusher = null;
+        }
+        if (_channel != null) {
+            _channel.close();
+            _channel = null;
+        }
+    }
+
+    private static ByteBuffer encode(String record) {
+        return StandardCharsets.UTF_8.encode(record + "\n");
+    }
+
+    /**
+     * Escapes backslashes and line breaks so that every record is one line
+     */
+    static String escape(String dataLine) {
+        if (dataLine.indexOf('\\') == -1 && dataLine.indexOf('\n') == -1
+                && dataLine.indexOf('\r') == -1) {
+            return dataLine;
+        }
+        return dataLine.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    static String unescape(String escaped) {
+        if (escaped.indexOf('\\') == -1) {
+            return escaped;
+        }
+        StringBuilder stringBuilder = new StringBuilder(escaped.length());
+        for (int i = 0; i < escaped.length(); i++) {
+            char c = escaped.charAt(i);
+            if (c == '\\' && i + 1 < escaped.length()) {
+                char next = escaped.charAt(++i);
+                stringBuilder.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                stringBuilder.append(c);
+            }
+        }
+        return stringBuilder.toString();
+    }
+}
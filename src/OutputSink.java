@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class is a buffered writer of command output. It encodes text itself
+ * and writes numbers digit by digit, so long listings can be streamed out
+ * without building a String for every line or for the whole listing.
+ *
+ * @author Wz
+ *
+ */
+class OutputSink {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(
+            StandardCharsets.US_ASCII);
+
+    private final OutputStream _out;
+    private final Charset _charset;
+    private final boolean _isUtf8;
+    private final boolean _isAsciiCompatible;
+    private final byte[] _buffer = new byte[BUFFER_SIZE];
+    private final byte[] _digits = new byte[11];
+    private int _count = 0;
+
+    OutputSink(OutputStream out, Charset charset) {
+        _out = out;
+        _charset = charset;
+        _isUtf8 = charset.equals(StandardCharsets.UTF_8);
+        _isAsciiCompatible = _isUtf8 || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    Charset getCharset() {
+        return _charset;
+    }
+
+    boolean isUtf8() {
+        return _isUtf8;
+    }
+
+    void print(String text) {
+        int length = text.length();
+        if (_isAsciiCompatible) {
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    write(text.substring(i).getBytes(_charset));
+                    return;
+                }
+                if (_count == BUFFER_SIZE) {
+                    flushBuffer();
+                }
+                _buffer[_count++] = (byte) c;
+            }
+        } else {
+            write(text.getBytes(_charset));
+        }
+    }
+
+    void printLine(String text) {
+        print(text);
+        newLine();
+    }
+
+    void newLine() {
+        write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length);
+    }
+
+    /**
+     * Writes a non-negative number in decimal without going through a String
+     */
+    void printNumber(int number) {
+        int position = _digits.length;
+        do {
+            _digits[--position] = (byte) ('0' + number % 10);
+            number /= 10;
+        } while (number > 0);
+        write(_digits, position, _digits.length - position);
+    }
+
+    void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes bytes that are already in the charset of this sink
+     */
+    void write(byte[] bytes, int offset, int length) {
+        if (length > BUFFER_SIZE - _count) {
+            flushBuffer();
+            if (length > BUFFER_SIZE) {
+                writeOut(bytes, offset, length);
+                return;
+            }
+        }
+        System.arraycopy(bytes, offset, _buffer, _count, length);
+        _count += length;
+    }
+
+    void write(ByteBuffer bytes) {
+        while (bytes.hasRemaining()) {
+            if (_count == BUFFER_SIZE) {
+                flushBuffer();
+            }
+            int length = Math.min(bytes.remaining(), BUFFER_SIZE - _count);
+            bytes.get(_buffer, _count, length);
+            _count += length;
+        }
+    }
+
+    void flush() {
+        flushBuffer();
+        try {
+            _out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flushBuffer() {
+        if (_count > 0) {
+            writeOut(_buffer, 0, _count);
+            _count = 0;
+        }
+    }
+
+    private void writeOut(byte[] bytes, int offset, int length) {
+        try {
+            _out.write(bytes, offset, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class stores the entries as UTF-8 bytes packed into large chunks,
+ * instead of as one String object per entry. Each entry is a varint length
+ * followed by its bytes, and a table holds the location of each entry as
+ * (chunk index << 32 | offset in chunk).
+ *
+ * Deleting an entry only removes it from the table. The bytes it used are
+ * reclaimed by copying the live entries into new chunks once more than half
+ * of the stored bytes belong to deleted entries.
+ *
+ * Bytes written to a chunk are never changed, so a snapshot shares the
+ * chunks and writes of either side go past what the other one reads. The
+ * table is shared too, and copied before its first change.
+ *
+ * @author Wz
+ *
+ */
+class PackedEntryStore extends EntryStore {
+    static final int CHUNK_SIZE = 1 << 20;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[][] _chunks = new byte[0][];
+    private int _chunkCount = 0;
+    private int _chunkUsed = CHUNK_SIZE;
+    private long[] _locations = new long[INITIAL_CAPACITY];
+    private int _size = 0;
+    private long _liveBytes = 0;
+    private long _garbageBytes = 0;
+    private boolean _isTableShared = false;
+
+    @Override
+    public String get(int index) {
+        checkIndex(index);
+        long location = _locations[index];
+        byte[] chunk = _chunks[(int) (location >>> 32)];
+        int offset = (int) location;
+        int length = readLength(chunk, offset);
+        return new String(chunk, offset + getLengthSize(length), length,
+                StandardCharsets.UTF_8);
+    }
+
+    @Override
+    void appendEntry(int index, StringBuilder stringBuilder) {
+        checkIndex(index);
+        long location = _locations[index];
+        byte[] chunk = _chunks[(int) (location >>> 32)];
+        int offset = (int) location;
+        int length = readLength(chunk, offset);
+        int start = offset + getLengthSize(length);
+        decodeUtf8(chunk, start, start + length, stringBuilder);
+    }
+
+    @Override
+    void writeEntry(int index, OutputSink sink) {
+        if (!sink.isUtf8()) {
+            super.writeEntry(index, sink);
+            return;
+        }
+        checkIndex(index);
+        long location = _locations[index];
+        byte[] chunk = _chunks[(int) (location >>> 32)];
+        int offset = (int) location;
+        int length = readLength(chunk, offset);
+        sink.write(chunk, offset + getLengthSize(length), length);
+    }
+
+    @Override
+    public String set(int index, String dataLine) {
+        String previous = get(index);
+        ownTable();
+        _garbageBytes += getStoredSize(_locations[index]);
+        _liveBytes -= getStoredSize(_locations[index]);
+        _locations[index] = write(dataLine);
+        compactIfNeeded();
+        return previous;
+    }
+
+    @Override
+    public void add(int index, String dataLine) {
+        if (index < 0 || index > _size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _size);
+        }
+        long location = write(dataLine);
+        ownTable();
+        ensureCapacity(_size + 1);
+        System.arraycopy(_locations, index, _locations, index + 1, _size - index);
+        _locations[index] = location;
+        _size++;
+        modCount++;
+    }
+
+    @Override
+    public String remove(int index) {
+        String removed = get(index);
+        ownTable();
+        int storedSize = getStoredSize(_locations[index]);
+        _garbageBytes += storedSize;
+        _liveBytes -= storedSize;
+        System.arraycopy(_locations, index + 1, _locations, index, _size - index - 1);
+        _size--;
+        modCount++;
+        compactIfNeeded();
+        return removed;
+    }
+
+    /**
+     * Removes the entries in [fromIndex, toIndex) with one shift of the
+     * locations
+     */
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        ownTable();
+        for (int i = fromIndex; i < toIndex; i++) {
+            int storedSize = getStoredSize(_locations[i]);
+            _garbageBytes += storedSize;
+            _liveBytes -= storedSize;
+        }
+        System.arraycopy(_locations, toIndex, _locations, fromIndex, _size - toIndex);
+        _size -= toIndex - fromIndex;
+        modCount++;
+        compactIfNeeded();
+    }
+
+    @Override
+    public void clear() {
+        _chunks = new byte[0][];
+        _chunkCount = 0;
+        _chunkUsed = CHUNK_SIZE;
+        _locations = new long[INITIAL_CAPACITY];
+        _isTableShared = false;
+        _size = 0;
+        _liveBytes = 0;
+        _garbageBytes = 0;
+        modCount++;
+    }
+
+    /**
+     * Reorders only the locations, without moving any bytes
+     */
+    @Override
+    void permute(int[] order) {
+        long[] locations = new long[_locations.length];
+        for (int i = 0; i < _size; i++) {
+            locations[i] = _locations[order[i]];
+        }
+        _locations = locations;
+        _isTableShared = false;
+        modCount++;
+    }
+
+    /**
+     * Appends the chunks of another packed store as they are and moves its
+     * locations to them. The space left in the last chunk of this store is
+     * not used.
+     */
+    @Override
+    void appendStore(EntryStore other) {
+        if (!(other instanceof PackedEntryStore)) {
+            super.appendStore(other);
+            return;
+        }
+        PackedEntryStore packed = (PackedEntryStore) other;
+        if (packed._size == 0) {
+            return;
+        }
+        ownTable();
+        ensureCapacity(_size + packed._size);
+        long chunkOffset = (long) _chunkCount << 32;
+        for (int i = 0; i < packed._size; i++) {
+            _locations[_size + i] = packed._locations[i] + chunkOffset;
+        }
+        if (_chunkCount + packed._chunkCount > _chunks.length) {
+            _chunks = Arrays.copyOf(_chunks, Math.max(_chunkCount * 2,
+                    _chunkCount + packed._chunkCount));
+        }
+        System.arraycopy(packed._chunks, 0, _chunks, _chunkCount, packed._chunkCount);
+        _chunkCount += packed._chunkCount;
+        _chunkUsed = packed._chunkUsed;
+        _size += packed._size;
+        _liveBytes += packed._liveBytes;
+        _garbageBytes += packed._garbageBytes;
+        modCount++;
+    }
+
+    @Override
+    EntryStore snapshot() {
+        PackedEntryStore copy = new PackedEntryStore();
+        copy._chunks = Arrays.copyOf(_chunks, _chunkCount);
+        copy._chunkCount = _chunkCount;
+        copy._locations = _locations;
+        copy._size = _size;
+        copy._liveBytes = _liveBytes;
+        copy._garbageBytes = _garbageBytes;
+        copy._isTableShared = true;
+        _isTableShared = true;
+        return copy;
+    }
+
+    @Override
+    long estimateHeapBytes() {
+        long bytes = 16 + (long) _locations.length * 8;
+        for (int i = 0; i < _chunkCount; i++) {
+            bytes += 16 + _chunks[i].length;
+        }
+        return bytes;
+    }
+
+    @Override
+    public int size() {
+        return _size;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= _size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _size);
+        }
+    }
+
+    /**
+     * Copies the table of locations before its first change since a snapshot
+     * shared it
+     */
+    private void ownTable() {
+        if (_isTableShared) {
+            _locations = _locations.clone();
+            _isTableShared = false;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > _locations.length) {
+            int newCapacity = Math.max(capacity, _locations.length + (_locations.length >> 1));
+            _locations = Arrays.copyOf(_locations, newCapacity);
+        }
+    }
+
+    /**
+     * Encodes an entry into the current chunk, starting a new chunk if it does
+     * not fit
+     *
+     * @return the location of the entry
+     */
+    private long write(String dataLine) {
+        int length = getUtf8Length(dataLine);
+        int storedSize = getLengthSize(length) + length;
+        if (_chunkUsed + storedSize > CHUNK_SIZE || _chunkCount == 0) {
+            addChunk(Math.max(CHUNK_SIZE, storedSize));
+        }
+        byte[] chunk = _chunks[_chunkCount - 1];
+        long location = ((long) (_chunkCount - 1) << 32) | _chunkUsed;
+        int offset = writeLength(chunk, _chunkUsed, length);
+        encodeUtf8(dataLine, chunk, offset);
+        _chunkUsed += storedSize;
+        _liveBytes += storedSize;
+        return location;
+    }
+
+    private void addChunk(int chunkSize) {
+        if (_chunkCount == _chunks.length) {
+            _chunks = Arrays.copyOf(_chunks, Math.max(4, _chunkCount * 2));
+        }
+        _chunks[_chunkCount++] = new byte[chunkSize];
+        _chunkUsed = 0;
+    }
+
+    private int getStoredSize(long location) {
+        byte[] chunk = _chunks[(int) (location >>> 32)];
+        int length = readLength(chunk, (int) location);
+        return getLengthSize(length) + length;
+    }
+
+    /**
+     * Copies the live entries into new chunks once deleted entries take up
+     * more space than live ones
+     */
+    private void compactIfNeeded() {
+        if (_garbageBytes < CHUNK_SIZE || _garbageBytes < _liveBytes) {
+            return;
+        }
+        byte[][] oldChunks = _chunks;
+        _chunks = new byte[0][];
+        _chunkCount = 0;
+        _chunkUsed = CHUNK_SIZE;
+        _liveBytes = 0;
+        _garbageBytes = 0;
+        for (int i = 0; i < _size; i++) {
+            long location = _locations[i];
+            byte[] chunk = oldChunks[(int) (location >>> 32)];
+            int offset = (int) location;
+            int length = readLength(chunk, offset);
+            int storedSize = getLengthSize(length) + length;
+            if (_chunkUsed + storedSize > CHUNK_SIZE || _chunkCount == 0) {
+                addChunk(Math.max(CHUNK_SIZE, storedSize));
+            }
+            System.arraycopy(chunk, offset, _chunks[_chunkCount - 1], _chunkUsed, storedSize);
+            _locations[i] = ((long) (_chunkCount - 1) << 32) | _chunkUsed;
+            _chunkUsed += storedSize;
+            _liveBytes += storedSize;
+        }
+    }
+
+    static int getLengthSize(int length) {
+        int size = 1;
+        while (length >= 0x80) {
+            length >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int writeLength(byte[] chunk, int offset, int length) {
+        while (length >= 0x80) {
+            chunk[offset++] = (byte) (length | 0x80);
+            length >>>= 7;
+        }
+        chunk[offset++] = (byte) length;
+        return offset;
+    }
+
+    private static int readLength(byte[] chunk, int offset) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = chunk[offset++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return length;
+    }
+
+    /**
+     * Counts the bytes of the UTF-8 encoding of a String. Unpaired surrogates
+     * are encoded as '?', the same as String.getBytes.
+     */
+    static int getUtf8Length(String dataLine) {
+        int length = 0;
+        for (int i = 0; i < dataLine.length(); i++) {
+            char c = dataLine.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < dataLine.length()
+                    && Character.isLowSurrogate(dataLine.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static int encodeUtf8(String dataLine, byte[] bytes, int offset) {
+        for (int i = 0; i < dataLine.length(); i++) {
+            char c = dataLine.charAt(i);
+            if (c < 0x80) {
+                bytes[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[offset++] = (byte) (0xC0 | (c >> 6));
+                bytes[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < dataLine.length()
+                    && Character.isLowSurrogate(dataLine.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, dataLine.charAt(++i));
+                bytes[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                bytes[offset++] = (byte) '?';
+            } else {
+                bytes[offset++] = (byte) (0xE0 | (c >> 12));
+                bytes[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Decodes UTF-8 written by encodeUtf8, which is always well-formed
+     */
+    static void decodeUtf8(byte[] bytes, int start, int end, StringBuilder stringBuilder) {
+        int i = start;
+        while (i < end) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                stringBuilder.append((char) b);
+                i += 1;
+            } else if (b < 0xE0) {
+                stringBuilder.append((char) (((b & 0x1F) << 6) | (bytes[i + 1] & 0x3F)));
+                i += 2;
+            } else if (b < 0xF0) {
+                stringBuilder.append((char) (((b & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6)
+                        | (bytes[i + 2] & 0x3F)));
+                i += 3;
+            } else {
+                int codePoint = ((b & 0x07) << 18) | ((bytes[i + 1] & 0x3F) << 12)
+                        | ((bytes[i + 2] & 0x3F) << 6) | (bytes[i + 3] & 0x3F);
+                stringBuilder.appendCodePoint(codePoint);
+                i += 4;
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class PackedEntryStoreTest {
+
+    @Test
+    public void addRemoveTest() {
+        PackedEntryStore store = new PackedEntryStore();
+        store.add("First line");
+        store.add("caf\u00e9 \u4e2d\u6587 \ud83d\ude00");
+        store.add(0, "");
+
+        String[] expected = { "", "First line", "caf\u00e9 \u4e2d\u6587 \ud83d\ude00" };
+        assertArrayEquals(expected, store.toArray());
+
+        // decoding into a builder gives the same text
+        StringBuilder stringBuilder = new StringBuilder();
+        store.appendEntry(2, stringBuilder);
+        assertEquals(expected[2], stringBuilder.toString());
+
+        assertEquals("First line", store.remove(1));
+        assertEquals("", store.set(0, "First line"));
+        String[] expectedAfterRemove = { "First line", expected[2] };
+        assertArrayEquals(expectedAfterRemove, store.toArray());
+    }
+
+    @Test
+    public void compactionTest() {
+        PackedEntryStore store = new PackedEntryStore();
+        ArrayList<String> expected = new ArrayList<String>();
+        StringBuilder longLine = new StringBuilder();
+        while (longLine.length() < PackedEntryStore.CHUNK_SIZE) {
+            longLine.append("a long line ");
+        }
+        store.add(longLine.toString());
+        expected.add(longLine.toString());
+        for (int i = 0; i < 100000; i++) {
+            store.add("entry " + i);
+            expected.add("entry " + i);
+        }
+
+        // deleting most entries reclaims their bytes
+        for (int i = 0; i < 90000; i++) {
+            store.remove(store.size() - 1);
+            expected.remove(expected.size() - 1);
+        }
+        store.remove(0);
+        expected.remove(0);
+        assertEquals(expected, store);
+    }
+
+    @Test
+    public void sortTest() {
+        PackedEntryStore store = new PackedEntryStore();
+        store.add("zebra");
+        store.add("Apple");
+        store.add("apple");
+        store.sort(String.CASE_INSENSITIVE_ORDER);
+
+        String[] expected = { "Apple", "apple", "zebra" };
+        assertArrayEquals(expected, store.toArray());
+    }
+}
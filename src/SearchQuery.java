@@ -0,0 +1,259 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * This class is a search keyword compiled for one of three modes:
+ *
+ * word - the keyword is found as whole words, e.g. "cat" matches "a cat." but
+ * not "cats". This is the default.
+ *
+ * literal - the keyword is found anywhere, e.g. "cat" also matches "cats".
+ *
+ * regex - the keyword is a regular expression found anywhere in the entry.
+ *
+ * In word mode, a word followed by '*' finds the words starting with it,
+ * e.g. "data*" matches "database". A -f flag finds a word with typos
+ * instead: it matches the words within TrigramIndex.getMaxDistance edits of
+ * it, ignoring case.
+ *
+ * Only the regex mode uses java.util.regex. The other modes are scanned
+ * character by character without allocating, so special characters in the
+ * keyword have no meaning. Compiled queries are kept in a small LRU cache, so
+ * a repeated search does not compile its pattern again.
+ *
+ * @author Wz
+ *
+ */
+class SearchQuery {
+    static final String MODE_WORD = "word";
+    static final String MODE_LITERAL = "literal";
+    static final String MODE_REGEX = "regex";
+    // modes chosen by the keyword or a flag, which --search cannot set
+    static final String MODE_PREFIX = "prefix";
+    static final String MODE_FUZZY = "fuzzy";
+
+    private static final String FLAG_WORD = "-w ";
+    private static final String FLAG_LITERAL = "-l ";
+    private static final String FLAG_REGEX = "-r ";
+    private static final String FLAG_FUZZY = "-f ";
+    private static final String PREFIX_WILDCARD = "*";
+    private static final int CACHE_CAPACITY = 128;
+
+    private static final Map<String, SearchQuery> _cache = new LinkedHashMap<String, SearchQuery>(
+            CACHE_CAPACITY, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SearchQuery> eldest) {
+            return size() > CACHE_CAPACITY;
+        }
+    };
+
+    private final String _mode;
+    private final String _keyword;
+    private final Pattern _pattern;
+    private final String _normalizedKeyword;
+    private final int _maxDistance;
+
+    private SearchQuery(String mode, String keyword) {
+        _mode = mode;
+        _keyword = keyword;
+        _pattern = mode.equals(MODE_REGEX) ? Pattern.compile(keyword) : null;
+        _normalizedKeyword = mode.equals(MODE_FUZZY) ? TrigramIndex.normalize(keyword) : null;
+        _maxDistance = TrigramIndex.getMaxDistance(keyword);
+    }
+
+    static boolean isMode(String mode) {
+        return mode.equals(MODE_WORD) || mode.equals(MODE_LITERAL) || mode.equals(MODE_REGEX);
+    }
+
+    /**
+     * Reads an optional leading -w, -l, -r or -f flag that overrides the
+     * default mode, then compiles the rest as the keyword. A word ending in
+     * '*' in word mode is a prefix.
+     *
+     * @param parameters
+     *            - the parameters of a search command
+     * @param defaultMode
+     *            - the mode used without a flag
+     * @return the query, or null if there is no keyword after the flag, or
+     *         the keyword of -f is not a single word
+     * @throws PatternSyntaxException
+     *             if the keyword is an invalid regex in regex mode
+     */
+    static SearchQuery parse(String parameters, String defaultMode) {
+        String mode = defaultMode;
+        String keyword = parameters;
+        if (parameters.startsWith(FLAG_WORD)) {
+            mode = MODE_WORD;
+            keyword = parameters.substring(FLAG_WORD.length());
+        } else if (parameters.startsWith(FLAG_LITERAL)) {
+            mode = MODE_LITERAL;
+            keyword = parameters.substring(FLAG_LITERAL.length());
+        } else if (parameters.startsWith(FLAG_REGEX)) {
+            mode = MODE_REGEX;
+            keyword = parameters.substring(FLAG_REGEX.length());
+        } else if (parameters.startsWith(FLAG_FUZZY)) {
+            mode = MODE_FUZZY;
+            keyword = parameters.substring(FLAG_FUZZY.length());
+        }
+        if (keyword.isEmpty()) {
+            return null;
+        }
+        if (mode.equals(MODE_FUZZY) && !WordIndex.isIndexableWord(keyword)) {
+            return null;
+        }
+        String prefix = keyword.substring(0, keyword.length() - PREFIX_WILDCARD.length());
+        if (mode.equals(MODE_WORD) && keyword.endsWith(PREFIX_WILDCARD)
+                && WordIndex.isIndexableWord(prefix)) {
+            return compile(MODE_PREFIX, prefix);
+        }
+        return compile(mode, keyword);
+    }
+
+    /**
+     * @throws PatternSyntaxException
+     *             if the keyword is an invalid regex in regex mode
+     */
+    static SearchQuery compile(String mode, String keyword) {
+        String key = mode + ' ' + keyword;
+        synchronized (_cache) {
+            SearchQuery query = _cache.get(key);
+            if (query != null) {
+                return query;
+            }
+        }
+        SearchQuery query = new SearchQuery(mode, keyword);
+        synchronized (_cache) {
+            _cache.put(key, query);
+        }
+        return query;
+    }
+
+    String getMode() {
+        return _mode;
+    }
+
+    String getKeyword() {
+        return _keyword;
+    }
+
+    /**
+     * @return the keyword as it was typed, for messages
+     */
+    String getText() {
+        return _mode.equals(MODE_PREFIX) ? _keyword + PREFIX_WILDCARD : _keyword;
+    }
+
+    boolean isFuzzy() {
+        return _mode.equals(MODE_FUZZY);
+    }
+
+    int getMaxDistance() {
+        return _maxDistance;
+    }
+
+    /**
+     * @return true if every entry the query matches holds the keyword as it
+     *         is, which the trigram index can look up
+     */
+    boolean isSubstringQuery() {
+        return !_mode.equals(MODE_REGEX) && !_mode.equals(MODE_FUZZY);
+    }
+
+    /**
+     * @return true if the query can be answered from the word index
+     */
+    boolean isIndexable() {
+        return _mode.equals(MODE_WORD) && WordIndex.isIndexableWord(_keyword);
+    }
+
+    /**
+     * Creates a matcher for this query. A matcher holds state, so each search
+     * needs its own.
+     */
+    Matcher createMatcher() {
+        return (_pattern == null) ? null : _pattern.matcher("");
+    }
+
+    /**
+     * @param matcher
+     *            - from createMatcher, reused across the entries of a search
+     */
+    boolean matches(CharSequence dataLine, Matcher matcher) {
+        if (_pattern != null) {
+            return matcher.reset(dataLine).find();
+        }
+        if (_mode.equals(MODE_LITERAL)) {
+            return indexOf(dataLine, 0) != -1;
+        }
+        if (_mode.equals(MODE_FUZZY)) {
+            return TrigramIndex.hasFuzzyToken(dataLine, _normalizedKeyword, _maxDistance);
+        }
+        // the word mode has always skipped entries with line terminators, as
+        // the word index does
+        if (WordIndex.hasLineTerminator(dataLine)) {
+            return false;
+        }
+        boolean isPrefix = _mode.equals(MODE_PREFIX);
+        for (int i = indexOf(dataLine, 0); i != -1; i = indexOf(dataLine, i + 1)) {
+            if (isBoundary(dataLine, i)
+                    && (isPrefix || isBoundary(dataLine, i + _keyword.length()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int indexOf(CharSequence dataLine, int from) {
+        int length = _keyword.length();
+        int last = dataLine.length() - length;
+        char first = _keyword.charAt(0);
+        for (int i = from; i <= last; i++) {
+            if (dataLine.charAt(i) != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < length && dataLine.charAt(i + j) == _keyword.charAt(j)) {
+                j++;
+            }
+            if (j == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A position is a word boundary, as with the regex \b, when a word
+     * character is on exactly one side of it
+     */
+    private static boolean isBoundary(CharSequence dataLine, int position) {
+        return isWordBefore(dataLine, position) != isWordAt(dataLine, position);
+    }
+
+    private static boolean isWordAt(CharSequence dataLine, int position) {
+        if (position >= dataLine.length()) {
+            return false;
+        }
+        int codePoint = Character.codePointAt(dataLine, position);
+        if (WordIndex.isWordCodePoint(codePoint)) {
+            return true;
+        }
+        return WordIndex.isNonSpacingMark(codePoint) && isWordBefore(dataLine, position);
+    }
+
+    private static boolean isWordBefore(CharSequence dataLine, int position) {
+        while (position > 0) {
+            int codePoint = Character.codePointBefore(dataLine, position);
+            if (!WordIndex.isNonSpacingMark(codePoint)) {
+                return WordIndex.isWordCodePoint(codePoint);
+            }
+            position -= Character.charCount(codePoint);
+        }
+        return false;
+    }
+}
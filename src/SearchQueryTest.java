@@ -0,0 +1,44 @@
+import static org.junit.Assert.*;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class SearchQueryTest {
+
+    @Test
+    public void wordScannerMatchesRegexTest() {
+        String[] keywords = { "field", "c++", "-day", "a.b", "fox on", "\u00e9t\u00e9" };
+        String[] lines = { "fox on a field", "fields of gold", "snake_case field-day",
+                "c++ and c", "cc++d", "a.b.c", "axb", "fox one", "\u00e9t\u00e9s",
+                "un \u00e9t\u00e9 chaud", "e\u0301t\u00e9", "x-day", "field\u2028day" };
+        for (String keyword : keywords) {
+            SearchQuery query = SearchQuery.compile(SearchQuery.MODE_WORD, keyword);
+            Pattern pattern = Pattern.compile(".*\\b" + Pattern.quote(keyword) + "\\b.*");
+            for (String line : lines) {
+                assertEquals(keyword + " in " + line, pattern.matcher(line).matches(),
+                        query.matches(line, query.createMatcher()));
+            }
+        }
+    }
+
+    @Test
+    public void parseTest() {
+        SearchQuery query = SearchQuery.parse("-l ield", SearchQuery.MODE_WORD);
+        assertEquals(SearchQuery.MODE_LITERAL, query.getMode());
+        assertEquals("ield", query.getKeyword());
+        assertTrue(query.matches("a field", null));
+        assertFalse(query.isIndexable());
+
+        query = SearchQuery.parse("-r f.eld$", SearchQuery.MODE_WORD);
+        assertTrue(query.matches("a field", query.createMatcher()));
+        assertFalse(query.matches("fields", query.createMatcher()));
+
+        // the default mode applies without a flag, and queries are cached
+        query = SearchQuery.parse("field", SearchQuery.MODE_WORD);
+        assertTrue(query.isIndexable());
+        assertSame(query, SearchQuery.parse("-w field", SearchQuery.MODE_REGEX));
+
+        assertNull(SearchQuery.parse("-r ", SearchQuery.MODE_WORD));
+    }
+}
@@ -0,0 +1,46 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class is a file channel shared by a store and its snapshots. Each of
+ * them holds the channel open until it is closed, and the last one to close
+ * closes the channel, so a background save can keep reading a snapshot after
+ * its store is closed.
+ *
+ * @author Wz
+ *
+ */
+class SharedChannel {
+    private final FileChannel _channel;
+    private int _holderCount = 1;
+
+    SharedChannel(FileChannel channel) {
+        _channel = channel;
+    }
+
+    FileChannel getChannel() {
+        return _channel;
+    }
+
+    /**
+     * Holds the channel open for one more store
+     */
+    synchronized void hold() {
+        _holderCount++;
+    }
+
+    /**
+     * Lets go of the channel for one store, and closes it if no store holds
+     * it any more
+     */
+    synchronized void release() {
+        _holderCount--;
+        if (_holderCount == 0) {
+            try {
+                _channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,534 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+/**
+ * This class stores the entries of a binary snapshot written by
+ * BinarySnapshot. Opening one maps the file and reads its header only, so it
+ * takes the same time however many entries there are; the offset of an
+ * entry is read from the mapped table and the entry is decoded each time it
+ * is read.
+ *
+ * Each block of the table and the payload is checked against its checksum
+ * the first time it is read, and a block that does not match throws a
+ * CorruptSnapshotException each time it is read. Entries added at the end
+ * are kept as Strings next to the mapped ones. Any other change first copies
+ * the table into an array of offsets, the way MappedEntryStore keeps its
+ * lines, with changed entries kept as Strings.
+ *
+ * A snapshot shares the mapped file, the blocks checked so far, the appended
+ * entries and the offsets, and the arrays are copied before their first
+ * change. The file stays open until the store and every snapshot of it are
+ * closed.
+ *
+ * @author Wz
+ *
+ */
+class SnapshotEntryStore extends EntryStore {
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long NOT_MAPPED = -1;
+
+    private final File _snapshotFile;
+    private final SharedChannel _channel;
+    private final MappedByteBuffer[] _segments;
+    private final int _checksumType;
+    private final int _baseCount;
+    private final long _tableStart;
+    private final long _payloadStart;
+    private final long _payloadLength;
+    private final long _tableChecksumsStart;
+    private final long _payloadChecksumsStart;
+    private final long[] _verifiedTableBlocks;
+    private final long[] _verifiedPayloadBlocks;
+    // shared with the snapshots, and the lock for checking a block
+    private final byte[] _blockBytes;
+
+    // entries added at the end while the table is still mapped
+    private String[] _appended = new String[16];
+    // after any other change, the payload offset of each entry, or
+    // NOT_MAPPED for an entry kept in _strings
+    private long[] _offsets = null;
+    private String[] _strings = null;
+    private int _size;
+    private boolean _isTableShared = false;
+    private boolean _isClosed = false;
+    // the estimated heap of the entries kept as Strings
+    private long _stringBytes = 0;
+
+    /**
+     * This exception is thrown when a block of the snapshot does not match
+     * its checksum. The entries can be loaded again from the data file.
+     */
+    static class CorruptSnapshotException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptSnapshotException(String message) {
+            super(message);
+        }
+    }
+
+    private SnapshotEntryStore(File snapshotFile, FileChannel channel, ByteBuffer header)
+            throws IOException {
+        _snapshotFile = snapshotFile;
+        _channel = new SharedChannel(channel);
+        _checksumType = header.getInt(BinarySnapshot.CHECKSUM_TYPE_POSITION);
+        _baseCount = (int) header.getLong(BinarySnapshot.LINE_COUNT_POSITION);
+        _payloadLength = header.getLong(BinarySnapshot.PAYLOAD_LENGTH_POSITION);
+        long tableLength = (long) _baseCount * 8;
+        _tableStart = BinarySnapshot.HEADER_SIZE;
+        _payloadStart = _tableStart + tableLength;
+        _tableChecksumsStart = _payloadStart + _payloadLength;
+        _payloadChecksumsStart = _tableChecksumsStart
+                + BinarySnapshot.getBlockCount(tableLength) * 4;
+        _verifiedTableBlocks = new long[(int) (BinarySnapshot.getBlockCount(tableLength) / 64 + 1)];
+        _verifiedPayloadBlocks = new long[(int) (BinarySnapshot.getBlockCount(_payloadLength) / 64
+                + 1)];
+        _blockBytes = new byte[BinarySnapshot.BLOCK_SIZE];
+        _size = _baseCount;
+
+        long fileSize = channel.size();
+        int segmentCount = (int) ((fileSize + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        _segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            long length = Math.min(SEGMENT_SIZE, fileSize - start);
+            _segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+    }
+
+    /**
+     * Creates a store reading from the same mapped snapshot as another, with
+     * no entries until snapshot fills them in
+     */
+    private SnapshotEntryStore(SnapshotEntryStore source) {
+        _snapshotFile = source._snapshotFile;
+        _channel = source._channel;
+        _channel.hold();
+        _segments = source._segments;
+        _checksumType = source._checksumType;
+        _baseCount = source._baseCount;
+        _tableStart = source._tableStart;
+        _payloadStart = source._payloadStart;
+        _payloadLength = source._payloadLength;
+        _tableChecksumsStart = source._tableChecksumsStart;
+        _payloadChecksumsStart = source._payloadChecksumsStart;
+        _verifiedTableBlocks = source._verifiedTableBlocks;
+        _verifiedPayloadBlocks = source._verifiedPayloadBlocks;
+        _blockBytes = source._blockBytes;
+    }
+
+    /**
+     * Opens the binary snapshot of a data file if it has one that matches the
+     * data file as it is now
+     *
+     * @return the store, or null if there is no such snapshot or it cannot
+     *         be used
+     */
+    static SnapshotEntryStore open(String dataFileName) {
+        File dataFile = new File(dataFileName);
+        File snapshotFile = BinarySnapshot.getSnapshotFile(dataFileName);
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+        try {
+            FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(BinarySnapshot.HEADER_SIZE);
+            int read = 0;
+            while (header.hasRemaining() && read != -1) {
+                read = channel.read(header);
+            }
+            if (!header.hasRemaining() && isUsable(header, channel.size(), dataFile)) {
+                return new SnapshotEntryStore(snapshotFile, channel, header);
+            }
+            channel.close();
+        } catch (IOException e) {
+            // the entries are read from the data file instead
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Checks the header of a snapshot, and that it was written for the data
+     * file as it is now
+     */
+    private static boolean isUsable(ByteBuffer header, long fileSize, File dataFile) {
+        Checksum checksum = BinarySnapshot.newChecksum(
+                header.getInt(BinarySnapshot.CHECKSUM_TYPE_POSITION));
+        if (header.getLong(BinarySnapshot.MAGIC_POSITION) != BinarySnapshot.MAGIC
+                || header.getInt(BinarySnapshot.VERSION_POSITION) != BinarySnapshot.VERSION
+                || header.getInt(BinarySnapshot.BLOCK_SIZE_POSITION) != BinarySnapshot.BLOCK_SIZE
+                || checksum == null
+                || header.getInt(BinarySnapshot.HEADER_CHECKSUM_POSITION)
+                        != BinarySnapshot.getHeaderChecksum(header, checksum)) {
+            return false;
+        }
+        long lineCount = header.getLong(BinarySnapshot.LINE_COUNT_POSITION);
+        long payloadLength = header.getLong(BinarySnapshot.PAYLOAD_LENGTH_POSITION);
+        long expectedSize = BinarySnapshot.HEADER_SIZE + lineCount * 8 + payloadLength
+                + BinarySnapshot.getBlockCount(lineCount * 8) * 4
+                + BinarySnapshot.getBlockCount(payloadLength) * 4;
+        return lineCount <= Integer.MAX_VALUE && expectedSize == fileSize
+                && header.getLong(BinarySnapshot.TEXT_LENGTH_POSITION) == dataFile.length()
+                && header.getLong(BinarySnapshot.TEXT_MODIFIED_POSITION) == dataFile.lastModified();
+    }
+
+    @Override
+    public String get(int index) {
+        checkIndex(index);
+        if (_offsets == null) {
+            return (index < _baseCount) ? decodeEntry(readTableOffset(index))
+                    : _appended[index - _baseCount];
+        }
+        return (_offsets[index] == NOT_MAPPED) ? _strings[index] : decodeEntry(_offsets[index]);
+    }
+
+    @Override
+    void writeEntry(int index, OutputSink sink) {
+        checkIndex(index);
+        long offset = NOT_MAPPED;
+        if (_offsets == null && index < _baseCount) {
+            offset = readTableOffset(index);
+        } else if (_offsets != null) {
+            offset = _offsets[index];
+        }
+        if (offset == NOT_MAPPED || !sink.isUtf8()) {
+            super.writeEntry(index, sink);
+            return;
+        }
+        long position = _payloadStart + offset;
+        verifyPayload(offset, offset + 5);
+        int length = readLength(position);
+        long start = position + PackedEntryStore.getLengthSize(length);
+        verifyPayload(offset, start - _payloadStart + length);
+        int segmentIndex = (int) (start >>> SEGMENT_SHIFT);
+        if (length == 0 || segmentIndex == (int) ((start + length - 1) >>> SEGMENT_SHIFT)) {
+            ByteBuffer segment = _segments[segmentIndex].duplicate();
+            int segmentOffset = (int) (start & (SEGMENT_SIZE - 1));
+            segment.limit(segmentOffset + length);
+            segment.position(segmentOffset);
+            sink.write(segment);
+        } else {
+            super.writeEntry(index, sink);
+        }
+    }
+
+    @Override
+    public String set(int index, String dataLine) {
+        String previous = get(index);
+        copyTable();
+        subtractStringBytes(index, index + 1);
+        _offsets[index] = NOT_MAPPED;
+        _strings[index] = dataLine;
+        _stringBytes += estimateStringBytes(dataLine);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, String dataLine) {
+        if (index < 0 || index > _size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _size);
+        }
+        if (_offsets == null && index == _size) {
+            int appendedCount = _size - _baseCount;
+            if (appendedCount == _appended.length) {
+                _appended = Arrays.copyOf(_appended, appendedCount * 2);
+                _isTableShared = false;
+            } else if (_isTableShared) {
+                _appended = _appended.clone();
+                _isTableShared = false;
+            }
+            _appended[appendedCount] = dataLine;
+            _stringBytes += estimateStringBytes(dataLine);
+            _size++;
+            modCount++;
+            return;
+        }
+        copyTable();
+        ensureCapacity(_size + 1);
+        System.arraycopy(_offsets, index, _offsets, index + 1, _size - index);
+        System.arraycopy(_strings, index, _strings, index + 1, _size - index);
+        _offsets[index] = NOT_MAPPED;
+        _strings[index] = dataLine;
+        _stringBytes += estimateStringBytes(dataLine);
+        _size++;
+        modCount++;
+    }
+
+    @Override
+    public String remove(int index) {
+        String removed = get(index);
+        copyTable();
+        subtractStringBytes(index, index + 1);
+        System.arraycopy(_offsets, index + 1, _offsets, index, _size - index - 1);
+        System.arraycopy(_strings, index + 1, _strings, index, _size - index - 1);
+        _size--;
+        _strings[_size] = null;
+        modCount++;
+        return removed;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        copyTable();
+        subtractStringBytes(fromIndex, toIndex);
+        System.arraycopy(_offsets, toIndex, _offsets, fromIndex, _size - toIndex);
+        System.arraycopy(_strings, toIndex, _strings, fromIndex, _size - toIndex);
+        int newSize = _size - (toIndex - fromIndex);
+        Arrays.fill(_strings, newSize, _size, null);
+        _size = newSize;
+        modCount++;
+    }
+
+    @Override
+    public void clear() {
+        _appended = null;
+        _offsets = new long[INITIAL_CAPACITY];
+        _strings = new String[INITIAL_CAPACITY];
+        _isTableShared = false;
+        _stringBytes = 0;
+        _size = 0;
+        modCount++;
+    }
+
+    /**
+     * Reorders the offsets, so entries in the snapshot stay mapped
+     */
+    @Override
+    void permute(int[] order) {
+        copyTable();
+        long[] offsets = new long[_offsets.length];
+        String[] strings = new String[_strings.length];
+        for (int i = 0; i < _size; i++) {
+            offsets[i] = _offsets[order[i]];
+            strings[i] = _strings[order[i]];
+        }
+        _offsets = offsets;
+        _strings = strings;
+        _isTableShared = false;
+        modCount++;
+    }
+
+    @Override
+    EntryStore snapshot() {
+        SnapshotEntryStore copy = new SnapshotEntryStore(this);
+        copy._appended = _appended;
+        copy._offsets = _offsets;
+        copy._strings = _strings;
+        copy._size = _size;
+        copy._stringBytes = _stringBytes;
+        copy._isTableShared = true;
+        _isTableShared = true;
+        return copy;
+    }
+
+    /**
+     * Closes the snapshot file once no snapshot of the store reads it
+     */
+    @Override
+    void close() {
+        if (!_isClosed) {
+            _isClosed = true;
+            _channel.release();
+        }
+    }
+
+    /**
+     * Counts the offsets and the entries kept as Strings. The mapped file is
+     * not on the heap.
+     */
+    @Override
+    long estimateHeapBytes() {
+        long bytes = 16 + (long) (_verifiedTableBlocks.length + _verifiedPayloadBlocks.length) * 8
+                + _blockBytes.length;
+        String[] strings = (_offsets == null) ? _appended : _strings;
+        if (_offsets != null) {
+            bytes += 16 + (long) _offsets.length * 8;
+        }
+        return bytes + 16 + (long) strings.length * 4 + _stringBytes;
+    }
+
+    @Override
+    public int size() {
+        return _size;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= _size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + _size);
+        }
+    }
+
+    /**
+     * Takes the Strings in [fromIndex, toIndex) out of _stringBytes, once the
+     * table is copied
+     */
+    private void subtractStringBytes(int fromIndex, int toIndex) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            if (_strings[i] != null) {
+                _stringBytes -= estimateStringBytes(_strings[i]);
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= _offsets.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, _offsets.length + (_offsets.length >> 1));
+        _offsets = Arrays.copyOf(_offsets, newCapacity);
+        _strings = Arrays.copyOf(_strings, newCapacity);
+    }
+
+    /**
+     * Copies the mapped table and the appended entries into arrays, before
+     * the first change that is not an append. Offsets that a snapshot shares
+     * are copied before they change.
+     */
+    private void copyTable() {
+        if (_offsets != null) {
+            if (_isTableShared) {
+                _offsets = _offsets.clone();
+                _strings = _strings.clone();
+                _isTableShared = false;
+            }
+            return;
+        }
+        int capacity = Math.max(INITIAL_CAPACITY, _size);
+        long[] offsets = new long[capacity];
+        String[] strings = new String[capacity];
+        for (int i = 0; i < _baseCount; i++) {
+            offsets[i] = readTableOffset(i);
+        }
+        for (int i = _baseCount; i < _size; i++) {
+            offsets[i] = NOT_MAPPED;
+            strings[i] = _appended[i - _baseCount];
+        }
+        _offsets = offsets;
+        _strings = strings;
+        _appended = null;
+        _isTableShared = false;
+    }
+
+    /**
+     * Reads the payload offset of an entry from the table. An offset never
+     * crosses a segment, as the table starts at a multiple of 8.
+     */
+    private long readTableOffset(int index) {
+        long tableOffset = (long) index * 8;
+        long blockIndex = tableOffset / BinarySnapshot.BLOCK_SIZE;
+        if (!isVerified(_verifiedTableBlocks, blockIndex)) {
+            verifyBlock(_tableStart, _payloadStart, _tableChecksumsStart, blockIndex,
+                    _verifiedTableBlocks);
+        }
+        long position = _tableStart + tableOffset;
+        return _segments[(int) (position >>> SEGMENT_SHIFT)].getLong(
+                (int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    private String decodeEntry(long offset) {
+        long position = _payloadStart + offset;
+        verifyPayload(offset, offset + 5);
+        int length = readLength(position);
+        long start = position + PackedEntryStore.getLengthSize(length);
+        verifyPayload(offset, start - _payloadStart + length);
+
+        byte[] bytes = new byte[length];
+        int segmentIndex = (int) (start >>> SEGMENT_SHIFT);
+        if (length == 0 || segmentIndex == (int) ((start + length - 1) >>> SEGMENT_SHIFT)) {
+            ByteBuffer segment = _segments[segmentIndex].duplicate();
+            segment.position((int) (start & (SEGMENT_SIZE - 1)));
+            segment.get(bytes);
+        } else {
+            readFully(ByteBuffer.wrap(bytes), start);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readLength(long position) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = byteAt(position++);
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return length;
+    }
+
+    private byte byteAt(long position) {
+        MappedByteBuffer segment = _segments[(int) (position >>> SEGMENT_SHIFT)];
+        return segment.get((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    private void readFully(ByteBuffer buffer, long position) {
+        try {
+            while (buffer.hasRemaining()) {
+                _channel.getChannel().read(buffer, position + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Checks the payload blocks holding [from, to) of the payload that have
+     * not been checked yet
+     */
+    private void verifyPayload(long from, long to) {
+        to = Math.min(to, _payloadLength);
+        for (long block = from / BinarySnapshot.BLOCK_SIZE; block * BinarySnapshot.BLOCK_SIZE < to;
+                block++) {
+            if (!isVerified(_verifiedPayloadBlocks, block)) {
+                verifyBlock(_payloadStart, _tableChecksumsStart, _payloadChecksumsStart, block,
+                        _verifiedPayloadBlocks);
+            }
+        }
+    }
+
+    private static boolean isVerified(long[] verifiedBlocks, long block) {
+        return (verifiedBlocks[(int) (block >>> 6)] & (1L << block)) != 0;
+    }
+
+    /**
+     * Checks a block of a region against its checksum, once. The snapshots
+     * of the store check their blocks under the same lock.
+     *
+     * @throws CorruptSnapshotException
+     *             if the block does not match its checksum
+     */
+    private void verifyBlock(long regionStart, long regionEnd, long checksumsStart, long block,
+            long[] verifiedBlocks) {
+        synchronized (_blockBytes) {
+            if (isVerified(verifiedBlocks, block)) {
+                return;
+            }
+            long start = regionStart + block * BinarySnapshot.BLOCK_SIZE;
+            int length = (int) Math.min(BinarySnapshot.BLOCK_SIZE, regionEnd - start);
+            ByteBuffer bytes = ByteBuffer.wrap(_blockBytes, 0, length);
+            readFully(bytes, start);
+            Checksum checksum = BinarySnapshot.newChecksum(_checksumType);
+            checksum.update(_blockBytes, 0, length);
+
+            long checksumPosition = checksumsStart + block * 4;
+            int expected = 0;
+            for (int i = 0; i < 4; i++) {
+                expected = (expected << 8) | (byteAt(checksumPosition + i) & 0xFF);
+            }
+            if ((int) checksum.getValue() != expected) {
+                throw new CorruptSnapshotException("Corrupt block " + block + " in "
+                        + _snapshotFile);
+            }
+            verifiedBlocks[(int) (block >>> 6)] |= 1L << block;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class is the case-insensitive sort key of one entry, worked out once
+ * per sort instead of on every comparison the way String.CASE_INSENSITIVE_ORDER
+ * does.
+ *
+ * String.CASE_INSENSITIVE_ORDER compares two chars as equal when their upper
+ * cases or the lower cases of those are equal, else by the lower cases of
+ * their upper cases. So folding each char to toLowerCase(toUpperCase(c)) and
+ * comparing the folded Strings gives the same order. A key keeps the first
+ * PREFIX_CHARS folded chars packed into a long, which settles most
+ * comparisons without reading the Strings, and the folded String for the
+ * rest.
+ *
+ * Since Java 16 the comparator folds surrogate pairs as code points, which
+ * folding chars does not match, so entries with surrogates keep no folded
+ * String and are compared with String.CASE_INSENSITIVE_ORDER itself. Every
+ * comparison gives the same result as that comparator, which keeps the sort
+ * order identical.
+ *
+ * @author Wz
+ *
+ */
+class SortKey implements Comparable<SortKey> {
+    static final int PREFIX_CHARS = 4;
+    // below this many entries a parallel sort only adds overhead
+    static final int MIN_PARALLEL_SORT_SIZE = 1 << 13;
+
+    private static final char[] LATIN1_FOLDS = new char[256];
+
+    static {
+        for (char c = 0; c < LATIN1_FOLDS.length; c++) {
+            LATIN1_FOLDS[c] = Character.toLowerCase(Character.toUpperCase(c));
+        }
+    }
+
+    private final long _prefix;
+    // null if the entry has surrogates
+    private final String _folded;
+    private final String _dataLine;
+    private final int _index;
+
+    SortKey(String dataLine, int index) {
+        _dataLine = dataLine;
+        _index = index;
+        _folded = fold(dataLine);
+        _prefix = (_folded == null) ? 0 : getPrefix(_folded);
+    }
+
+    /**
+     * Works out the stable case-insensitive sorted order of entries, sorting
+     * in parallel when there are many
+     *
+     * @return the order, where order[i] is the position of the entry that
+     *         sorts i-th
+     */
+    static int[] getSortOrder(List<String> dataLines) {
+        SortKey[] keys = new SortKey[dataLines.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new SortKey(dataLines.get(i), i);
+        }
+        if (keys.length >= MIN_PARALLEL_SORT_SIZE) {
+            Arrays.parallelSort(keys);
+        } else {
+            Arrays.sort(keys);
+        }
+        int[] order = new int[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = keys[i]._index;
+        }
+        return order;
+    }
+
+    static char foldChar(char c) {
+        if (c < LATIN1_FOLDS.length) {
+            return LATIN1_FOLDS[c];
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * @return the entry with every char folded, the entry itself if no char
+     *         changes, or null if the entry has surrogates
+     */
+    static String fold(String dataLine) {
+        char[] folded = null;
+        for (int i = 0; i < dataLine.length(); i++) {
+            char c = dataLine.charAt(i);
+            if (Character.isSurrogate(c)) {
+                return null;
+            }
+            char foldedChar = foldChar(c);
+            if (foldedChar != c && folded == null) {
+                folded = dataLine.toCharArray();
+            }
+            if (folded != null) {
+                folded[i] = foldedChar;
+            }
+        }
+        return (folded == null) ? dataLine : new String(folded);
+    }
+
+    /**
+     * Packs the first PREFIX_CHARS chars of a folded entry, padded with 0,
+     * into a long that compares unsigned in their order
+     */
+    static long getPrefix(String folded) {
+        long prefix = 0;
+        int length = Math.min(folded.length(), PREFIX_CHARS);
+        for (int i = 0; i < length; i++) {
+            prefix |= (long) folded.charAt(i) << (16 * (PREFIX_CHARS - 1 - i));
+        }
+        return prefix;
+    }
+
+    /**
+     * Compares as String.CASE_INSENSITIVE_ORDER does, then by position so
+     * that the sort is stable
+     */
+    @Override
+    public int compareTo(SortKey other) {
+        int result;
+        if (_folded == null || other._folded == null) {
+            result = String.CASE_INSENSITIVE_ORDER.compare(_dataLine, other._dataLine);
+        } else {
+            result = Long.compareUnsigned(_prefix, other._prefix);
+            if (result == 0) {
+                result = _folded.compareTo(other._folded);
+            }
+        }
+        return (result != 0) ? result : Integer.compare(_index, other._index);
+    }
+}
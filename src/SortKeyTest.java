@@ -0,0 +1,64 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SortKeyTest {
+    // letters whose cases fold in unusual ways, and a surrogate pair
+    private static final String CHARS = "aAbBzZ019 _\u00b5\u00df\u00ff\u0130\u0131iI"
+            + "\u03a3\u03c3\u03c2\u1e9e\uff21\uff41\ud801\udc00\ud801\udc28";
+
+    private ArrayList<String> createEntries(int count, Random random) {
+        ArrayList<String> dataLines = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder dataLine = new StringBuilder();
+            int length = random.nextInt(7);
+            for (int j = 0; j < length; j++) {
+                dataLine.append(CHARS.charAt(random.nextInt(CHARS.length())));
+            }
+            dataLines.add(dataLine.toString());
+        }
+        return dataLines;
+    }
+
+    private int[] getExpectedOrder(final ArrayList<String> dataLines) {
+        Integer[] boxedOrder = new Integer[dataLines.size()];
+        for (int i = 0; i < boxedOrder.length; i++) {
+            boxedOrder[i] = i;
+        }
+        Arrays.sort(boxedOrder, new Comparator<Integer>() {
+            public int compare(Integer first, Integer second) {
+                return String.CASE_INSENSITIVE_ORDER.compare(dataLines.get(first),
+                        dataLines.get(second));
+            }
+        });
+        int[] order = new int[boxedOrder.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = boxedOrder[i];
+        }
+        return order;
+    }
+
+    @Test
+    public void sameOrderAsComparatorTest() {
+        Random random = new Random(1);
+        for (int count : new int[] { 0, 1, 100, 2 * SortKey.MIN_PARALLEL_SORT_SIZE }) {
+            ArrayList<String> dataLines = createEntries(count, random);
+            assertArrayEquals(getExpectedOrder(dataLines), SortKey.getSortOrder(dataLines));
+        }
+    }
+
+    @Test
+    public void foldTest() {
+        String dataLine = "already folded";
+        assertSame(dataLine, SortKey.fold(dataLine));
+        assertEquals("mixed case", SortKey.fold("MiXeD CaSe"));
+        assertNull(SortKey.fold("pair \ud801\udc00"));
+        assertEquals(SortKey.getPrefix("ab"), SortKey.getPrefix(SortKey.fold("AB")));
+        assertTrue(Long.compareUnsigned(SortKey.getPrefix("a"), SortKey.getPrefix("ab")) < 0);
+    }
+}
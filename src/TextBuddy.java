@@ -1,17 +1,33 @@
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.PatternSyntaxException;
+
+import javax.management.JMException;
 
 /**
  * This class is used for interacting with a user to add, delete, display or
  * clear entries. It will also load from and save to a file. The file is saved
- * on exit.
+ * on exit, on the save command and with --autosave every few seconds, the
+ * last two in the background.
  * 
  * Assumptions made: Single word commands only works if they are inputed as
  * single words.
@@ -21,6 +37,7 @@ import java.util.Scanner;
  */
 public class TextBuddy {
     private static final String SEARCH_FOUND_MSG = "word: \"%s\" found in %s entries";
+    private static final String SEARCH_LIMIT_REACHED_MSG = "word: \"%s\" found in at least %s entries";
     private static final String SEARCH_FAIL_MSG = "%s not found";
     private static final String SORTED_MSG = "%s sorted";
     private static final String NO_ENTRIES_TO_SEARCH_MSG = "%s is empty, nothing to search";
@@ -30,13 +47,65 @@ public class TextBuddy {
     private static final String NO_ENTRIES_MSG = "%1$s is empty";
     private static final String CLEAR_ENTRIES_MSG = "all content deleted from %1$s";
     private static final String DELETE_ENTRY_MSG = "deleted from %1$s: \"%2$s\"";
+    private static final String DELETE_RANGE_MSG = "deleted %2$s entries from %1$s";
     private static final String ADD_ENTRY_MSG = "added to %1$s: \"%2$s\"";
+    private static final String UNDO_MSG = "undid %2$s in %1$s";
+    private static final String REDO_MSG = "redid %2$s in %1$s";
+    private static final String NOTHING_TO_UNDO_MSG = "nothing to undo in %1$s";
+    private static final String NOTHING_TO_REDO_MSG = "nothing to redo in %1$s";
+    private static final String DUPLICATE_ENTRY_MSG = "already in %1$s: \"%2$s\"";
+    private static final String DEDUPE_MSG = "deleted %2$s duplicate entries from %1$s";
+    private static final String NO_DUPLICATES_MSG = "no duplicate entries in %1$s";
+    private static final String SAVING_MSG = "saving %1$s in the background";
+    private static final String SAVED_MSG = "saved %1$s";
+    private static final String STILL_SAVING_MSG = "still saving %1$s, try again when it is done";
+    private static final String NOTHING_TO_SAVE_MSG = "no changes to save in %1$s";
+    private static final String IMPORT_MSG = "imported %2$s entries from %3$s to %1$s";
+    private static final String EXPORT_MSG = "exported %2$s entries from %1$s to %3$s";
     private static final String ARGUMENT_ERROR_MSG = "Error, this program expects only 1 argument"
                                                     + " as the filename";
     private static final String INVALID_INDEX_MSG = "Invalid index";
     private static final String INVALID_COMMAND_PARAMETER_MSG = "Invalid command parameter";
     private static final String INVALID_COMMAND_MSG = "Invalid command";
-    private static final String REQUEST_MSG = "command: ";
+    private static final String INVALID_SEARCH_PATTERN_MSG = "Invalid search pattern: %1$s";
+    private static final String INVALID_OPTION_MSG = "Error, unknown option %1$s";
+    private static final String FILE_ACCESS_ERROR_MSG = "Error, cannot access %1$s";
+    private static final String EXPORT_TO_ITSELF_MSG = "Error, cannot export %1$s to itself";
+    private static final String DAMAGED_SNAPSHOT_MSG = "Error, the binary snapshot of %1$s is "
+            + "damaged, the entries were loaded again from the file";
+    static final String REQUEST_MSG = "command: ";
+
+    private static final String OPTION_PREFIX = "--";
+    private static final String OPTION_LOAD = "--load=";
+    private static final String OPTION_STORE = "--store=";
+    private static final String OPTION_KEEP_SORTED = "--keep-sorted";
+    static final String OPTION_BATCH = "--batch";
+    static final String OPTION_INTERACTIVE = "--interactive";
+    static final String OPTION_SERVER = "--server=";
+    private static final String OPTION_SEARCH = "--search=";
+    private static final String OPTION_UNDO_MEMORY = "--undo-memory=";
+    private static final String OPTION_BINARY_SNAPSHOT = "--binary-snapshot";
+    private static final String OPTION_AUTOSAVE = "--autosave=";
+
+    private static final String LOAD_MODE_AUTO = "auto";
+    private static final String LOAD_MODE_MAPPED = "mapped";
+    private static final String LOAD_MODE_STREAM = "stream";
+    private static final long MAPPED_LOAD_THRESHOLD = 64L * 1024 * 1024;
+    private static final long PARALLEL_LOAD_THRESHOLD = 4L * 1024 * 1024;
+    static final int BATCH_READ_BUFFER_SIZE = 1024 * 1024;
+    static final int MAX_COALESCED_ADDS = 64 * 1024;
+    private static final int PARALLEL_SEARCH_THRESHOLD = 64 * 1024;
+    private static final int SEARCH_SEGMENT_SIZE = 16 * 1024;
+    private static final int MAX_INDEXED_RANGE_DELETE = 1024;
+    private static final String RANGE_SEPARATOR = "-";
+    private static final String SEARCH_COUNT_FLAG = "-c ";
+    private static final String SEARCH_LIMIT_FLAG = "-n ";
+    private static final String ADD_UNIQUE_FLAG = "--unique ";
+    private static final long DEFAULT_UNDO_MEMORY_MB = 64;
+    private static final long BYTES_PER_MB = 1024 * 1024;
+    static final long NOT_AN_INTEGER = Long.MIN_VALUE;
+    private static final boolean READS_ENTRIES = true;
+    private static final boolean CHANGES_ENTRIES = false;
 
     private static final String COMMAND_EXIT = "exit";
     private static final String COMMAND_ADD = "add";
@@ -45,46 +114,173 @@ public class TextBuddy {
     private static final String COMMAND_DISPLAY = "display";
     private static final String COMMAND_SORT = "sort";
     private static final String COMMAND_SEARCH = "search";
+    private static final String COMMAND_STATS = "stats";
+    private static final String COMMAND_UNDO = "undo";
+    private static final String COMMAND_REDO = "redo";
+    private static final String COMMAND_DEDUPE = "dedupe";
+    private static final String COMMAND_SAVE = "save";
+    private static final String COMMAND_IMPORT = "import";
+    private static final String COMMAND_EXPORT = "export";
 
     private final String WELCOME_MSG;
 
     private String _fileName;
-    private ArrayList<String> _dataLines;
+    private EntryStore _dataLines;
+    private WordIndex _wordIndex = new WordIndex();
+    private TrigramIndex _trigramIndex = new TrigramIndex();
+    private HashIndex _hashIndex = new HashIndex();
+    private OperationLog _operationLog;
+    private UndoJournal _undoJournal = new UndoJournal(DEFAULT_UNDO_MEMORY_MB * BYTES_PER_MB);
+    private String _loadMode = LOAD_MODE_AUTO;
+    private String _storeType = EntryStore.STORE_LIST;
+    private String _searchMode = SearchQuery.MODE_WORD;
+    private boolean _isKeepingSorted = false;
+    private boolean _isUsingBinarySnapshot = false;
+    // set once the binary snapshot matches the file, after which every change
+    // is in the operation log until the next fold writes it again
+    private volatile boolean _isBinarySnapshotCurrent = false;
+    private int _autosaveSeconds = 0;
+    private Thread _autosaver;
+    private boolean _isSorted = false;
+    private boolean _isBatchMode = false;
     private Scanner _scanner;
+    private OutputSink _output;
+    private ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+    private int _serverPort = -1;
+    private CommandMetrics _metrics;
+    private final EnumMap<Command, CommandHandler> _handlers = createHandlers();
+    // each thread running commands, such as a server session, reuses its own
+    private final ThreadLocal<CommandObject> _commandObjects = new ThreadLocal<CommandObject>() {
+        @Override
+        protected CommandObject initialValue() {
+            return new CommandObject();
+        }
+    };
     private boolean _canExit = false;
 
+    /**
+     * This enum lists the commands with their verbs, and marks those that only
+     * read the entries, which run under the read lock. Each command has its
+     * handler in createHandlers.
+     */
+    enum Command {
+        EXIT(COMMAND_EXIT, CHANGES_ENTRIES),
+        ADD(COMMAND_ADD, CHANGES_ENTRIES),
+        DELETE(COMMAND_DELETE, CHANGES_ENTRIES),
+        CLEAR(COMMAND_CLEAR, CHANGES_ENTRIES),
+        DISPLAY(COMMAND_DISPLAY, READS_ENTRIES),
+        SORT(COMMAND_SORT, CHANGES_ENTRIES),
+        SEARCH(COMMAND_SEARCH, READS_ENTRIES),
+        STATS(COMMAND_STATS, READS_ENTRIES),
+        UNDO(COMMAND_UNDO, CHANGES_ENTRIES),
+        REDO(COMMAND_REDO, CHANGES_ENTRIES),
+        DEDUPE(COMMAND_DEDUPE, CHANGES_ENTRIES),
+        SAVE(COMMAND_SAVE, CHANGES_ENTRIES),
+        IMPORT(COMMAND_IMPORT, CHANGES_ENTRIES),
+        EXPORT(COMMAND_EXPORT, READS_ENTRIES);
+
+        private static final Command[] ALL = values();
+
+        private final String _verb;
+        private final boolean _isReadOnly;
+
+        Command(String verb, boolean isReadOnly) {
+            _verb = verb;
+            _isReadOnly = isReadOnly;
+        }
+
+        String getVerb() {
+            return _verb;
+        }
+
+        boolean isReadOnly() {
+            return _isReadOnly;
+        }
+    }
+
     /**
      * This class is for processing command inputs into two elements: the
-     * command and its parameter
+     * command and its parameter. It reads the input in place: the verb is
+     * matched against the known commands ignoring case without making a
+     * lowercase copy, and an integer parameter is parsed without a substring
+     * or an exception. A CommandObject can be reset and reused for the next
+     * input, so parsing a command allocates nothing but its parameter.
      * 
      * @author Wz
      *
      */
     static class CommandObject {
+        private String _input;
+        private int _commandEnd;
+        // null for an unknown command
+        private Command _commandType;
         private String _command;
         private String _commandParameter;
         private int _commandParameterAsInteger;
 
+        CommandObject() {
+            reset("");
+        }
+
         CommandObject(String commandMessage) {
-            boolean isSingleWord = (commandMessage.indexOf(' ') == -1);
-            if (isSingleWord) {
-                _command = commandMessage.toLowerCase();
-            } else {
-                _command = commandMessage.substring(0, commandMessage.indexOf(' '));
-                _command = _command.toLowerCase();
-                _commandParameter = commandMessage.substring(commandMessage.indexOf(' ') + 1);
+            reset(commandMessage);
+        }
+
+        /**
+         * Parses a new input into this object
+         */
+        void reset(String commandMessage) {
+            _input = commandMessage;
+            int separator = commandMessage.indexOf(' ');
+            _commandEnd = (separator == -1) ? commandMessage.length() : separator;
+            _commandType = findCommand(commandMessage, _commandEnd);
+            _command = (_commandType == null) ? null : _commandType.getVerb();
+            _commandParameter = null;
+            _commandParameterAsInteger = 0;
+        }
+
+        private static Command findCommand(String input, int commandEnd) {
+            for (Command command : Command.ALL) {
+                if (command.getVerb().length() == commandEnd
+                        && input.regionMatches(true, 0, command.getVerb(), 0, commandEnd)) {
+                    return command;
+                }
             }
+            return null;
+        }
+
+        static boolean isCommand(String input, String command) {
+            int separator = input.indexOf(' ');
+            int commandEnd = (separator == -1) ? input.length() : separator;
+            return command.length() == commandEnd
+                    && input.regionMatches(true, 0, command, 0, commandEnd);
         }
 
         boolean hasParameters() {
-            return _commandParameter != null;
+            return _commandEnd < _input.length();
+        }
+
+        /**
+         * @return the command, or null if it is not a known one
+         */
+        Command getCommandType() {
+            return _commandType;
         }
 
+        /**
+         * @return the command in lowercase
+         */
         String getCommand() {
+            if (_command == null) {
+                _command = _input.substring(0, _commandEnd).toLowerCase();
+            }
             return _command;
         }
 
         String getParameters() {
+            if (_commandParameter == null && hasParameters()) {
+                _commandParameter = _input.substring(_commandEnd + 1);
+            }
             return _commandParameter;
         }
 
@@ -98,12 +294,15 @@ public class TextBuddy {
          * @return true if successful, else false;
          */
         boolean processParameterAsInteger() {
-            try {
-                _commandParameterAsInteger = Integer.parseInt(_commandParameter);
-                return true;
-            } catch (Exception e) {
+            if (!hasParameters()) {
+                return false;
+            }
+            long value = parseInteger(_input, _commandEnd + 1, _input.length());
+            if (value == NOT_AN_INTEGER) {
                 return false;
             }
+            _commandParameterAsInteger = (int) value;
+            return true;
         }
     }
 
@@ -117,41 +316,143 @@ public class TextBuddy {
     public TextBuddy(String fileName) {
         _fileName = fileName;
         _scanner = new Scanner(System.in);
+        _output = new OutputSink(System.out, Charset.defaultCharset());
+        _metrics = new CommandMetrics(this, COMMAND_ADD, COMMAND_DELETE, COMMAND_CLEAR,
+                COMMAND_DISPLAY, COMMAND_SORT, COMMAND_SEARCH, COMMAND_UNDO, COMMAND_REDO);
         WELCOME_MSG = String.format(PRE_FORMATTED_WELCOME_MSG, _fileName);
     }
 
+    /**
+     * Loads the entries from the file and starts logging changes to it. Changes
+     * left in the log by a session that did not exit cleanly are folded into
+     * the file first. Starts autosaving if --autosave was given.
+     */
     public void loadData() {
         _dataLines = getDataFromFile();
+        invalidateIndexes();
+        _isSorted = _dataLines.isEmpty();
+        _undoJournal.clear();
+        _operationLog = new OperationLog(_fileName);
+        if (_operationLog.hasPendingLogs()) {
+            saveDataToFile(_dataLines);
+        } else {
+            _operationLog.setLoadedLineCount(_dataLines.size());
+        }
+        if (_autosaveSeconds > 0 && _autosaver == null) {
+            startAutosave();
+        }
+    }
+
+    /**
+     * Starts a thread that runs a save every _autosaveSeconds, until close
+     */
+    private void startAutosave() {
+        _autosaver = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(_autosaveSeconds * 1000L);
+                        _lock.writeLock().lock();
+                        try {
+                            if (_autosaver != Thread.currentThread()) {
+                                return;
+                            }
+                            saveInBackground();
+                        } finally {
+                            _lock.writeLock().unlock();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // stopped by close
+                }
+            }
+        }, "TextBuddy autosaver");
+        _autosaver.setDaemon(true);
+        _autosaver.start();
     }
 
     public void setDataLines(ArrayList<String> data) {
         if (_dataLines == null) {
-            _dataLines = new ArrayList<String>();
+            _dataLines = EntryStore.create(_storeType);
         }
         _dataLines.clear();
         for (String line : data) {
             _dataLines.add(line);
         }
+        invalidateIndexes();
+        _isSorted = _dataLines.isEmpty();
+        _undoJournal.clear();
     }
 
     public void setDataLines(String[] data) {
         if (_dataLines == null) {
-            _dataLines = new ArrayList<String>();
+            _dataLines = EntryStore.create(_storeType);
         }
         _dataLines.clear();
         for (String line : data) {
             _dataLines.add(line);
         }
+        invalidateIndexes();
+        _isSorted = _dataLines.isEmpty();
+        _undoJournal.clear();
     }
 
-    public ArrayList<String> getDataLines() {
+    public EntryStore getDataLines() {
         return _dataLines;
     }
 
+    OperationLog getOperationLog() {
+        return _operationLog;
+    }
+
+    /**
+     * Loads the file and runs commands until exit. Batch mode is only used
+     * when --batch is given: there is no console whenever stdout is
+     * redirected or the program runs in an IDE, so the console does not tell
+     * if the input is piped in.
+     */
     public void start() {
+        try {
+            _metrics.register(_fileName);
+        } catch (JMException e) {
+            // the metrics are still shown by the stats command
+            e.printStackTrace();
+        }
         loadData();
         printMessage(WELCOME_MSG);
-        runCoreProcess();
+        if (_serverPort != -1) {
+            runServer();
+        } else if (_isBatchMode) {
+            runBatchProcess(new BufferedReader(new InputStreamReader(System.in),
+                    BATCH_READ_BUFFER_SIZE));
+        } else {
+            runCoreProcess();
+        }
+    }
+
+    /**
+     * Serves the file to clients on the local port given by --server until
+     * the program is stopped, and saves the file on the way out
+     */
+    private void runServer() {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                _lock.writeLock().lock();
+                close();
+            }
+        }));
+        try {
+            TextBuddyServer server = new TextBuddyServer(this);
+            server.bind(_serverPort);
+            server.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    String getWelcomeMessage() {
+        return WELCOME_MSG;
     }
 
     void runCoreProcess() {
@@ -160,23 +461,250 @@ public class TextBuddy {
         }
     }
 
+    /**
+     * Runs commands from a reader without prompts, flushing the output only
+     * when its buffer fills up or the input ends. Runs of add commands are
+     * added in bulk. The end of the input is treated as an exit.
+     * Terminates the program if there is an exception in the input stream
+     */
+    void runBatchProcess(BufferedReader reader) {
+        _isBatchMode = true;
+        ArrayList<String> pendingAdds = new ArrayList<String>();
+        CommandObject cmd = new CommandObject();
+        try {
+            String input;
+            while (!_canExit && (input = reader.readLine()) != null) {
+                cmd.reset(input);
+                if (isPlainAdd(cmd)) {
+                    pendingAdds.add(cmd.getParameters());
+                    if (pendingAdds.size() == MAX_COALESCED_ADDS) {
+                        addPendingEntries(pendingAdds);
+                    }
+                } else {
+                    addPendingEntries(pendingAdds);
+                    processCommand(cmd, _output);
+                }
+            }
+            addPendingEntries(pendingAdds);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        if (!_canExit) {
+            setupForExiting();
+        }
+        _output.flush();
+    }
+
+    /**
+     * Checks if a command is an add that can be added in bulk with others
+     */
+    static boolean isPlainAdd(CommandObject cmd) {
+        return cmd.getCommandType() == Command.ADD && cmd.hasParameters()
+                && !cmd.getParameters().startsWith(ADD_UNIQUE_FLAG);
+    }
+
+    /**
+     * Adds entries in bulk, then writes the response for each one to the
+     * output once their records are on disk
+     */
+    void addPendingEntries(ArrayList<String> pendingAdds) {
+        if (!pendingAdds.isEmpty()) {
+            long start = System.nanoTime();
+            OperationLog operationLog;
+            long loggedBytes;
+            _lock.writeLock().lock();
+            try {
+                addEntries(pendingAdds);
+                operationLog = _operationLog;
+                loggedBytes = (operationLog == null) ? 0 : operationLog.getAppendedBytes();
+            } finally {
+                _lock.writeLock().unlock();
+            }
+            awaitLogged(operationLog, loggedBytes);
+            for (String dataLine : pendingAdds) {
+                printResponse(_output, String.format(ADD_ENTRY_MSG, _fileName, dataLine));
+            }
+            endResponse(_output);
+            _metrics.recordCommands(COMMAND_ADD, pendingAdds.size(), System.nanoTime() - start);
+            pendingAdds.clear();
+        }
+    }
+
+    /**
+     * Checks if there are changes that are not folded into the file yet
+     */
+    boolean hasUnsavedChanges() {
+        return _operationLog != null && _operationLog.hasChanges();
+    }
+
+    /**
+     * Folds the changes into the file, waiting for any running command
+     */
+    void save() {
+        _lock.writeLock().lock();
+        try {
+            saveDataToFile(_dataLines);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stops autosaving, then waits for a background save that is still
+     * running and saves the changes made after it, if there are any. Waits
+     * for any running command. The store and the stores kept for undo are
+     * closed, so the file they map is no longer held open.
+     */
+    void close() {
+        _lock.writeLock().lock();
+        try {
+            if (_autosaver != null) {
+                _autosaver.interrupt();
+                _autosaver = null;
+            }
+            if (_operationLog == null) {
+                saveDataToFile(_dataLines);
+            } else {
+                _operationLog.awaitCompaction();
+                if (hasUnsavedChanges()
+                        || (_isUsingBinarySnapshot && !_isBinarySnapshotCurrent)) {
+                    saveDataToFile(_dataLines);
+                }
+            }
+            _undoJournal.clear();
+            if (_dataLines != null) {
+                _dataLines.close();
+            }
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sends responses to a sink shared with other TextBuddy instances, such
+     * as the files of a workspace
+     */
+    void setOutput(OutputSink output) {
+        _output = output;
+    }
+
     /**
      * This method does some tidying in preparation of the program closing.
      */
     void setupForExiting() {
         _canExit = true;
         _scanner.close();
-        saveDataToFile(_dataLines);
+        close();
+    }
+
+    /**
+     * Applies a command line option
+     * 
+     * @param option
+     *            - an argument starting with "--"
+     * @return true if the option is known, else false
+     */
+    boolean applyOption(String option) {
+        return applyOption(option, this);
+    }
+
+    /**
+     * Checks a command line option without applying it, as a workspace does
+     * before it opens any file
+     */
+    static boolean isValidOption(String option) {
+        return applyOption(option, null);
+    }
+
+    /**
+     * Parses a command line option, and applies it to a TextBuddy if one is
+     * given
+     * 
+     * @return true if the option is known, else false
+     */
+    private static boolean applyOption(String option, TextBuddy textBuddy) {
+        if (option.startsWith(OPTION_LOAD)) {
+            String loadMode = option.substring(OPTION_LOAD.length());
+            boolean isKnownMode = loadMode.equals(LOAD_MODE_AUTO)
+                    || loadMode.equals(LOAD_MODE_MAPPED) || loadMode.equals(LOAD_MODE_STREAM);
+            if (isKnownMode && textBuddy != null) {
+                textBuddy._loadMode = loadMode;
+            }
+            return isKnownMode;
+        }
+        if (option.startsWith(OPTION_STORE)) {
+            String storeType = option.substring(OPTION_STORE.length());
+            boolean isKnownType = EntryStore.isStoreType(storeType);
+            if (isKnownType && textBuddy != null) {
+                textBuddy._storeType = storeType;
+            }
+            return isKnownType;
+        }
+        if (option.startsWith(OPTION_SEARCH)) {
+            String searchMode = option.substring(OPTION_SEARCH.length());
+            boolean isKnownMode = SearchQuery.isMode(searchMode);
+            if (isKnownMode && textBuddy != null) {
+                textBuddy._searchMode = searchMode;
+            }
+            return isKnownMode;
+        }
+        if (option.startsWith(OPTION_UNDO_MEMORY)) {
+            String megabytes = option.substring(OPTION_UNDO_MEMORY.length());
+            long value = parseInteger(megabytes, 0, megabytes.length());
+            if (value >= 0 && textBuddy != null) {
+                textBuddy._undoJournal = new UndoJournal(value * BYTES_PER_MB);
+            }
+            return value >= 0;
+        }
+        if (option.equals(OPTION_BINARY_SNAPSHOT)) {
+            if (textBuddy != null) {
+                textBuddy._isUsingBinarySnapshot = true;
+            }
+            return true;
+        }
+        if (option.startsWith(OPTION_AUTOSAVE)) {
+            int seconds = parsePositiveInteger(option.substring(OPTION_AUTOSAVE.length()));
+            if (seconds != -1 && textBuddy != null) {
+                textBuddy._autosaveSeconds = seconds;
+            }
+            return seconds != -1;
+        }
+        if (option.equals(OPTION_KEEP_SORTED)) {
+            if (textBuddy != null) {
+                textBuddy._isKeepingSorted = true;
+            }
+            return true;
+        }
+        if (option.startsWith(OPTION_SERVER)) {
+            int port = parsePositiveInteger(option.substring(OPTION_SERVER.length()));
+            if (port != -1 && textBuddy != null) {
+                textBuddy._serverPort = port;
+            }
+            return port != -1;
+        }
+        if (option.equals(OPTION_BATCH) || option.equals(OPTION_INTERACTIVE)) {
+            if (textBuddy != null) {
+                textBuddy._isBatchMode = option.equals(OPTION_BATCH);
+            }
+            return true;
+        }
+        return false;
     }
 
     /**
-     * This method stores the data from the file into an ArrayList<String>
+     * This method stores the data from the file into a list, with the changes
+     * in the operation log applied on top. Large files are memory-mapped and
+     * their lines are only decoded when used, and other files of a few MB are
+     * read in chunks on the fork-join pool. With --binary-snapshot, a
+     * binary snapshot that matches the file is mapped instead of the file.
      * Terminates the program if there is an exception in the filestream
      * 
-     * @return an array list of each line in the file
+     * @return a store of each line in the file
      */
-    ArrayList<String> getDataFromFile() {
-        ArrayList<String> dataLines = new ArrayList<String>();
+    EntryStore getDataFromFile() {
+        long start = System.nanoTime();
+        EntryStore dataLines = null;
         try {
             File file = new File(_fileName);
 
@@ -184,46 +712,117 @@ public class TextBuddy {
                 file.createNewFile();
             }
 
-            FileInputStream fs = new FileInputStream(_fileName);
-            BufferedReader br = new BufferedReader(new InputStreamReader(fs));
-            String line;
-
-            while ((line = br.readLine()) != null) {
-                dataLines.add(line);
+            if (_isUsingBinarySnapshot) {
+                dataLines = SnapshotEntryStore.open(_fileName);
+                _isBinarySnapshotCurrent = (dataLines != null);
             }
-
-            br.close();
+            if (dataLines == null && shouldMapFile(file)) {
+                dataLines = new MappedEntryStore(_fileName, Charset.defaultCharset());
+            } else if (dataLines == null) {
+                dataLines = readLines(file);
+            }
+            OperationLog.replay(_fileName, dataLines);
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
+        _metrics.recordLoad(System.nanoTime() - start);
+        return dataLines;
+    }
+
+    private boolean shouldMapFile(File file) {
+        if (!MappedEntryStore.canMap(Charset.defaultCharset())) {
+            return false;
+        }
+        switch (_loadMode) {
+            case LOAD_MODE_MAPPED :
+                return true;
+            case LOAD_MODE_STREAM :
+                return false;
+            default :
+                return file.length() >= MAPPED_LOAD_THRESHOLD;
+        }
+    }
+
+    /**
+     * Checks if a file is worth splitting into chunks, in a charset where lines
+     * can be found by their bytes the way mapping needs
+     */
+    private boolean shouldLoadInParallel(File file) {
+        return file.length() >= PARALLEL_LOAD_THRESHOLD
+                && ForkJoinPool.getCommonPoolParallelism() >= 2
+                && MappedEntryStore.canMap(Charset.defaultCharset());
+    }
+
+    /**
+     * Reads the lines of a file into a new store, in chunks on the fork-join
+     * pool if it is worth it
+     */
+    private EntryStore readLines(File file) throws IOException {
+        if (shouldLoadInParallel(file)) {
+            return ChunkedLoader.load(file.getPath(), Charset.defaultCharset(), _storeType,
+                    ChunkedLoader.getChunkSize(file.length()));
+        }
+        EntryStore dataLines = EntryStore.create(_storeType);
+        FileInputStream fs = new FileInputStream(file);
+        BufferedReader br = new BufferedReader(new InputStreamReader(fs));
+        String line;
+
+        while ((line = br.readLine()) != null) {
+            dataLines.add(line);
+        }
+
+        br.close();
         return dataLines;
     }
 
     /**
-     * This methods takes the contents of an ArrayList<String> and saves it into
-     * the file Terminates the program if there is an exception in the
-     * filestream
+     * This methods takes the contents of a list and saves it into
+     * the file through a temporary file, and removes the operation log as the
+     * file now holds its changes. Terminates the program if there is an
+     * exception in the filestream
      * 
      * @param dataLines
      *            is the array of data to be saved in the file
      */
-    void saveDataToFile(ArrayList<String> dataLines) {
+    void saveDataToFile(List<String> dataLines) {
+        long start = System.nanoTime();
         try {
-            FileWriter fw = new FileWriter(_fileName);
-            BufferedWriter bw = new BufferedWriter(fw);
-
-            for (String line : dataLines) {
-                bw.write(line);
-                bw.newLine();
+            if (_operationLog == null) {
+                OperationLog.fold(new File(_fileName), dataLines);
+            } else {
+                _operationLog.checkpoint(dataLines);
             }
-            
-            bw.close();
+            if (_isUsingBinarySnapshot) {
+                BinarySnapshot.write(_fileName, dataLines);
+                _isBinarySnapshotCurrent = true;
+            }
+        } catch (SnapshotEntryStore.CorruptSnapshotException e) {
+            reloadDamagedSnapshot();
+            printMessage(String.format(DAMAGED_SNAPSHOT_MSG, _fileName));
+            return;
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
         }
+        _metrics.recordSave(System.nanoTime() - start);
+    }
 
+    /**
+     * Loads the entries again from the data file and the logs, when a block
+     * of the binary snapshot in use does not match its checksum. The data
+     * file matched the snapshot when it was opened, and every change since
+     * then is in the logs or was folded into the data file. The undo history
+     * is dropped. Must be called holding the write lock.
+     */
+    private void reloadDamagedSnapshot() {
+        if (_operationLog != null) {
+            _operationLog.close();
+        }
+        _undoJournal.clear();
+        _dataLines.close();
+        BinarySnapshot.getSnapshotFile(_fileName).delete();
+        loadData();
     }
 
     String requestForInput() {
@@ -233,50 +832,237 @@ public class TextBuddy {
     }
 
     void processInput(String input) {
-        CommandObject cmd = new CommandObject(input);
+        processInput(input, _output);
+    }
+
+    /**
+     * Runs a command and writes its response to a sink. Commands that only
+     * read the entries hold the read lock, so several clients of a server
+     * can display and search at once, while commands that change the entries
+     * hold the write lock and run one at a time. The response of a command
+     * that changes the entries is flushed once its records are on disk.
+     * 
+     * @param sink
+     *            - where the response goes
+     */
+    void processInput(String input, OutputSink sink) {
+        CommandObject cmd = _commandObjects.get();
+        cmd.reset(input);
+        processCommand(cmd, sink);
+    }
+
+    void processCommand(CommandObject cmd, OutputSink sink) {
+        long start = System.nanoTime();
+        Command command = cmd.getCommandType();
+        boolean isReadOnly = command != null && command.isReadOnly();
+        Lock lock = isReadOnly ? _lock.readLock() : _lock.writeLock();
+        boolean isSnapshotDamaged = false;
+        OperationLog operationLog = null;
+        long loggedBytes = 0;
+
+        lock.lock();
+        try {
+            if (command == null) {
+                printResponse(sink, INVALID_COMMAND_MSG);
+            } else {
+                _handlers.get(command).run(cmd, sink);
+            }
+            if (!isReadOnly && _operationLog != null) {
+                operationLog = _operationLog;
+                loggedBytes = operationLog.getAppendedBytes();
+            }
+        } catch (SnapshotEntryStore.CorruptSnapshotException e) {
+            isSnapshotDamaged = true;
+        } finally {
+            lock.unlock();
+        }
+        awaitLogged(operationLog, loggedBytes);
+        if (isSnapshotDamaged) {
+            reloadAfterCommand(sink);
+        }
+        endResponse(sink);
+        if (command != null) {
+            _metrics.recordCommand(command.getVerb(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Reloads the entries after a command found the binary snapshot damaged,
+     * unless a command of another session already did. The command stopped
+     * before changing any entry and can be run again.
+     */
+    private void reloadAfterCommand(OutputSink sink) {
+        _lock.writeLock().lock();
+        try {
+            if (_dataLines instanceof SnapshotEntryStore) {
+                reloadDamagedSnapshot();
+            }
+            sink.newLine();
+            printResponse(sink, String.format(DAMAGED_SNAPSHOT_MSG, _fileName));
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    static boolean isExitCommand(String input) {
+        return CommandObject.isCommand(input, COMMAND_EXIT);
+    }
+
+    /**
+     * This interface runs one command and writes its response to a sink
+     */
+    interface CommandHandler {
+        void run(CommandObject cmd, OutputSink sink);
+    }
 
-        switch (cmd.getCommand()) {
-            case COMMAND_EXIT :
+    /**
+     * Creates the handler of each command
+     */
+    private EnumMap<Command, CommandHandler> createHandlers() {
+        EnumMap<Command, CommandHandler> handlers =
+                new EnumMap<Command, CommandHandler>(Command.class);
+        handlers.put(Command.EXIT, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
                 setupForExiting();
-                break;
-            case COMMAND_ADD :
-                printMessage(processAddCommand(cmd));
-                break;
-            case COMMAND_DELETE :
-                printMessage(processDeleteCommand(cmd));
-                break;
-            case COMMAND_CLEAR :
-                printMessage(processClearCommand(cmd));
-                break;
-            case COMMAND_DISPLAY :
-                printMessage(processDisplayCommand(cmd));
-                break;
-            case COMMAND_SORT :
-                printMessage(processSortCommand(cmd));
-                break;
-            case COMMAND_SEARCH :
-                printMessage(processSearchCommand(cmd));
-                break;
-            default :
-                printMessage(INVALID_COMMAND_MSG);
+            }
+        });
+        handlers.put(Command.ADD, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
+                printResponse(sink, processAddCommand(cmd));
+            }
+        });
+        handlers.put(Command.DELETE, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
+                printResponse(sink, processDeleteCommand(cmd));
+            }
+        });
+        handlers.put(Command.CLEAR, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
+                printResponse(sink, processClearCommand(cmd));
+            }
+        });
+        handlers.put(Command.DISPLAY, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
+                writeDisplayCommand(cmd, sink);
+                sink.newLine();
+            }
+        });
+        handlers.put(Command.SORT, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
+                printResponse(sink, processSortCommand(cmd));
+            }
+        });
+        handlers.put(Command.SEARCH, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
+                writeSearchCommand(cmd, sink);
+                sink.newLine();
+            }
+        });
+        handlers.put(Command.STATS, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
+                printResponse(sink, processStatsCommand(cmd));
+            }
+        });
+        handlers.put(Command.UNDO, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
+                printResponse(sink, processUndoCommand(cmd));
+            }
+        });
+        handlers.put(Command.REDO, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
+                printResponse(sink, processRedoCommand(cmd));
+            }
+        });
+        handlers.put(Command.DEDUPE, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
+                printResponse(sink, processDedupeCommand(cmd));
+            }
+        });
+        handlers.put(Command.SAVE, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
+                printResponse(sink, processSaveCommand(cmd));
+            }
+        });
+        handlers.put(Command.IMPORT, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
+                printResponse(sink, processImportCommand(cmd));
+            }
+        });
+        handlers.put(Command.EXPORT, new CommandHandler() {
+            public void run(CommandObject cmd, OutputSink sink) {
+                printResponse(sink, processExportCommand(cmd));
+            }
+        });
+        return handlers;
+    }
+
+    private void printResponse(OutputSink sink, String message) {
+        sink.printLine(message);
+    }
+
+    /**
+     * Waits until the records a command logged are on disk, before its
+     * response is sent. The lock is not held, so the commands of other
+     * sessions can log records that go to disk in the same batch.
+     *
+     * @param loggedBytes
+     *            - OperationLog.getAppendedBytes once the command was done
+     */
+    private static void awaitLogged(OperationLog operationLog, long loggedBytes) {
+        if (operationLog != null) {
+            operationLog.awaitDurable(loggedBytes);
+        }
+    }
+
+    /**
+     * Responses are flushed one at a time, except those written to the output
+     * in batch mode, which are left in its buffer. Other sinks, such as the
+     * sessions of a server, have a client waiting for each response.
+     */
+    private void endResponse(OutputSink sink) {
+        if (!_isBatchMode || sink != _output) {
+            sink.flush();
         }
     }
 
+    /**
+     * Handles "add <entry>" and "add --unique <entry>", which skips the
+     * entry if an equal one is already there
+     */
     String processAddCommand(CommandObject cmd) {
-        if (cmd.hasParameters()) {
-            return addEntry(cmd.getParameters());
-        } else {
+        if (!cmd.hasParameters()) {
             return INVALID_COMMAND_PARAMETER_MSG;
         }
+        String parameters = cmd.getParameters();
+        if (parameters.startsWith(ADD_UNIQUE_FLAG)) {
+            String dataLine = parameters.substring(ADD_UNIQUE_FLAG.length());
+            if (containsEntry(dataLine)) {
+                return String.format(DUPLICATE_ENTRY_MSG, _fileName, dataLine);
+            }
+            return addEntry(dataLine);
+        }
+        return addEntry(parameters);
     }
 
+    /**
+     * Handles "delete <index>" and "delete <from>-<to>", which deletes the
+     * entries from <from> to <to> inclusive
+     */
     String processDeleteCommand(CommandObject cmd) {
         if (cmd.hasParameters() && cmd.processParameterAsInteger()) {
             int index = cmd.getParameterAsInteger() - 1;
             return deleteEntry(index);
-        } else {
-            return INVALID_COMMAND_PARAMETER_MSG;
         }
+        if (cmd.hasParameters() && cmd.getParameters().indexOf(RANGE_SEPARATOR) > 0) {
+            String parameters = cmd.getParameters();
+            int separator = parameters.indexOf(RANGE_SEPARATOR);
+            int from = parsePositiveInteger(parameters, 0, separator);
+            int to = parsePositiveInteger(parameters, separator + 1, parameters.length());
+            if (from != -1 && to != -1) {
+                return deleteEntries(from - 1, to);
+            }
+        }
+        return INVALID_COMMAND_PARAMETER_MSG;
     }
 
     String processClearCommand(CommandObject cmd) {
@@ -288,91 +1074,730 @@ public class TextBuddy {
     }
 
     String processDisplayCommand(CommandObject cmd) {
-        if (cmd.hasParameters()) {
-            return INVALID_COMMAND_PARAMETER_MSG;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputSink sink = new OutputSink(bytes, StandardCharsets.UTF_8);
+        writeDisplayCommand(cmd, sink);
+        sink.flush();
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the response to "display" or "display <from> <count>" to a sink,
+     * without a line break at the end
+     */
+    void writeDisplayCommand(CommandObject cmd, OutputSink sink) {
+        if (!cmd.hasParameters()) {
+            writeEntries(sink, 0, _dataLines.size());
+            return;
+        }
+        String[] window = cmd.getParameters().split(" ");
+        int from = (window.length == 2) ? parsePositiveInteger(window[0]) : -1;
+        int count = (window.length == 2) ? parsePositiveInteger(window[1]) : -1;
+        if (from == -1 || count == -1) {
+            sink.print(INVALID_COMMAND_PARAMETER_MSG);
+        } else if (_dataLines.size() > 0 && from > _dataLines.size()) {
+            sink.print(INVALID_INDEX_MSG);
         } else {
-            return displayEntries();
+            writeEntries(sink, from - 1, count);
+        }
+    }
+
+    /**
+     * @return the value of a string of digits that is at least 1, else -1
+     */
+    static int parsePositiveInteger(String parameter) {
+        return parsePositiveInteger(parameter, 0, parameter.length());
+    }
+
+    static int parsePositiveInteger(String text, int start, int end) {
+        long value = parseInteger(text, start, end);
+        return (value >= 1) ? (int) value : -1;
+    }
+
+    /**
+     * Parses part of a string the way Integer.parseInt does, but reports a
+     * string that is not an int by returning NOT_AN_INTEGER instead of
+     * throwing
+     * 
+     * @param start
+     *            - the first char of the number
+     * @param end
+     *            - the position after the last char of the number
+     */
+    static long parseInteger(String text, int start, int end) {
+        if (start >= end) {
+            return NOT_AN_INTEGER;
+        }
+        boolean isNegative = false;
+        char first = text.charAt(start);
+        if (first == '-' || first == '+') {
+            isNegative = (first == '-');
+            start++;
+            if (start == end) {
+                return NOT_AN_INTEGER;
+            }
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(text.charAt(i), 10);
+            if (digit == -1) {
+                return NOT_AN_INTEGER;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return NOT_AN_INTEGER;
+            }
+        }
+        value = isNegative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            return NOT_AN_INTEGER;
         }
+        return value;
     }
 
+    /**
+     * Adds an entry at the end, or in sorted position when the entries are
+     * sorted and --keep-sorted is on
+     */
     String addEntry(String dataLine) {
-        _dataLines.add(dataLine);
+        int length = _dataLines.size();
+        int position = length;
+        boolean wasSorted = _isSorted;
+        if (_isSorted && _isKeepingSorted) {
+            position = findSortedPosition(dataLine);
+        } else if (_isSorted && length > 0) {
+            _isSorted = compareEntries(_dataLines.get(length - 1), dataLine) <= 0;
+        }
+        _dataLines.add(position, dataLine);
+        entryIndexAdded(position, dataLine);
+        _undoJournal.recordAdd(COMMAND_ADD, position, wasSorted);
+        if (_operationLog != null) {
+            if (position == length) {
+                _operationLog.logAdd(dataLine);
+            } else {
+                _operationLog.logInsert(position, dataLine);
+            }
+            compactLogIfNeeded();
+        }
         return String.format(ADD_ENTRY_MSG, _fileName, dataLine);
     }
 
+    /**
+     * Adds entries at the end in one bulk append
+     */
+    void addEntries(List<String> dataLines) {
+        if (_isSorted && _isKeepingSorted) {
+            for (String dataLine : dataLines) {
+                addEntry(dataLine);
+            }
+            return;
+        }
+        int length = _dataLines.size();
+        int position = length;
+        String previous = (length > 0 && _isSorted) ? _dataLines.get(length - 1) : null;
+        for (String dataLine : dataLines) {
+            boolean wasSorted = _isSorted;
+            if (previous != null && _isSorted) {
+                _isSorted = compareEntries(previous, dataLine) <= 0;
+            }
+            previous = dataLine;
+            _undoJournal.recordAdd(COMMAND_ADD, position++, wasSorted);
+        }
+        position = length;
+        _dataLines.addAll(dataLines);
+        for (String dataLine : dataLines) {
+            entryIndexAdded(position++, dataLine);
+        }
+        if (_operationLog != null) {
+            _operationLog.logAdds(dataLines);
+            compactLogIfNeeded();
+        }
+    }
+
+    /**
+     * Binary searches for the position after every entry that sorts before
+     * or equal to the given one, which is where a stable sort would put an
+     * entry added at the end
+     */
+    private int findSortedPosition(String dataLine) {
+        int low = 0;
+        int high = _dataLines.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareEntries(_dataLines.get(mid), dataLine) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int compareEntries(String first, String second) {
+        return String.CASE_INSENSITIVE_ORDER.compare(first, second);
+    }
+
     String deleteEntry(int lineIndex) {
         if (lineIndex < 0 || lineIndex >= _dataLines.size()) {
             return INVALID_INDEX_MSG;
         } else {
             String lineDeleted = _dataLines.remove(lineIndex);
+            entryIndexRemoved(lineIndex, lineDeleted);
+            _undoJournal.recordDelete(COMMAND_DELETE, lineIndex, new String[] { lineDeleted },
+                    _isSorted);
+            if (_operationLog != null) {
+                _operationLog.logDelete(lineIndex);
+                compactLogIfNeeded();
+            }
             return String.format(DELETE_ENTRY_MSG, _fileName, lineDeleted);
         }
     }
 
+    /**
+     * Deletes the entries in [fromIndex, toIndex) in one operation
+     */
+    String deleteEntries(int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex || toIndex > _dataLines.size()) {
+            return INVALID_INDEX_MSG;
+        }
+        String[] removed = removeEntries(fromIndex, toIndex);
+        _undoJournal.recordDelete(COMMAND_DELETE, fromIndex, removed, _isSorted);
+        return String.format(DELETE_RANGE_MSG, _fileName, removed.length);
+    }
+
+    /**
+     * Clears the entries. When undo is on, the store is replaced by an empty
+     * one and kept by the undo journal as it is, so undoing the clear does
+     * not copy any entry.
+     */
     String clearEntries() {
-        _dataLines.clear();
+        if (_undoJournal.isEnabled()) {
+            EntryStore cleared = _dataLines;
+            _dataLines = EntryStore.create(_storeType);
+            _undoJournal.recordClear(COMMAND_CLEAR, cleared, _isSorted);
+        } else {
+            _dataLines.clear();
+        }
+        clearIndexes();
+        _isSorted = true;
+        if (_operationLog != null) {
+            _operationLog.logClear();
+            compactLogIfNeeded();
+        }
         return String.format(CLEAR_ENTRIES_MSG, _fileName);
     }
 
-    String displayEntries() {
-        int length = _dataLines.size();
-        String output;
-        if (length == 0) {
-            output = String.format(NO_ENTRIES_MSG, _fileName);
+    /**
+     * Checks in O(1) if an entry equal to the given one is there
+     */
+    boolean containsEntry(String dataLine) {
+        // lookups under the read lock may race to build the index
+        synchronized (_hashIndex) {
+            if (_hashIndex.isStale()) {
+                _hashIndex.build(_dataLines);
+            }
+            return _hashIndex.find(dataLine, _dataLines) != -1;
+        }
+    }
+
+    String processDedupeCommand(CommandObject cmd) {
+        if (cmd.hasParameters()) {
+            return INVALID_COMMAND_PARAMETER_MSG;
         } else {
-            output = buildMultiLineDisplayPrint();
+            return dedupeEntries();
         }
-        return output;
     }
 
-    private String buildMultiLineDisplayPrint() {
-        String output;
-        int length = _dataLines.size();
-        StringBuilder stringBuilder = new StringBuilder();
-        for (int i = 0; i < length; i++) {
-            stringBuilder.append(formatDataLine(i, _dataLines.get(i)));
+    /**
+     * Deletes every entry equal to an earlier one, in one pass that copies
+     * the first of each into a new store. The new store is checked for each
+     * entry with a hash index of its own, which then becomes the hash index
+     * of the entries. The old store is kept for undo, as a clear does.
+     */
+    String dedupeEntries() {
+        EntryStore deduped = EntryStore.create(_storeType);
+        HashIndex hashIndex = new HashIndex();
+        hashIndex.build(deduped);
+        for (int i = 0; i < _dataLines.size(); i++) {
+            String dataLine = _dataLines.get(i);
+            if (hashIndex.find(dataLine, deduped) == -1) {
+                deduped.add(dataLine);
+                hashIndex.entryAdded(deduped.size() - 1, dataLine);
+            }
+        }
+        int removedCount = _dataLines.size() - deduped.size();
+        if (removedCount == 0) {
+            return String.format(NO_DUPLICATES_MSG, _fileName);
+        }
+        _undoJournal.recordClear(COMMAND_DEDUPE, _dataLines, _isSorted);
+        replaceStore(deduped);
+        _hashIndex = hashIndex;
+        return String.format(DEDUPE_MSG, _fileName, removedCount);
+    }
+
+    String processSaveCommand(CommandObject cmd) {
+        if (cmd.hasParameters()) {
+            return INVALID_COMMAND_PARAMETER_MSG;
+        } else {
+            return saveInBackground();
+        }
+    }
+
+    /**
+     * Starts folding the changes into the file on another thread, so that
+     * commands keep running while it is written. The thread writes a
+     * snapshot of the store, which shares the entries with the store and is
+     * taken in O(number of blocks). Only one save runs at a time.
+     */
+    String saveInBackground() {
+        if (_operationLog == null) {
+            saveDataToFile(_dataLines);
+            return String.format(SAVED_MSG, _fileName);
+        }
+        if (_operationLog.isCompacting()) {
+            return String.format(STILL_SAVING_MSG, _fileName);
+        }
+        if (_operationLog.hasFailedFold()) {
+            // loading again folds the logs the failed save left
+            reloadDamagedSnapshot();
+            return String.format(DAMAGED_SNAPSHOT_MSG, _fileName);
+        }
+        if (!hasUnsavedChanges()) {
+            return String.format(NOTHING_TO_SAVE_MSG, _fileName);
+        }
+        EntryStore snapshot = _dataLines.snapshot();
+        _operationLog.compactInBackground(snapshot, createSnapshotWriter(snapshot));
+        return String.format(SAVING_MSG, _fileName);
+    }
+
+    /**
+     * @return what writes the binary snapshot of the entries after a
+     *         background fold, or null without --binary-snapshot
+     */
+    private Runnable createSnapshotWriter(final List<String> dataLines) {
+        if (!_isUsingBinarySnapshot) {
+            return null;
+        }
+        return new Runnable() {
+            public void run() {
+                try {
+                    BinarySnapshot.write(_fileName, dataLines);
+                    _isBinarySnapshotCurrent = true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+            }
+        };
+    }
+
+    String processImportCommand(CommandObject cmd) {
+        if (!cmd.hasParameters()) {
+            return INVALID_COMMAND_PARAMETER_MSG;
+        }
+        return importEntries(cmd.getParameters());
+    }
+
+    /**
+     * Adds the lines of a file at the end in one bulk append. The file is
+     * read the way the data file is, into a store of the same type that is
+     * appended without copying its entries, and the adds are logged in
+     * batches and undone together.
+     */
+    String importEntries(String path) {
+        EntryStore imported;
+        try {
+            imported = readLines(new File(path));
+        } catch (IOException e) {
+            return String.format(FILE_ACCESS_ERROR_MSG, path);
+        }
+        int count = imported.size();
+        if (_isSorted && _isKeepingSorted) {
+            for (String dataLine : imported) {
+                addEntry(dataLine);
+            }
+            return String.format(IMPORT_MSG, _fileName, count, path);
+        }
+
+        int position = _dataLines.size();
+        boolean wasSorted = _isSorted;
+        String previous = (position > 0 && _isSorted) ? _dataLines.get(position - 1) : null;
+        for (int i = 0; i < count && _isSorted; i++) {
+            String dataLine = imported.get(i);
+            _isSorted = previous == null || compareEntries(previous, dataLine) <= 0;
+            previous = dataLine;
+        }
+        _dataLines.appendStore(imported);
+        for (int i = position; i < position + count; i++) {
+            entryIndexAdded(i, _dataLines.get(i));
+        }
+        _undoJournal.recordAdds(COMMAND_IMPORT, position, count, wasSorted);
+        if (_operationLog != null) {
+            for (int from = position; from < position + count; from += MAX_COALESCED_ADDS) {
+                int to = (int) Math.min(position + count, (long) from + MAX_COALESCED_ADDS);
+                _operationLog.logAdds(_dataLines.subList(from, to));
+            }
+            compactLogIfNeeded();
+        }
+        return String.format(IMPORT_MSG, _fileName, count, path);
+    }
+
+    /**
+     * Handles "export <path>" and "export <path> <from>-<to>", which writes
+     * the entries from <from> to <to> inclusive. A last word of digits around
+     * a '-' is always taken as the range, so a range that is out of bounds is
+     * an error instead of part of the path.
+     */
+    String processExportCommand(CommandObject cmd) {
+        if (!cmd.hasParameters()) {
+            return INVALID_COMMAND_PARAMETER_MSG;
+        }
+        String parameters = cmd.getParameters();
+        int space = parameters.lastIndexOf(' ');
+        int separator = parameters.lastIndexOf(RANGE_SEPARATOR);
+        if (space > 0 && separator > space + 1 && isDigits(parameters, space + 1, separator)
+                && isDigits(parameters, separator + 1, parameters.length())) {
+            int from = parsePositiveInteger(parameters, space + 1, separator);
+            int to = parsePositiveInteger(parameters, separator + 1, parameters.length());
+            if (from == -1 || to == -1 || from > to) {
+                return INVALID_INDEX_MSG;
+            }
+            return exportEntries(parameters.substring(0, space), from - 1, to);
+        }
+        return exportEntries(parameters, 0, _dataLines.size());
+    }
 
-            if (i != length - 1) {
-                stringBuilder.append(System.lineSeparator());
+    /**
+     * @return true if the chars in [start, end) are all ASCII digits and there
+     *         is at least one
+     */
+    private static boolean isDigits(String text, int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
             }
         }
-        output = stringBuilder.toString();
-        return output;
+        return true;
+    }
+
+    /**
+     * Writes the entries in [fromIndex, toIndex) to a file in the format of
+     * the data file. Entries that are still the same as the lines of the data
+     * file are copied from it by the file system with transferTo, and the
+     * rest are written through one buffered sink.
+     */
+    String exportEntries(String path, int fromIndex, int toIndex) {
+        if (fromIndex > toIndex || toIndex > _dataLines.size()) {
+            return INVALID_INDEX_MSG;
+        }
+        File file = new File(path);
+        File dataFile = new File(_fileName);
+        try {
+            if (file.getCanonicalFile().equals(dataFile.getCanonicalFile())) {
+                return String.format(EXPORT_TO_ITSELF_MSG, _fileName);
+            }
+            FileChannel target = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                int cleanCount = (_operationLog == null) ? 0 : _operationLog.getCleanCount();
+                int copiedTo = Math.min(toIndex, cleanCount);
+                if (fromIndex >= copiedTo
+                        || !DataSnapshot.copyLines(dataFile, fromIndex, copiedTo, target)) {
+                    copiedTo = fromIndex;
+                }
+                OutputSink sink = new OutputSink(Channels.newOutputStream(target),
+                        Charset.defaultCharset());
+                for (int i = copiedTo; i < toIndex; i++) {
+                    _dataLines.writeEntry(i, sink);
+                    sink.newLine();
+                }
+                sink.flush();
+            } finally {
+                target.close();
+            }
+        } catch (IOException e) {
+            return String.format(FILE_ACCESS_ERROR_MSG, path);
+        }
+        return String.format(EXPORT_MSG, _fileName, toIndex - fromIndex, path);
+    }
+
+    String processUndoCommand(CommandObject cmd) {
+        if (cmd.hasParameters()) {
+            return INVALID_COMMAND_PARAMETER_MSG;
+        }
+        String command = _undoJournal.undo(this);
+        if (command == null) {
+            return String.format(NOTHING_TO_UNDO_MSG, _fileName);
+        }
+        return String.format(UNDO_MSG, _fileName, command);
     }
 
+    String processRedoCommand(CommandObject cmd) {
+        if (cmd.hasParameters()) {
+            return INVALID_COMMAND_PARAMETER_MSG;
+        }
+        String command = _undoJournal.redo(this);
+        if (command == null) {
+            return String.format(NOTHING_TO_REDO_MSG, _fileName);
+        }
+        return String.format(REDO_MSG, _fileName, command);
+    }
+
+    boolean isSorted() {
+        return _isSorted;
+    }
+
+    void setSorted(boolean isSorted) {
+        _isSorted = isSorted;
+    }
+
+    UndoJournal getUndoJournal() {
+        return _undoJournal;
+    }
+
+    /**
+     * Removes the entries in [fromIndex, toIndex), keeping the word index and
+     * the operation log in step
+     *
+     * @return the removed entries
+     */
+    String[] removeEntries(int fromIndex, int toIndex) {
+        List<String> range = _dataLines.subList(fromIndex, toIndex);
+        String[] removed = range.toArray(new String[toIndex - fromIndex]);
+        if (removed.length > MAX_INDEXED_RANGE_DELETE) {
+            invalidateIndexes();
+        } else {
+            for (int i = removed.length - 1; i >= 0; i--) {
+                entryIndexRemoved(fromIndex + i, removed[i]);
+            }
+        }
+        range.clear();
+        if (_operationLog != null) {
+            if (removed.length == 1) {
+                _operationLog.logDelete(fromIndex);
+            } else {
+                _operationLog.logDeleteRange(fromIndex, removed.length);
+            }
+            compactLogIfNeeded();
+        }
+        return removed;
+    }
+
+    /**
+     * Inserts entries from a position onwards, keeping the word index and
+     * the operation log in step
+     */
+    void insertEntries(int position, String[] dataLines) {
+        if (dataLines.length > MAX_INDEXED_RANGE_DELETE) {
+            invalidateIndexes();
+        }
+        for (int i = 0; i < dataLines.length; i++) {
+            int length = _dataLines.size();
+            _dataLines.add(position + i, dataLines[i]);
+            entryIndexAdded(position + i, dataLines[i]);
+            if (_operationLog != null) {
+                if (position + i == length) {
+                    _operationLog.logAdd(dataLines[i]);
+                } else {
+                    _operationLog.logInsert(position + i, dataLines[i]);
+                }
+            }
+        }
+        if (_operationLog != null) {
+            compactLogIfNeeded();
+        }
+    }
+
+    /**
+     * Puts a store in place of the current one, such as one that was cleared
+     *
+     * @return the store that was in use
+     */
+    EntryStore replaceStore(EntryStore store) {
+        EntryStore replaced = _dataLines;
+        _dataLines = store;
+        invalidateIndexes();
+        logAllEntries();
+        return replaced;
+    }
+
+    /**
+     * Reorders the entries with EntryStore.permute
+     */
+    void permuteEntries(int[] order) {
+        _dataLines.permute(order);
+        invalidateIndexes();
+        logAllEntries();
+    }
+
+    /**
+     * Logs a change the log has no record for as a clear followed by an add
+     * of every entry. The log is folded into the file soon after.
+     */
+    private void logAllEntries() {
+        if (_operationLog != null) {
+            _operationLog.logClear();
+            _operationLog.logAdds(_dataLines);
+            compactLogIfNeeded();
+        }
+    }
+
+    /**
+     * Keeps the indexes in step with an entry added at a position
+     */
+    private void entryIndexAdded(int position, String dataLine) {
+        _wordIndex.entryAdded(position, dataLine);
+        _trigramIndex.entryAdded(position, dataLine);
+        _hashIndex.entryAdded(position, dataLine);
+    }
+
+    private void entryIndexRemoved(int position, String dataLine) {
+        _wordIndex.entryRemoved(position, dataLine);
+        _trigramIndex.entryRemoved(position, dataLine);
+        _hashIndex.entryRemoved(position, dataLine);
+    }
+
+    /**
+     * Marks the indexes stale, for changes they cannot follow. They are
+     * rebuilt by the next lookup that uses them.
+     */
+    private void invalidateIndexes() {
+        _wordIndex.invalidate();
+        _trigramIndex.invalidate();
+        _hashIndex.invalidate();
+    }
+
+    private void clearIndexes() {
+        _wordIndex.cleared();
+        // the trigram index stays unbuilt until a search needs it
+        _trigramIndex.invalidate();
+        _hashIndex.cleared();
+    }
+
+    /**
+     * Folds the operation log back into the file in the background once it has
+     * grown past the size of the file
+     */
+    private void compactLogIfNeeded() {
+        if (_operationLog.needsCompaction()) {
+            EntryStore snapshot = _dataLines.snapshot();
+            _operationLog.compactInBackground(snapshot, createSnapshotWriter(snapshot));
+        }
+    }
+
+    String displayEntries() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputSink sink = new OutputSink(bytes, StandardCharsets.UTF_8);
+        writeEntries(sink, 0, _dataLines.size());
+        sink.flush();
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Streams a window of the entries to a sink one line at a time, in the
+     * format of formatDataLine, without a line break after the last one
+     * 
+     * @param from
+     *            - 0-based position of the first entry to write
+     * @param count
+     *            - the most entries to write
+     */
+    void writeEntries(OutputSink sink, int from, int count) {
+        int length = _dataLines.size();
+        if (length == 0) {
+            sink.print(String.format(NO_ENTRIES_MSG, _fileName));
+            return;
+        }
+        int end = (int) Math.min(length, (long) from + count);
+        for (int i = from; i < end; i++) {
+            if (i != from) {
+                sink.newLine();
+            }
+            sink.printNumber(i + 1);
+            sink.print(". ");
+            _dataLines.writeEntry(i, sink);
+        }
+    }
+
+    /**
+     * Sorts the entries case-insensitively. Entries that are known to be
+     * sorted already are left alone.
+     */
     String sortEntries() {
         if (_dataLines.size() == 0) {
             return String.format(NO_ENTRIES_TO_SORT_MSG, _fileName);
+        } else if (_isSorted) {
+            return String.format(SORTED_MSG, _fileName);
         } else {
-            Collections.sort(_dataLines, String.CASE_INSENSITIVE_ORDER);
+            int[] order = _dataLines.getSortOrder(String.CASE_INSENSITIVE_ORDER);
+            _dataLines.permute(order);
+            _undoJournal.recordReorder(COMMAND_SORT, order, _isSorted);
+            _isSorted = true;
+            invalidateIndexes();
+            if (_operationLog != null) {
+                _operationLog.logSort();
+                compactLogIfNeeded();
+            }
             return String.format(SORTED_MSG, _fileName);
         }
     }
 
-    String processSortCommand(CommandObject cmd) {
+    String processStatsCommand(CommandObject cmd) {
         if (cmd.hasParameters()) {
             return INVALID_COMMAND_PARAMETER_MSG;
         } else {
-            return sortEntries();
+            return _metrics.getStats();
         }
     }
 
-    String searchEntries(String keyword) {
-        if (_dataLines.size() == 0) {
-            return String.format(NO_ENTRIES_TO_SEARCH_MSG, _fileName);
-        } else {
-            String printOutput;
-            ArrayList<String> searchResult = getListOfMatches(keyword);
+    CommandMetrics getMetrics() {
+        return _metrics;
+    }
 
-            if (searchResult.size() == 0) {
-                printOutput = String.format(SEARCH_FAIL_MSG, keyword);
-            } else {
-                printOutput = buildMultiLineSearchResultPrint(keyword, searchResult);
-            }
-            return printOutput;
+    int getEntryCount() {
+        _lock.readLock().lock();
+        try {
+            return (_dataLines == null) ? 0 : _dataLines.size();
+        } finally {
+            _lock.readLock().unlock();
         }
     }
 
+    long estimateStoreHeapBytes() {
+        _lock.readLock().lock();
+        try {
+            return (_dataLines == null) ? 0 : _dataLines.estimateHeapBytes();
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    String processSortCommand(CommandObject cmd) {
+        if (cmd.hasParameters()) {
+            return INVALID_COMMAND_PARAMETER_MSG;
+        } else {
+            return sortEntries();
+        }
+    }
+
+    /**
+     * @param parameters
+     *            - the keyword, optionally after -c and -n options and a -w,
+     *            -l or -r flag choosing word, literal or regex matching
+     *            instead of the --search mode
+     */
+    String searchEntries(String parameters) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputSink sink = new OutputSink(bytes, StandardCharsets.UTF_8);
+        writeSearch(parameters, sink);
+        sink.flush();
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     String processSearchCommand(CommandObject cmd) {
         if (cmd.hasParameters()) {
             return searchEntries(cmd.getParameters());
@@ -381,36 +1806,241 @@ public class TextBuddy {
         }
     }
 
-    ArrayList<String> getListOfMatches(String keyword) {
-        ArrayList<String> matchedList = new ArrayList<String>();
+    /**
+     * Writes the response to "search [-c] [-n <limit>] <keyword>" to a sink,
+     * without a line break at the end. -c writes only how many entries
+     * match, and -n stops the search at the given number of matches.
+     */
+    void writeSearchCommand(CommandObject cmd, OutputSink sink) {
+        if (cmd.hasParameters()) {
+            writeSearch(cmd.getParameters(), sink);
+        } else {
+            sink.print(INVALID_COMMAND_PARAMETER_MSG);
+        }
+    }
 
-        for (int i = 0; i < _dataLines.size(); i++) {
-            String line = _dataLines.get(i);
-            if (line.matches(".*\\b" + keyword + "\\b.*")) {
-                matchedList.add(line);
+    /**
+     * Finds the positions of the matches first, which are all the header
+     * needs, then writes the matching entries straight from the store
+     */
+    private void writeSearch(String parameters, OutputSink sink) {
+        boolean isCountOnly = false;
+        int limit = Integer.MAX_VALUE;
+        int start = 0;
+        while (true) {
+            if (parameters.startsWith(SEARCH_COUNT_FLAG, start)) {
+                isCountOnly = true;
+                start += SEARCH_COUNT_FLAG.length();
+            } else if (parameters.startsWith(SEARCH_LIMIT_FLAG, start)) {
+                start += SEARCH_LIMIT_FLAG.length();
+                int end = parameters.indexOf(' ', start);
+                limit = (end == -1) ? -1 : parsePositiveInteger(parameters, start, end);
+                if (limit == -1) {
+                    sink.print(INVALID_COMMAND_PARAMETER_MSG);
+                    return;
+                }
+                start = end + 1;
+            } else {
+                break;
             }
         }
+        if (_dataLines.size() == 0) {
+            sink.print(String.format(NO_ENTRIES_TO_SEARCH_MSG, _fileName));
+            return;
+        }
+        SearchQuery query;
+        try {
+            query = SearchQuery.parse(parameters.substring(start), _searchMode);
+        } catch (PatternSyntaxException e) {
+            sink.print(String.format(INVALID_SEARCH_PATTERN_MSG, e.getDescription()));
+            return;
+        }
+        if (query == null) {
+            sink.print(INVALID_COMMAND_PARAMETER_MSG);
+            return;
+        }
+        String keyword = query.getText();
+        int[] positions = getMatchPositions(query, limit);
+        if (positions.length == 0) {
+            sink.print(String.format(SEARCH_FAIL_MSG, keyword));
+            return;
+        }
+        boolean isLimited = positions.length == limit && limit != Integer.MAX_VALUE;
+        sink.print(String.format(isLimited ? SEARCH_LIMIT_REACHED_MSG : SEARCH_FOUND_MSG, keyword,
+                positions.length));
+        if (isCountOnly) {
+            return;
+        }
+        for (int i = 0; i < positions.length; i++) {
+            sink.newLine();
+            sink.printNumber(i + 1);
+            sink.print(". ");
+            _dataLines.writeEntry(positions[i], sink);
+        }
+    }
+
+    /**
+     * Finds the entries matching the keyword in the --search mode
+     * 
+     * @param keyword
+     *            - the word, text or regex to search for
+     * @return the matching entries in their current order
+     */
+    ArrayList<String> getListOfMatches(String keyword) {
+        return getListOfMatches(SearchQuery.compile(_searchMode, keyword));
+    }
+
+    ArrayList<String> getListOfMatches(SearchQuery query) {
+        int[] positions = getMatchPositions(query, Integer.MAX_VALUE);
+        ArrayList<String> matchedList = new ArrayList<String>(positions.length);
+        for (int position : positions) {
+            matchedList.add(_dataLines.get(position));
+        }
         return matchedList;
     }
 
-    private String buildMultiLineSearchResultPrint(String keyword, ArrayList<String> searchResult) {
-        String printOutput;
-        StringBuilder stringBuilder = new StringBuilder();
-        
-        stringBuilder.append(String.format(SEARCH_FOUND_MSG, keyword, searchResult.size()));
-        stringBuilder.append(System.lineSeparator());
+    /**
+     * A single word in word mode is looked up in the word index. Other
+     * queries, except regexes and keywords too short to have a trigram, are
+     * matched against the candidates from the trigram index. The rest are
+     * matched against every entry: without a limit, large lists are split
+     * into segments that are matched in parallel; with one, the entries are
+     * matched in order until the limit is reached.
+     *
+     * @param limit
+     *            - the most matches to find
+     * @return the positions of the matching entries, in ascending order
+     */
+    int[] getMatchPositions(SearchQuery query, int limit) {
+        if (query.isIndexable()) {
+            int[] positions = getIndexedPositions(query.getKeyword());
+            return (positions.length > limit) ? Arrays.copyOf(positions, limit) : positions;
+        }
+        int[] candidates = getTrigramCandidates(query);
+        if (candidates != null) {
+            return matchCandidates(query, candidates, limit);
+        }
+        int size = _dataLines.size();
+        if (limit < size || size < PARALLEL_SEARCH_THRESHOLD
+                || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            return scanSegment(query, 0, size, limit);
+        }
+        int segmentCount = (size + SEARCH_SEGMENT_SIZE - 1) / SEARCH_SEGMENT_SIZE;
+        int[][] segmentPositions = new int[segmentCount][];
+        ForkJoinPool.commonPool().invoke(
+                new SegmentSearch(query, segmentPositions, 0, segmentCount));
+
+        int matchCount = 0;
+        for (int[] positions : segmentPositions) {
+            matchCount += positions.length;
+        }
+        int[] matchedPositions = new int[matchCount];
+        matchCount = 0;
+        for (int[] positions : segmentPositions) {
+            System.arraycopy(positions, 0, matchedPositions, matchCount, positions.length);
+            matchCount += positions.length;
+        }
+        return matchedPositions;
+    }
 
-        for (int i = 0; i < searchResult.size(); i++) {
-            String resultLine = formatDataLine(i, searchResult.get(i));
-            
-            stringBuilder.append(resultLine);
+    private int[] scanSegment(SearchQuery query, int from, int to, int limit) {
+        int[] positions = new int[16];
+        int matchCount = 0;
+        Matcher matcher = query.createMatcher();
+        StringBuilder line = new StringBuilder();
 
-            if (i != searchResult.size() - 1) {
-                stringBuilder.append(System.lineSeparator());
+        for (int i = from; i < to && matchCount < limit; i++) {
+            line.setLength(0);
+            _dataLines.appendEntry(i, line);
+            if (query.matches(line, matcher)) {
+                if (matchCount == positions.length) {
+                    positions = Arrays.copyOf(positions, matchCount * 2);
+                }
+                positions[matchCount++] = i;
             }
         }
-        printOutput = stringBuilder.toString();
-        return printOutput;
+        return Arrays.copyOf(positions, matchCount);
+    }
+
+    /**
+     * This class matches a range of segments by splitting it in half until
+     * one segment is left. The entries do not change during a search since
+     * it holds the read lock, so the segments can be read concurrently.
+     */
+    private class SegmentSearch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SearchQuery _query;
+        private final int[][] _segmentPositions;
+        private final int _fromSegment;
+        private final int _toSegment;
+
+        SegmentSearch(SearchQuery query, int[][] segmentPositions, int fromSegment,
+                int toSegment) {
+            _query = query;
+            _segmentPositions = segmentPositions;
+            _fromSegment = fromSegment;
+            _toSegment = toSegment;
+        }
+
+        @Override
+        protected void compute() {
+            if (_toSegment - _fromSegment == 1) {
+                int from = _fromSegment * SEARCH_SEGMENT_SIZE;
+                int to = Math.min(from + SEARCH_SEGMENT_SIZE, _dataLines.size());
+                _segmentPositions[_fromSegment] = scanSegment(_query, from, to, Integer.MAX_VALUE);
+            } else {
+                int middle = (_fromSegment + _toSegment) >>> 1;
+                invokeAll(new SegmentSearch(_query, _segmentPositions, _fromSegment, middle),
+                        new SegmentSearch(_query, _segmentPositions, middle, _toSegment));
+            }
+        }
+    }
+
+    /**
+     * @return the positions of the entries the query may match, or null if
+     *         the trigram index cannot narrow them down
+     */
+    private int[] getTrigramCandidates(SearchQuery query) {
+        if (!query.isFuzzy() && !query.isSubstringQuery()) {
+            return null;
+        }
+        // searches under the read lock may race to build the index
+        synchronized (_trigramIndex) {
+            if (_trigramIndex.isStale()) {
+                _trigramIndex.build(_dataLines);
+            }
+            if (query.isFuzzy()) {
+                return _trigramIndex.getFuzzyCandidates(query.getKeyword(), query.getMaxDistance());
+            }
+            return _trigramIndex.getSubstringCandidates(query.getKeyword());
+        }
+    }
+
+    private int[] matchCandidates(SearchQuery query, int[] candidates, int limit) {
+        int[] positions = new int[Math.min(candidates.length, limit)];
+        int matchCount = 0;
+        Matcher matcher = query.createMatcher();
+        StringBuilder line = new StringBuilder();
+
+        for (int i = 0; i < candidates.length && matchCount < limit; i++) {
+            line.setLength(0);
+            _dataLines.appendEntry(candidates[i], line);
+            if (query.matches(line, matcher)) {
+                positions[matchCount++] = candidates[i];
+            }
+        }
+        return Arrays.copyOf(positions, matchCount);
+    }
+
+    private int[] getIndexedPositions(String word) {
+        // searches under the read lock may race to build the index
+        synchronized (_wordIndex) {
+            if (_wordIndex.isStale()) {
+                _wordIndex.build(_dataLines);
+            }
+            return _wordIndex.getPositions(word);
+        }
     }
 
     String formatDataLine(int index, String dataLine) {
@@ -419,8 +2049,23 @@ public class TextBuddy {
     }
 
     public static void main(String[] args) {
-        if (isOfOneArgument(args)) {
-            TextBuddy textBuddy = new TextBuddy(args[0]);
+        if (Workspace.isWorkspaceMode(args)) {
+            Workspace workspace = new Workspace(new OutputSink(System.out, Charset.defaultCharset()));
+            for (String arg : args) {
+                if (isOption(arg) && !workspace.applyOption(arg)) {
+                    printMessage(String.format(INVALID_OPTION_MSG, arg));
+                    return;
+                }
+            }
+            workspace.start(getFileArguments(args));
+        } else if (isOfOneArgument(args)) {
+            TextBuddy textBuddy = new TextBuddy(getFileNameArgument(args));
+            for (String arg : args) {
+                if (isOption(arg) && !textBuddy.applyOption(arg)) {
+                    printMessage(String.format(INVALID_OPTION_MSG, arg));
+                    return;
+                }
+            }
             textBuddy.start();
         } else {
             printMessage(ARGUMENT_ERROR_MSG);
@@ -431,7 +2076,39 @@ public class TextBuddy {
         System.out.println(message);
     }
 
+    /**
+     * Checks that there is exactly one argument other than options
+     */
     public static boolean isOfOneArgument(String[] args) {
-        return args.length == 1;
+        int count = 0;
+        for (String arg : args) {
+            if (!isOption(arg)) {
+                count++;
+            }
+        }
+        return count == 1;
+    }
+
+    static String getFileNameArgument(String[] args) {
+        for (String arg : args) {
+            if (!isOption(arg)) {
+                return arg;
+            }
+        }
+        return null;
+    }
+
+    static List<String> getFileArguments(String[] args) {
+        List<String> fileNames = new ArrayList<String>();
+        for (String arg : args) {
+            if (!isOption(arg)) {
+                fileNames.add(arg);
+            }
+        }
+        return fileNames;
+    }
+
+    static boolean isOption(String arg) {
+        return arg.startsWith(OPTION_PREFIX);
     }
 }
@@ -0,0 +1,248 @@
+import java.io.File;
+import java.util.Random;
+
+/**
+ * This class times the command paths of TextBuddy on generated data, so a
+ * slowdown shows up before it reaches users. Run it with
+ *
+ * java -cp bin TextBuddyBenchmark [--store=list|packed] [size...]
+ *
+ * Each size is the number of entries to start from (default 1k, 10k, 100k and
+ * 1M; 10M needs a heap of a few GB). Entries are 3 to 12 words drawn from a
+ * Zipf distribution over a fixed vocabulary, so a few words are very common
+ * and most are rare, as in real lists. Every benchmark is warmed up before it
+ * is measured, and the average time per operation is printed. The searches
+ * run right after the entries are set, so they include building the index.
+ *
+ * @author Wz
+ *
+ */
+public class TextBuddyBenchmark {
+    private static final int[] DEFAULT_SIZES = { 1000, 10000, 100000, 1000000 };
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final int OPERATIONS_PER_ITERATION = 1000;
+    private static final int SEARCHES_PER_ITERATION = 100;
+    private static final int VOCABULARY_SIZE = 20000;
+    private static final double ZIPF_EXPONENT = 1.1;
+    private static final String RESULT_MSG = "%-24s %10d %14.1f ns/op";
+
+    private static volatile int _blackhole;
+
+    private final String _fileName;
+    private final String _storeOption;
+    private final String[] _vocabulary;
+    private final double[] _cumulativeWeights;
+    private final Random _random = new Random(42);
+
+    /**
+     * This class is one benchmark. setUp runs before each iteration and is not
+     * timed; run is timed and returns the number of operations it did.
+     */
+    abstract static class Benchmark {
+        final String _name;
+
+        Benchmark(String name) {
+            _name = name;
+        }
+
+        void setUp(TextBuddy textBuddy, String[] dataLines) {
+            textBuddy.setDataLines(dataLines);
+        }
+
+        abstract int run(TextBuddy textBuddy, String[] dataLines);
+    }
+
+    TextBuddyBenchmark(String fileName, String storeOption) {
+        _fileName = fileName;
+        _storeOption = storeOption;
+        _vocabulary = new String[VOCABULARY_SIZE];
+        _cumulativeWeights = new double[VOCABULARY_SIZE];
+        double total = 0;
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            _vocabulary[i] = generateWord(i);
+            total += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            _cumulativeWeights[i] = total;
+        }
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            _cumulativeWeights[i] /= total;
+        }
+    }
+
+    private String generateWord(int rank) {
+        StringBuilder word = new StringBuilder();
+        int length = 3 + _random.nextInt(7);
+        for (int i = 0; i < length; i++) {
+            word.append((char) ('a' + _random.nextInt(26)));
+        }
+        return word.append(rank).toString();
+    }
+
+    private String nextWord() {
+        double target = _random.nextDouble();
+        int low = 0;
+        int high = VOCABULARY_SIZE - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (_cumulativeWeights[mid] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return _vocabulary[low];
+    }
+
+    String[] generateLines(int count) {
+        String[] dataLines = new String[count];
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            line.setLength(0);
+            int words = 3 + _random.nextInt(10);
+            for (int j = 0; j < words; j++) {
+                if (j > 0) {
+                    line.append(' ');
+                }
+                line.append(nextWord());
+            }
+            dataLines[i] = line.toString();
+        }
+        return dataLines;
+    }
+
+    Benchmark[] createBenchmarks() {
+        return new Benchmark[] {
+            new Benchmark("addEntry") {
+                int run(TextBuddy textBuddy, String[] dataLines) {
+                    for (int i = 0; i < OPERATIONS_PER_ITERATION; i++) {
+                        _blackhole += textBuddy.addEntry(dataLines[i % dataLines.length]).length();
+                    }
+                    return OPERATIONS_PER_ITERATION;
+                }
+            },
+            new DeleteBenchmark("deleteEntry front", 0),
+            new DeleteBenchmark("deleteEntry middle", 1),
+            new DeleteBenchmark("deleteEntry end", 2),
+            new Benchmark("sortEntries") {
+                int run(TextBuddy textBuddy, String[] dataLines) {
+                    _blackhole += textBuddy.sortEntries().length();
+                    return 1;
+                }
+            },
+            new Benchmark("getListOfMatches common") {
+                int run(TextBuddy textBuddy, String[] dataLines) {
+                    for (int i = 0; i < SEARCHES_PER_ITERATION; i++) {
+                        _blackhole += textBuddy.getListOfMatches(_vocabulary[i % 10]).size();
+                    }
+                    return SEARCHES_PER_ITERATION;
+                }
+            },
+            new Benchmark("searchEntries rare") {
+                int run(TextBuddy textBuddy, String[] dataLines) {
+                    for (int i = 0; i < SEARCHES_PER_ITERATION; i++) {
+                        String rareWord = _vocabulary[VOCABULARY_SIZE / 2 + i];
+                        _blackhole += textBuddy.searchEntries(rareWord).length();
+                    }
+                    return SEARCHES_PER_ITERATION;
+                }
+            },
+            new Benchmark("displayEntries") {
+                int run(TextBuddy textBuddy, String[] dataLines) {
+                    _blackhole += textBuddy.displayEntries().length();
+                    return 1;
+                }
+            },
+            new Benchmark("saveDataToFile") {
+                int run(TextBuddy textBuddy, String[] dataLines) {
+                    textBuddy.saveDataToFile(textBuddy.getDataLines());
+                    return 1;
+                }
+            },
+            new Benchmark("getDataFromFile") {
+                void setUp(TextBuddy textBuddy, String[] dataLines) {
+                    textBuddy.setDataLines(dataLines);
+                    textBuddy.saveDataToFile(textBuddy.getDataLines());
+                }
+
+                int run(TextBuddy textBuddy, String[] dataLines) {
+                    _blackhole += textBuddy.getDataFromFile().size();
+                    return 1;
+                }
+            } };
+    }
+
+    /**
+     * This class deletes entries from the front, middle or end of the list
+     */
+    static class DeleteBenchmark extends Benchmark {
+        private final int _where;
+
+        DeleteBenchmark(String name, int where) {
+            super(name);
+            _where = where;
+        }
+
+        int run(TextBuddy textBuddy, String[] dataLines) {
+            int count = Math.min(OPERATIONS_PER_ITERATION, dataLines.length);
+            for (int i = 0; i < count; i++) {
+                int size = textBuddy.getDataLines().size();
+                int index = (_where == 0) ? 0 : (_where == 1) ? size / 2 : size - 1;
+                _blackhole += textBuddy.deleteEntry(index).length();
+            }
+            return count;
+        }
+    }
+
+    void runAll(int[] sizes) {
+        for (int size : sizes) {
+            String[] dataLines = generateLines(size);
+            for (Benchmark benchmark : createBenchmarks()) {
+                double nanosPerOperation = measure(benchmark, dataLines);
+                System.out.println(String.format(RESULT_MSG, benchmark._name, size,
+                        nanosPerOperation));
+            }
+        }
+        new File(_fileName).delete();
+    }
+
+    private double measure(Benchmark benchmark, String[] dataLines) {
+        TextBuddy textBuddy = new TextBuddy(_fileName);
+        if (_storeOption != null) {
+            textBuddy.applyOption(_storeOption);
+        }
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            benchmark.setUp(textBuddy, dataLines);
+            benchmark.run(textBuddy, dataLines);
+        }
+        long totalNanos = 0;
+        long totalOperations = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            benchmark.setUp(textBuddy, dataLines);
+            long start = System.nanoTime();
+            totalOperations += benchmark.run(textBuddy, dataLines);
+            totalNanos += System.nanoTime() - start;
+        }
+        return (double) totalNanos / totalOperations;
+    }
+
+    public static void main(String[] args) {
+        String storeOption = null;
+        int sizeCount = 0;
+        int[] sizes = new int[args.length];
+        for (String arg : args) {
+            if (TextBuddy.isOption(arg)) {
+                storeOption = arg;
+            } else {
+                sizes[sizeCount++] = Integer.parseInt(arg);
+            }
+        }
+        if (sizeCount == 0) {
+            sizes = DEFAULT_SIZES;
+        } else {
+            int[] givenSizes = new int[sizeCount];
+            System.arraycopy(sizes, 0, givenSizes, 0, sizeCount);
+            sizes = givenSizes;
+        }
+        new TextBuddyBenchmark("benchmark.txt", storeOption).runAll(sizes);
+    }
+}
@@ -0,0 +1,30 @@
+import java.util.Map;
+
+/**
+ * This interface is the JMX view of the metrics of a TextBuddy file.
+ * Durations are in microseconds and the maps are keyed by command.
+ *
+ * @author Wz
+ *
+ */
+public interface TextBuddyMetricsMXBean {
+    int getEntryCount();
+
+    long getStoreHeapBytes();
+
+    double getLastLoadMillis();
+
+    double getLastSaveMillis();
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Double> getMeanMicros();
+
+    Map<String, Long> getP50Micros();
+
+    Map<String, Long> getP99Micros();
+
+    Map<String, Long> getMaxMicros();
+
+    String getStats();
+}
@@ -0,0 +1,105 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class serves one TextBuddy to many clients over TCP on the loopback
+ * address. Each client is a session that sends one command per line and gets
+ * back the same responses as the console, in UTF-8. "exit" ends the session
+ * only.
+ *
+ * Sessions run on virtual threads when the JVM has them, else on a cached
+ * thread pool. TextBuddy.processInput does the locking between sessions.
+ *
+ * @author Wz
+ *
+ */
+class TextBuddyServer {
+    private final TextBuddy _textBuddy;
+    private final ExecutorService _sessions;
+    private ServerSocket _serverSocket;
+
+    TextBuddyServer(TextBuddy textBuddy) {
+        _textBuddy = textBuddy;
+        _sessions = createSessionExecutor();
+    }
+
+    /**
+     * Uses Executors.newVirtualThreadPerTaskExecutor where it exists, through
+     * reflection so that the code still builds for older JVMs
+     */
+    static ExecutorService createSessionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * @param port
+     *            - the port to listen on, or 0 for any free port
+     * @return the port being listened on
+     */
+    int bind(int port) throws IOException {
+        _serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        return _serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts clients until close is called
+     */
+    void run() {
+        while (!_serverSocket.isClosed()) {
+            try {
+                final Socket socket = _serverSocket.accept();
+                _sessions.execute(new Runnable() {
+                    public void run() {
+                        runSession(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!_serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    void close() throws IOException {
+        _serverSocket.close();
+        _sessions.shutdown();
+    }
+
+    private void runSession(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputSink sink = new OutputSink(socket.getOutputStream(), StandardCharsets.UTF_8);
+            sink.printLine(_textBuddy.getWelcomeMessage());
+            sink.flush();
+
+            String input;
+            while ((input = reader.readLine()) != null && !TextBuddy.isExitCommand(input)) {
+                _textBuddy.processInput(input, sink);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // the client went away; the other sessions carry on
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
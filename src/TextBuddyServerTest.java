@@ -0,0 +1,127 @@
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TextBuddyServerTest {
+    private String testFileName = "test.txt";
+    private TextBuddyServer server;
+    private int port;
+
+    @Before
+    public void startServer() throws Exception {
+        TextBuddy textBuddy = new TextBuddy(testFileName);
+        textBuddy.setDataLines(new String[] { "fox on a field" });
+        server = new TextBuddyServer(textBuddy);
+        port = server.bind(0);
+        new Thread(new Runnable() {
+            public void run() {
+                server.run();
+            }
+        }).start();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        server.close();
+    }
+
+    private Socket connect() throws Exception {
+        return new Socket(InetAddress.getLoopbackAddress(), port);
+    }
+
+    private BufferedReader getReader(Socket socket) throws Exception {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.UTF_8));
+    }
+
+    private PrintWriter getWriter(Socket socket) throws Exception {
+        return new PrintWriter(socket.getOutputStream(), true);
+    }
+
+    @Test
+    public void sessionsShareEntriesTest() throws Exception {
+        Socket first = connect();
+        Socket second = connect();
+        BufferedReader firstReader = getReader(first);
+        BufferedReader secondReader = getReader(second);
+        assertEquals("Welcome to TextBuddy. test.txt is ready for use", firstReader.readLine());
+        assertEquals("Welcome to TextBuddy. test.txt is ready for use", secondReader.readLine());
+
+        // an add in one session is seen by the other
+        getWriter(first).println("add horses on a field");
+        assertEquals("added to test.txt: \"horses on a field\"", firstReader.readLine());
+        getWriter(second).println("search field");
+        assertEquals("word: \"field\" found in 2 entries", secondReader.readLine());
+        assertEquals("1. fox on a field", secondReader.readLine());
+        assertEquals("2. horses on a field", secondReader.readLine());
+
+        // exit ends only that session
+        getWriter(first).println("exit");
+        assertNull(firstReader.readLine());
+        getWriter(second).println("display 1 1");
+        assertEquals("1. fox on a field", secondReader.readLine());
+
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void startedInBatchModeTest() throws Exception {
+        File file = new File("serverStartTest.txt");
+        Files.write(file.toPath(), Arrays.asList("fox on a field"), StandardCharsets.UTF_8);
+        ServerSocket freeSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        int startPort = freeSocket.getLocalPort();
+        freeSocket.close();
+
+        // --batch is what a server started without a console used to get
+        final TextBuddy textBuddy = new TextBuddy(file.getPath());
+        assertTrue(textBuddy.applyOption("--batch"));
+        assertTrue(textBuddy.applyOption("--server=" + startPort));
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                textBuddy.start();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        Socket socket = null;
+        for (int attempt = 0; socket == null; attempt++) {
+            try {
+                socket = new Socket(InetAddress.getLoopbackAddress(), startPort);
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+        socket.setSoTimeout(3000);
+        BufferedReader reader = getReader(socket);
+        assertEquals("Welcome to TextBuddy. serverStartTest.txt is ready for use",
+                reader.readLine());
+
+        // each response is sent as soon as it is ready
+        getWriter(socket).println("display");
+        assertEquals("1. fox on a field", reader.readLine());
+        getWriter(socket).println("search fox");
+        assertEquals("word: \"fox\" found in 1 entries", reader.readLine());
+
+        socket.close();
+        file.delete();
+    }
+}
@@ -1,13 +1,25 @@
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -117,6 +129,45 @@ public class TextBuddyTest {
         assertEquals(1000, cmdObj.getParameterAsInteger());
     }
 
+    @Test
+    public void commandObjectResetTest() {
+        TextBuddy.CommandObject cmdObj = new TextBuddy.CommandObject("Delete 7");
+        assertEquals(TextBuddy.Command.DELETE, cmdObj.getCommandType());
+
+        // the same object is reused for the next input
+        cmdObj.reset("SEARCH  two words");
+        assertEquals("search", cmdObj.getCommand());
+        assertEquals(" two words", cmdObj.getParameters());
+        assertFalse(cmdObj.processParameterAsInteger());
+
+        cmdObj.reset("Frobnicate now");
+        assertNull(cmdObj.getCommandType());
+        assertEquals("frobnicate", cmdObj.getCommand());
+
+        cmdObj.reset("adder");
+        assertNull(cmdObj.getCommandType());
+        assertTrue(TextBuddy.isExitCommand("EXIT"));
+        assertFalse(TextBuddy.isExitCommand("exits"));
+
+        for (TextBuddy.Command command : TextBuddy.Command.values()) {
+            cmdObj.reset(command.getVerb().toUpperCase() + " 1");
+            assertEquals(command, cmdObj.getCommandType());
+        }
+    }
+
+    @Test
+    public void parseIntegerTest() {
+        assertEquals(5, TextBuddy.parseInteger("+5", 0, 2));
+        assertEquals(-3, TextBuddy.parseInteger("x-3", 1, 3));
+        assertEquals(Integer.MAX_VALUE, TextBuddy.parseInteger("2147483647", 0, 10));
+        assertEquals(TextBuddy.NOT_AN_INTEGER, TextBuddy.parseInteger("2147483648", 0, 10));
+        assertEquals(TextBuddy.NOT_AN_INTEGER, TextBuddy.parseInteger("", 0, 0));
+        assertEquals(TextBuddy.NOT_AN_INTEGER, TextBuddy.parseInteger("-", 0, 1));
+        assertEquals(TextBuddy.NOT_AN_INTEGER, TextBuddy.parseInteger("1a", 0, 2));
+        assertEquals(-1, TextBuddy.parsePositiveInteger("0"));
+        assertEquals(12, TextBuddy.parsePositiveInteger("12-40", 0, 2));
+    }
+
     @Test
     public void printMessageTest() {
         String message = "hello";
@@ -474,4 +525,581 @@ public class TextBuddyTest {
         // further cases can be found under searchEntriesTest()
     }
 
+    @Test
+    public void searchAfterChangesTest() {
+        TextBuddy textBuddy = new TextBuddy(testFileName);
+        textBuddy.setDataLines(testData1);
+
+        // builds the index
+        assertEquals(1, textBuddy.getListOfMatches("Second").size());
+
+        // index kept up to date by add and delete
+        textBuddy.addEntry("Second helping");
+        textBuddy.deleteEntry(1);
+        String[] expected = { "Second helping" };
+        assertArrayEquals(expected, textBuddy.getListOfMatches("Second").toArray());
+
+        // partial words do not match
+        assertEquals(0, textBuddy.getListOfMatches("Sec").size());
+
+        // clear then add
+        textBuddy.clearEntries();
+        textBuddy.addEntry("line one");
+        assertEquals(1, textBuddy.getListOfMatches("line").size());
+
+        // keywords that are not a single word are matched as whole words
+        assertEquals(1, textBuddy.getListOfMatches("line one").size());
+        assertEquals(0, textBuddy.getListOfMatches("line o.e").size());
+        assertEquals(1, textBuddy.getListOfMatches(
+                SearchQuery.compile(SearchQuery.MODE_REGEX, "line o.e")).size());
+    }
+
+    @Test
+    public void operationLogReplayTest() {
+        String fileName = initializeDummyFile(testData1);
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        textBuddy.loadData();
+        textBuddy.addEntry("Fourth line");
+        textBuddy.deleteEntry(0);
+        textBuddy.sortEntries();
+        textBuddy.getOperationLog().sync();
+
+        // a new session without an exit in between replays the log
+        String[] expected = { "Fourth line", "Second line", "Third line" };
+        TextBuddy recovered = new TextBuddy(fileName);
+        recovered.loadData();
+        assertArrayEquals(expected, recovered.getDataLines().toArray());
+
+        // the log was folded into the file on load
+        assertFalse(new File(fileName + OperationLog.LOG_SUFFIX).exists());
+        assertArrayEquals(expected, recovered.getDataFromFile().toArray());
+
+        deleteDummyFile(fileName);
+    }
+
+    @Test
+    public void mappedLoadTest() throws Exception {
+        String fileName = initializeDummyFile(new String[0]);
+        FileOutputStream fs = new FileOutputStream(fileName);
+        fs.write("first\r\nsecond\rthird\n\nlast".getBytes("UTF-8"));
+        fs.close();
+
+        TextBuddy streamed = new TextBuddy(fileName);
+        assertTrue(streamed.applyOption("--load=stream"));
+        TextBuddy mapped = new TextBuddy(fileName);
+        assertTrue(mapped.applyOption("--load=mapped"));
+        assertFalse(mapped.applyOption("--load=unknown"));
+
+        // same lines as readLine
+        String[] expected = { "first", "second", "third", "", "last" };
+        assertArrayEquals(expected, streamed.getDataFromFile().toArray());
+        mapped.loadData();
+        assertArrayEquals(expected, mapped.getDataLines().toArray());
+
+        // changes on top of the mapped lines
+        mapped.deleteEntry(3);
+        mapped.addEntry("added");
+        mapped.sortEntries();
+        String[] expectedAfterChanges = { "added", "first", "last", "second", "third" };
+        assertArrayEquals(expectedAfterChanges, mapped.getDataLines().toArray());
+
+        mapped.getOperationLog().sync();
+        deleteDummyFile(fileName);
+        deleteDummyFile(fileName + OperationLog.LOG_SUFFIX);
+    }
+
+    @Test
+    public void durableAddTest() throws Exception {
+        String fileName = initializeDummyFile(new String[] { "a" });
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        textBuddy.loadData();
+
+        // the record is on disk by the time the add reports it
+        textBuddy.processInput("add durable");
+        assertEquals(Arrays.asList("a durable"),
+                Files.readAllLines(Paths.get(fileName + OperationLog.LOG_SUFFIX)));
+        ArrayList<String> pendingAdds = new ArrayList<String>(Arrays.asList("b", "c"));
+        textBuddy.addPendingEntries(pendingAdds);
+        assertEquals(Arrays.asList("a durable", "a b", "a c"),
+                Files.readAllLines(Paths.get(fileName + OperationLog.LOG_SUFFIX)));
+
+        deleteDummyFile(fileName);
+        deleteDummyFile(fileName + OperationLog.LOG_SUFFIX);
+    }
+
+    @Test
+    public void closeMappedFileTest() {
+        String fileName = initializeDummyFile(new String[] { "b", "a" });
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        textBuddy.applyOption("--load=mapped");
+        textBuddy.loadData();
+        MappedEntryStore store = (MappedEntryStore) textBuddy.getDataLines();
+        MappedEntryStore snapshot = (MappedEntryStore) store.snapshot();
+        textBuddy.close();
+
+        // the snapshot holds the file open until it is closed too
+        assertTrue(snapshot.isOpen());
+        assertEquals("[b, a]", snapshot.toString());
+        snapshot.close();
+        assertFalse(store.isOpen());
+
+        // a store kept for undo is closed with the TextBuddy
+        textBuddy.loadData();
+        store = (MappedEntryStore) textBuddy.getDataLines();
+        textBuddy.processInput("clear");
+        assertTrue(store.isOpen());
+        textBuddy.close();
+        assertFalse(store.isOpen());
+
+        textBuddy.getOperationLog().sync();
+        deleteDummyFile(fileName);
+        deleteDummyFile(fileName + OperationLog.LOG_SUFFIX);
+    }
+
+    @Test
+    public void optionArgumentsTest() {
+        String[] args = { "--load=mapped", "file.txt" };
+
+        assertTrue(TextBuddy.isOfOneArgument(args));
+        assertEquals("file.txt", TextBuddy.getFileNameArgument(args));
+    }
+
+    @Test
+    public void packedStoreTest() {
+        TextBuddy textBuddy = new TextBuddy(testFileName);
+        assertTrue(textBuddy.applyOption("--store=packed"));
+        textBuddy.setDataLines(testData1);
+        assertTrue(textBuddy.getDataLines() instanceof PackedEntryStore);
+
+        textBuddy.addEntry("Fourth line");
+        textBuddy.deleteEntry(0);
+        String displayOutput = "1. " + testData1[1] + System.lineSeparator() + "2. "
+                + testData1[2] + System.lineSeparator() + "3. Fourth line";
+        assertEquals(displayOutput, textBuddy.displayEntries());
+        assertEquals(3, textBuddy.getListOfMatches("line").size());
+        assertEquals(1, textBuddy.getListOfMatches(
+                SearchQuery.compile(SearchQuery.MODE_REGEX, "F.urth")).size());
+    }
+
+    @Test
+    public void displayWindowTest() {
+        TextBuddy textBuddy = new TextBuddy(testFileName);
+        textBuddy.setDataLines(testData1);
+
+        // window inside the entries
+        TextBuddy.CommandObject windowCommand = new TextBuddy.CommandObject("display 2 1");
+        assertEquals("2. " + testData1[1], textBuddy.processDisplayCommand(windowCommand));
+
+        // window past the last entry is cut short
+        windowCommand = new TextBuddy.CommandObject("display 2 10");
+        assertEquals("2. " + testData1[1] + System.lineSeparator() + "3. " + testData1[2],
+                textBuddy.processDisplayCommand(windowCommand));
+
+        // start past the last entry
+        windowCommand = new TextBuddy.CommandObject("display 4 1");
+        assertEquals("Invalid index", textBuddy.processDisplayCommand(windowCommand));
+
+        // malformed windows
+        windowCommand = new TextBuddy.CommandObject("display 0 1");
+        assertEquals("Invalid command parameter",
+                textBuddy.processDisplayCommand(windowCommand));
+        windowCommand = new TextBuddy.CommandObject("display 1 two");
+        assertEquals("Invalid command parameter",
+                textBuddy.processDisplayCommand(windowCommand));
+
+        // streamed through processInput
+        textBuddy.processInput("display 3 1");
+        assertEquals("3. " + testData1[2] + System.lineSeparator(), outContent.toString());
+    }
+
+    @Test
+    public void keepSortedTest() {
+        String fileName = initializeDummyFile(new String[] { "zebra", "apple", "pool" });
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        assertTrue(textBuddy.applyOption("--keep-sorted"));
+        textBuddy.loadData();
+
+        // adds before the first sort go at the end
+        textBuddy.addEntry("Mangoes");
+        String[] unsorted = { "zebra", "apple", "pool", "Mangoes" };
+        assertArrayEquals(unsorted, textBuddy.getDataLines().toArray());
+
+        // adds after a sort go in place, after entries that compare equal
+        textBuddy.sortEntries();
+        textBuddy.addEntry("Apple");
+        textBuddy.addEntry("banana");
+        String[] sorted = { "apple", "Apple", "banana", "Mangoes", "pool", "zebra" };
+        assertArrayEquals(sorted, textBuddy.getDataLines().toArray());
+
+        // sorting again keeps the same order
+        textBuddy.sortEntries();
+        assertArrayEquals(sorted, textBuddy.getDataLines().toArray());
+
+        // the inserts are replayed in place
+        textBuddy.getOperationLog().sync();
+        TextBuddy recovered = new TextBuddy(fileName);
+        recovered.loadData();
+        assertArrayEquals(sorted, recovered.getDataLines().toArray());
+
+        deleteDummyFile(fileName);
+    }
+
+    @Test
+    public void batchProcessTest() {
+        String fileName = initializeDummyFile(testData1);
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        textBuddy.loadData();
+
+        String commands = "add four" + System.lineSeparator() + "add five"
+                + System.lineSeparator() + "delete 1" + System.lineSeparator() + "display 3 2"
+                + System.lineSeparator() + "add six" + System.lineSeparator();
+        textBuddy.runBatchProcess(new BufferedReader(new StringReader(commands)));
+
+        // no prompts, one response per command
+        String expectedOutput = String.format("added to %1$s: \"four\"", fileName)
+                + System.lineSeparator()
+                + String.format("added to %1$s: \"five\"", fileName)
+                + System.lineSeparator()
+                + String.format("deleted from %1$s: \"First line\"", fileName)
+                + System.lineSeparator() + "3. four" + System.lineSeparator() + "4. five"
+                + System.lineSeparator()
+                + String.format("added to %1$s: \"six\"", fileName)
+                + System.lineSeparator();
+        assertEquals(expectedOutput, outContent.toString());
+
+        // the end of the input saves the file
+        String[] expectedData = { "Second line", "Third line", "four", "five", "six" };
+        assertArrayEquals(expectedData, textBuddy.getDataFromFile().toArray());
+
+        deleteDummyFile(fileName);
+    }
+
+    @Test
+    public void searchModesTest() {
+        TextBuddy textBuddy = new TextBuddy(testFileName);
+        textBuddy.setDataLines(new String[] { "1+1 is 2", "fields of gold", "a field" });
+
+        // special characters have no meaning without -r
+        String foundOutput = "word: \"1+1\" found in 1 entries" + System.lineSeparator()
+                + "1. 1+1 is 2";
+        assertEquals(foundOutput, textBuddy.searchEntries("1+1"));
+        assertEquals("1+1 not found", textBuddy.searchEntries("-r 1+1"));
+        assertEquals(2, textBuddy.getListOfMatches(
+                SearchQuery.compile(SearchQuery.MODE_LITERAL, "field")).size());
+        assertEquals("Invalid search pattern: Unclosed group",
+                textBuddy.searchEntries("-r (field"));
+
+        assertFalse(textBuddy.applyOption("--search=fuzzy"));
+        assertTrue(textBuddy.applyOption("--search=literal"));
+        assertEquals(2, textBuddy.getListOfMatches("field").size());
+        assertTrue(textBuddy.applyOption("--search=regex"));
+        assertEquals(1, textBuddy.getListOfMatches("^a f").size());
+    }
+
+    @Test
+    public void searchLimitAndCountTest() {
+        TextBuddy textBuddy = new TextBuddy(testFileName);
+        textBuddy.setDataLines(new String[] { "a field", "fields", "field day", "the field" });
+
+        String limitedOutput = "word: \"field\" found in at least 2 entries"
+                + System.lineSeparator() + "1. a field" + System.lineSeparator() + "2. field day";
+        assertEquals(limitedOutput, textBuddy.searchEntries("-n 2 field"));
+        assertEquals("word: \"field\" found in 3 entries", textBuddy.searchEntries("-c field"));
+        assertEquals("word: \"fie\" found in at least 2 entries",
+                textBuddy.searchEntries("-c -n 2 -l fie"));
+        assertEquals("word: \"field\" found in 3 entries" + System.lineSeparator()
+                + "1. a field" + System.lineSeparator() + "2. field day" + System.lineSeparator()
+                + "3. the field", textBuddy.searchEntries("-n 5 field"));
+        assertEquals("cat not found", textBuddy.searchEntries("-c cat"));
+        assertEquals("Invalid command parameter", textBuddy.searchEntries("-n 0 field"));
+        assertEquals("Invalid command parameter", textBuddy.searchEntries("-n 2"));
+    }
+
+    @Test
+    public void prefixAndFuzzySearchTest() {
+        TextBuddy textBuddy = new TextBuddy(testFileName);
+        textBuddy.setDataLines(new String[] { "the database", "metadata", "Data sheet",
+            "a feild day" });
+
+        assertEquals("word: \"data*\" found in 1 entries" + System.lineSeparator()
+                + "1. the database", textBuddy.searchEntries("data*"));
+        assertEquals("word: \"tadat\" found in 1 entries", textBuddy.searchEntries("-c -l tadat"));
+        assertEquals("word: \"feld\" found in 1 entries" + System.lineSeparator()
+                + "1. a feild day", textBuddy.searchEntries("-f feld"));
+        assertEquals("Invalid command parameter", textBuddy.searchEntries("-f two words"));
+
+        // entries added after the index is built are found
+        textBuddy.addEntry("field trip");
+        assertEquals("word: \"feld\" found in 2 entries", textBuddy.searchEntries("-c -f feld"));
+        assertEquals(1, textBuddy.getListOfMatches(
+                SearchQuery.compile(SearchQuery.MODE_LITERAL, "d trip")).size());
+        textBuddy.clearEntries();
+        textBuddy.addEntry("metadata");
+        assertEquals("word: \"tadat\" found in 1 entries", textBuddy.searchEntries("-c -l tadat"));
+    }
+
+    @Test
+    public void parallelSearchTest() {
+        TextBuddy textBuddy = new TextBuddy(testFileName);
+        assertTrue(textBuddy.applyOption("--store=packed"));
+        String[] data = new String[200000];
+        ArrayList<String> expected = new ArrayList<String>();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = "entry " + i + ((i % 7 == 0) ? " lucky seven" : " plain");
+            if (i % 7 == 0) {
+                expected.add(data[i]);
+            }
+        }
+        textBuddy.setDataLines(data);
+
+        // the segments are merged back in the original order
+        assertEquals(expected, textBuddy.getListOfMatches("lucky seven"));
+        assertEquals(expected, textBuddy.getListOfMatches(
+                SearchQuery.compile(SearchQuery.MODE_REGEX, "l.cky")));
+        assertEquals(data.length, textBuddy.getListOfMatches(
+                SearchQuery.compile(SearchQuery.MODE_LITERAL, "entry")).size());
+    }
+
+    @Test
+    public void rangeDeleteTest() {
+        String[] data = new String[5000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = "entry " + (i + 1);
+        }
+        String fileName = initializeDummyFile(data);
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        textBuddy.loadData();
+
+        assertEquals(String.format("deleted 4991 entries from %1$s", fileName),
+                textBuddy.processDeleteCommand(new TextBuddy.CommandObject("delete 10-5000")));
+        assertEquals(9, textBuddy.getDataLines().size());
+        assertEquals("entry 9", textBuddy.getDataLines().get(8));
+        assertEquals(1, textBuddy.getListOfMatches("9").size());
+
+        String[] invalidRanges = { "delete 0-3", "delete 5-2", "delete 3-10", "delete 3-",
+                "delete -3" };
+        for (String invalidRange : invalidRanges) {
+            String output = textBuddy.processDeleteCommand(
+                    new TextBuddy.CommandObject(invalidRange));
+            assertTrue(output.equals("Invalid index")
+                    || output.equals("Invalid command parameter"));
+        }
+        textBuddy.processDeleteCommand(new TextBuddy.CommandObject("delete 2-3"));
+
+        // the range deletes are replayed from the log
+        textBuddy.getOperationLog().sync();
+        TextBuddy recovered = new TextBuddy(fileName);
+        recovered.loadData();
+        assertArrayEquals(textBuddy.getDataLines().toArray(),
+                recovered.getDataLines().toArray());
+
+        deleteDummyFile(fileName);
+    }
+
+    @Test
+    public void uniqueAddAndDedupeTest() {
+        String fileName = initializeDummyFile(new String[] { "a", "b", "a", "c", "b", "a" });
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        textBuddy.loadData();
+
+        String commands = "add --unique c" + System.lineSeparator() + "add --unique d"
+                + System.lineSeparator() + "add d" + System.lineSeparator() + "delete 1"
+                + System.lineSeparator() + "add --unique a" + System.lineSeparator();
+        textBuddy.runBatchProcess(new BufferedReader(new StringReader(commands)));
+        assertTrue(outContent.toString().startsWith(String.format("already in %1$s: \"c\"",
+                fileName)));
+        assertEquals("[b, a, c, b, a, d, d]", textBuddy.getDataLines().toString());
+        assertTrue(textBuddy.containsEntry("d"));
+        assertFalse(textBuddy.containsEntry("e"));
+
+        // the first of each entry is kept, and undo brings the rest back
+        assertEquals(String.format("deleted 3 duplicate entries from %1$s", fileName),
+                textBuddy.dedupeEntries());
+        assertEquals("[b, a, c, d]", textBuddy.getDataLines().toString());
+        assertEquals(String.format("no duplicate entries in %1$s", fileName),
+                textBuddy.dedupeEntries());
+        textBuddy.processInput("add --unique b");
+        textBuddy.processInput("add --unique e");
+        assertEquals("[b, a, c, d, e]", textBuddy.getDataLines().toString());
+        textBuddy.processInput("undo");
+        textBuddy.processInput("undo");
+        assertEquals("[b, a, c, b, a, d, d]", textBuddy.getDataLines().toString());
+        assertTrue(textBuddy.containsEntry("b"));
+
+        textBuddy.getOperationLog().sync();
+        deleteDummyFile(fileName);
+        deleteDummyFile(fileName + OperationLog.LOG_SUFFIX);
+    }
+
+    @Test
+    public void undoRedoTest() {
+        String fileName = initializeDummyFile(new String[] { "b", "c", "a" });
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        textBuddy.loadData();
+        String[] commands = { "add d", "add e", "delete 2", "sort", "delete 1-2", "clear" };
+        for (String command : commands) {
+            textBuddy.processInput(command);
+        }
+        assertTrue(textBuddy.getDataLines().isEmpty());
+
+        String[] expected = { "[d, e]", "[a, b, d, e]", "[b, a, d, e]", "[b, c, a, d, e]",
+                "[b, c, a, d]", "[b, c, a]" };
+        for (String state : expected) {
+            textBuddy.processInput("undo");
+            assertEquals(state, textBuddy.getDataLines().toString());
+        }
+        assertEquals(String.format("nothing to undo in %1$s", fileName),
+                textBuddy.processUndoCommand(new TextBuddy.CommandObject("undo")));
+
+        // redo runs the commands again, in order
+        for (int i = 0; i < 4; i++) {
+            textBuddy.processInput("redo");
+        }
+        assertEquals("[a, b, d, e]", textBuddy.getDataLines().toString());
+        assertTrue(textBuddy.isSorted());
+        assertEquals(1, textBuddy.getListOfMatches("d").size());
+
+        // a new command drops what is left to redo
+        textBuddy.processInput("add f");
+        assertEquals(String.format("nothing to redo in %1$s", fileName),
+                textBuddy.processRedoCommand(new TextBuddy.CommandObject("redo")));
+
+        // undone commands are in the log like any other change
+        textBuddy.getOperationLog().sync();
+        TextBuddy recovered = new TextBuddy(fileName);
+        recovered.loadData();
+        assertEquals("[a, b, d, e, f]", recovered.getDataLines().toString());
+
+        deleteDummyFile(fileName);
+    }
+
+    @Test
+    public void backgroundSaveTest() throws IOException {
+        String fileName = initializeDummyFile(testData1);
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        assertTrue(textBuddy.applyOption("--autosave=30"));
+        assertFalse(textBuddy.applyOption("--autosave=0"));
+        textBuddy.loadData();
+        TextBuddy.CommandObject save = new TextBuddy.CommandObject("save");
+        assertEquals(String.format("no changes to save in %1$s", fileName),
+                textBuddy.processSaveCommand(save));
+
+        // the file is written from a snapshot while the entries keep changing
+        textBuddy.addEntry("Fourth line");
+        assertEquals(String.format("saving %1$s in the background", fileName),
+                textBuddy.processSaveCommand(save));
+        textBuddy.deleteEntry(0);
+        textBuddy.getOperationLog().awaitCompaction();
+        assertEquals("[First line, Second line, Third line, Fourth line]",
+                Files.readAllLines(Paths.get(fileName)).toString());
+        assertFalse(new File(fileName + OperationLog.OLD_LOG_SUFFIX).exists());
+
+        // exit saves only what changed after the last save
+        textBuddy.setupForExiting();
+        assertFalse(textBuddy.hasUnsavedChanges());
+        assertEquals("[Second line, Third line, Fourth line]",
+                Files.readAllLines(Paths.get(fileName)).toString());
+        assertEquals("Invalid command parameter",
+                textBuddy.processSaveCommand(new TextBuddy.CommandObject("save now")));
+
+        deleteDummyFile(fileName);
+    }
+
+    @Test
+    public void importExportTest() throws IOException {
+        String fileName = "importExportTest.txt";
+        Files.write(Paths.get(fileName), "b\r\nc\r\n".getBytes(StandardCharsets.UTF_8));
+        String importName = "importExportTest.import.txt";
+        Files.write(Paths.get(importName), "a\r\n\rd".getBytes(StandardCharsets.UTF_8));
+        String exportName = "importExportTest.export.txt";
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        textBuddy.loadData();
+
+        // one response for the whole file, and one undo
+        assertEquals(String.format("imported 3 entries from %2$s to %1$s", fileName, importName),
+                textBuddy.processImportCommand(new TextBuddy.CommandObject("import " + importName)));
+        assertEquals("[b, c, a, , d]", textBuddy.getDataLines().toString());
+        assertFalse(textBuddy.isSorted());
+        assertEquals(1, textBuddy.getListOfMatches("a").size());
+        textBuddy.processInput("undo");
+        assertEquals("[b, c]", textBuddy.getDataLines().toString());
+        textBuddy.processInput("redo");
+        assertEquals("Error, cannot access missing.txt",
+                textBuddy.processImportCommand(new TextBuddy.CommandObject("import missing.txt")));
+
+        // lines still as loaded are copied with their own line breaks
+        assertEquals(String.format("exported 3 entries from %1$s to %2$s", fileName, exportName),
+                textBuddy.processExportCommand(
+                        new TextBuddy.CommandObject("export " + exportName + " 2-4")));
+        assertEquals("c\r\na" + System.lineSeparator() + System.lineSeparator(),
+                new String(Files.readAllBytes(Paths.get(exportName)), StandardCharsets.UTF_8));
+        textBuddy.processExportCommand(new TextBuddy.CommandObject("export " + exportName));
+        assertEquals("[b, c, a, , d]", Files.readAllLines(Paths.get(exportName)).toString());
+        assertEquals("Invalid index", textBuddy.processExportCommand(
+                new TextBuddy.CommandObject("export " + exportName + " 3-9")));
+        assertEquals("Invalid index", textBuddy.processExportCommand(
+                new TextBuddy.CommandObject("export " + exportName + " 0-5")));
+        assertEquals("Invalid index", textBuddy.processExportCommand(
+                new TextBuddy.CommandObject("export " + exportName + " 4-2")));
+        assertFalse(new File(exportName + " 0-5").exists());
+        assertEquals(String.format("Error, cannot export %1$s to itself", fileName),
+                textBuddy.processExportCommand(new TextBuddy.CommandObject("export " + fileName)));
+
+        // the imported entries are in the log like any other add
+        textBuddy.getOperationLog().sync();
+        TextBuddy recovered = new TextBuddy(fileName);
+        recovered.loadData();
+        assertEquals("[b, c, a, , d]", recovered.getDataLines().toString());
+
+        deleteDummyFile(importName);
+        deleteDummyFile(exportName);
+        deleteDummyFile(fileName);
+    }
+
+    @Test
+    public void incrementalSaveTest() throws IOException {
+        String fileName = "incrementalSaveTest.txt";
+        Files.write(Paths.get(fileName),
+                "First line\r\nSecond line\r\nThird line\r\n".getBytes(StandardCharsets.UTF_8));
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        textBuddy.loadData();
+
+        // the lines before the first change are copied from the old file
+        textBuddy.addEntry("Fourth line");
+        textBuddy.deleteEntry(1);
+        textBuddy.setupForExiting();
+        assertEquals("First line\r\nThird line" + System.lineSeparator() + "Fourth line"
+                + System.lineSeparator(), new String(Files.readAllBytes(Paths.get(fileName)),
+                StandardCharsets.UTF_8));
+
+        deleteDummyFile(fileName);
+    }
+
+    @Test
+    public void statsTest() throws Exception {
+        TextBuddy textBuddy = new TextBuddy(testFileName);
+        textBuddy.setDataLines(testData1);
+        textBuddy.processInput("add Fourth line");
+        textBuddy.processInput("search line");
+        textBuddy.processInput("search line");
+        outContent.reset();
+
+        textBuddy.processInput("stats");
+        String[] statsLines = outContent.toString().split(System.lineSeparator());
+        assertEquals("entries: 4", statsLines[0]);
+        assertTrue(statsLines[4].matches("add +1 .*"));
+        assertTrue(statsLines[9].matches("search +2 .*"));
+        assertEquals("Invalid command parameter",
+                textBuddy.processStatsCommand(new TextBuddy.CommandObject("stats now")));
+
+        // the same numbers through JMX
+        CommandMetrics metrics = textBuddy.getMetrics();
+        metrics.register(testFileName);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("TextBuddy:type=Metrics,file="
+                + ObjectName.quote(testFileName));
+        assertEquals(4, server.getAttribute(name, "EntryCount"));
+        assertTrue((Long) server.getAttribute(name, "StoreHeapBytes") > 0);
+        server.unregisterMBean(name);
+    }
 }
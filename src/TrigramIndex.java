@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class is a WordIndex keyed by the trigrams of the entries instead of
+ * their words, so searches that are not for a single whole word only have
+ * to match the entries that hold every trigram of the keyword.
+ *
+ * Trigrams are taken from the entry normalized char by char: letters are
+ * folded to lower case, any char that is not a token char becomes a space,
+ * and a space is added at both ends. Normalizing both sides the same way
+ * keeps every substring a substring, so the entries holding a keyword are
+ * always among the candidates, whatever its case or punctuation. A token is
+ * a maximal run of token chars, and starts and ends with a trigram holding
+ * a space.
+ *
+ * A fuzzy keyword matches a token within an edit distance of it. Each edit
+ * changes at most three trigrams of " token ", so a match shares all but
+ * 3 * distance of the trigrams of " keyword " and the entries sharing fewer
+ * are never read.
+ *
+ * Like WordIndex, the index is built on first use and kept up to date after
+ * that, at the cost of a posting for each distinct trigram of each entry.
+ *
+ * @author Wz
+ *
+ */
+class TrigramIndex extends WordIndex {
+    static final int GRAM_LENGTH = 3;
+    // keywords at least this long may have two edits in a fuzzy search
+    static final int TWO_EDIT_LENGTH = 8;
+
+    private static final char SEPARATOR = ' ';
+
+    @Override
+    Set<String> getKeys(String dataLine) {
+        return getTrigrams(SEPARATOR + normalize(dataLine) + SEPARATOR);
+    }
+
+    static boolean isTokenChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || Character.isSurrogate(c)
+                || Character.getType(c) == Character.NON_SPACING_MARK;
+    }
+
+    /**
+     * Folds each char to lower case and turns each char that is not a token
+     * char into a space, keeping the length
+     */
+    static String normalize(CharSequence text) {
+        char[] normalized = new char[text.length()];
+        for (int i = 0; i < normalized.length; i++) {
+            char c = text.charAt(i);
+            normalized[i] = isTokenChar(c) ? Character.toLowerCase(c) : SEPARATOR;
+        }
+        return new String(normalized);
+    }
+
+    static HashSet<String> getTrigrams(String normalized) {
+        HashSet<String> trigrams = new HashSet<String>();
+        for (int i = 0; i + GRAM_LENGTH <= normalized.length(); i++) {
+            trigrams.add(normalized.substring(i, i + GRAM_LENGTH));
+        }
+        return trigrams;
+    }
+
+    /**
+     * @return the number of edits a fuzzy search for a keyword allows
+     */
+    static int getMaxDistance(String keyword) {
+        return (keyword.length() >= TWO_EDIT_LENGTH) ? 2 : 1;
+    }
+
+    /**
+     * Finds the entries holding every trigram of a keyword, by intersecting
+     * the postings from the shortest up
+     *
+     * @return the positions of the candidates in ascending order, or null if
+     *         the keyword is too short to have a trigram
+     */
+    int[] getSubstringCandidates(String keyword) {
+        if (keyword.length() < GRAM_LENGTH) {
+            return null;
+        }
+        ArrayList<Postings> postingsList = new ArrayList<Postings>();
+        for (String trigram : getTrigrams(normalize(keyword))) {
+            Postings postings = getPostings(trigram);
+            if (postings == null) {
+                return new int[0];
+            }
+            postingsList.add(postings);
+        }
+        Collections.sort(postingsList, new Comparator<Postings>() {
+            public int compare(Postings first, Postings second) {
+                return Integer.compare(first.size(), second.size());
+            }
+        });
+
+        Postings shortest = postingsList.get(0);
+        int[] ids = new int[shortest.size()];
+        int count = 0;
+        for (int i = 0; i < shortest.size(); i++) {
+            int id = shortest.get(i);
+            int j = 1;
+            while (j < postingsList.size() && postingsList.get(j).contains(id)) {
+                j++;
+            }
+            if (j == postingsList.size()) {
+                ids[count++] = id;
+            }
+        }
+        return toPositions(ids, count);
+    }
+
+    /**
+     * Finds the entries sharing enough trigrams with " keyword " to hold a
+     * token within maxDistance edits of it, by sorting the ids of all the
+     * postings and counting each run
+     *
+     * @return the positions of the candidates in ascending order, or null if
+     *         the keyword is too short for any trigram to be required
+     */
+    int[] getFuzzyCandidates(String keyword, int maxDistance) {
+        HashSet<String> trigrams = getTrigrams(SEPARATOR + normalize(keyword) + SEPARATOR);
+        int minShared = trigrams.size() - GRAM_LENGTH * maxDistance;
+        if (minShared < 1) {
+            return null;
+        }
+        int total = 0;
+        ArrayList<Postings> postingsList = new ArrayList<Postings>();
+        for (String trigram : trigrams) {
+            Postings postings = getPostings(trigram);
+            if (postings != null) {
+                postingsList.add(postings);
+                total += postings.size();
+            }
+        }
+        int[] allIds = new int[total];
+        total = 0;
+        for (Postings postings : postingsList) {
+            for (int i = 0; i < postings.size(); i++) {
+                allIds[total++] = postings.get(i);
+            }
+        }
+        Arrays.sort(allIds);
+
+        int[] ids = new int[allIds.length];
+        int count = 0;
+        for (int start = 0, end = 0; start < allIds.length; start = end) {
+            while (end < allIds.length && allIds[end] == allIds[start]) {
+                end++;
+            }
+            if (end - start >= minShared) {
+                ids[count++] = allIds[start];
+            }
+        }
+        return toPositions(ids, count);
+    }
+
+    /**
+     * Checks if an entry has a token within maxDistance edits of a keyword,
+     * comparing them normalized
+     *
+     * @param normalizedKeyword
+     *            - the keyword after normalize
+     */
+    static boolean hasFuzzyToken(CharSequence dataLine, String normalizedKeyword,
+            int maxDistance) {
+        String normalized = normalize(dataLine);
+        int[] previousRow = new int[normalizedKeyword.length() + 1];
+        int[] row = new int[normalizedKeyword.length() + 1];
+        int start = 0;
+        while (start < normalized.length()) {
+            if (normalized.charAt(start) == SEPARATOR) {
+                start++;
+                continue;
+            }
+            int end = start;
+            while (end < normalized.length() && normalized.charAt(end) != SEPARATOR) {
+                end++;
+            }
+            if (Math.abs(end - start - normalizedKeyword.length()) <= maxDistance
+                    && isWithinDistance(normalized, start, end, normalizedKeyword,
+                            maxDistance, previousRow, row)) {
+                return true;
+            }
+            start = end;
+        }
+        return false;
+    }
+
+    /**
+     * Works out the edit distance between text[start, end) and a keyword a
+     * row at a time, giving up once a whole row is past maxDistance
+     */
+    private static boolean isWithinDistance(String text, int start, int end, String keyword,
+            int maxDistance, int[] previousRow, int[] row) {
+        for (int j = 0; j <= keyword.length(); j++) {
+            previousRow[j] = j;
+        }
+        for (int i = start; i < end; i++) {
+            row[0] = i - start + 1;
+            int rowMin = row[0];
+            for (int j = 1; j <= keyword.length(); j++) {
+                int cost = (text.charAt(i) == keyword.charAt(j - 1)) ? 0 : 1;
+                row[j] = Math.min(Math.min(row[j - 1], previousRow[j]) + 1,
+                        previousRow[j - 1] + cost);
+                rowMin = Math.min(rowMin, row[j]);
+            }
+            if (rowMin > maxDistance) {
+                return false;
+            }
+            int[] swap = previousRow;
+            previousRow = row;
+            row = swap;
+        }
+        return previousRow[keyword.length()] <= maxDistance;
+    }
+}
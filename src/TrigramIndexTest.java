@@ -0,0 +1,89 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TrigramIndexTest {
+    private static final String[] WORDS = { "data", "database", "Date", "dated", "update",
+        "field", "fields", "feild", "gold", "golden", "a", "of", "x-ray", "DATA" };
+
+    private ArrayList<String> createEntries(int count, Random random) {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder line = new StringBuilder();
+            int wordCount = random.nextInt(4);
+            for (int j = 0; j < wordCount; j++) {
+                line.append(j == 0 ? "" : (random.nextBoolean() ? " " : ", "));
+                line.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * Checks that the candidates hold every entry the query matches, so that
+     * matching only them gives the same result as matching every entry
+     */
+    private void assertCandidatesCover(TrigramIndex index, ArrayList<String> lines,
+            SearchQuery query) {
+        int[] candidates = query.isFuzzy()
+                ? index.getFuzzyCandidates(query.getKeyword(), query.getMaxDistance())
+                : index.getSubstringCandidates(query.getKeyword());
+        assertNotNull(candidates);
+        int next = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            boolean isCandidate = next < candidates.length && candidates[next] == i;
+            if (isCandidate) {
+                next++;
+            }
+            if (query.matches(lines.get(i), query.createMatcher())) {
+                assertTrue(query.getText() + " in " + lines.get(i), isCandidate);
+            }
+        }
+        assertEquals(candidates.length, next);
+    }
+
+    @Test
+    public void candidatesCoverMatchesTest() {
+        Random random = new Random(1);
+        ArrayList<String> lines = createEntries(2000, random);
+        TrigramIndex index = new TrigramIndex();
+        index.build(lines);
+
+        String[] searches = { "-l ata", "-l x-r", "-l a, d", "data*", "fiel*", "gold of",
+            "-f data", "-f feild", "-f databse", "-f xray" };
+        for (String search : searches) {
+            assertCandidatesCover(index, lines, SearchQuery.parse(search, SearchQuery.MODE_WORD));
+        }
+
+        // the index follows adds at the end and removes anywhere
+        for (int i = 0; i < 500; i++) {
+            int position = random.nextInt(lines.size());
+            index.entryRemoved(position, lines.remove(position));
+            String line = WORDS[random.nextInt(WORDS.length)] + " " + i;
+            lines.add(line);
+            index.entryAdded(lines.size() - 1, line);
+        }
+        for (String search : searches) {
+            assertCandidatesCover(index, lines, SearchQuery.parse(search, SearchQuery.MODE_WORD));
+        }
+    }
+
+    @Test
+    public void fuzzyMatchTest() {
+        assertTrue(TrigramIndex.hasFuzzyToken("a Feld day", "field", 1));
+        assertTrue(TrigramIndex.hasFuzzyToken("fields", "field", 1));
+        assertFalse(TrigramIndex.hasFuzzyToken("fiddles", "field", 1));
+        assertTrue(TrigramIndex.hasFuzzyToken("the databse", "database", 2));
+        assertFalse(TrigramIndex.hasFuzzyToken("data base", "database", 1));
+
+        // keywords too short to require a trigram are not narrowed down
+        TrigramIndex index = new TrigramIndex();
+        index.build(new ArrayList<String>());
+        assertNull(index.getFuzzyCandidates("of", 1));
+        assertNull(index.getSubstringCandidates("of"));
+    }
+}
@@ -0,0 +1,390 @@
+import java.util.ArrayDeque;
+
+/**
+ * This class keeps the changes made by the commands of a TextBuddy as edits
+ * that reverse them, so the commands can be undone and redone.
+ *
+ * An edit holds only what is needed to reverse its command: the position of
+ * an added entry, the entries removed by a delete, the store that was in use
+ * before a clear, or the order the entries had before a sort. Applying an edit
+ * returns the edit that reverses it again, which goes on the other stack. Adds
+ * at consecutive positions extend one edit, so a run of appends keeps a few
+ * bytes however long it is, and undoing one of them removes only the last.
+ *
+ * The edits on both stacks are kept to at most _maxBytes, by dropping the
+ * oldest ones. An edit larger than that on its own empties the journal, since
+ * the older edits no longer reverse the entries once it is gone. A store
+ * kept by an edit that is dropped is closed.
+ *
+ * @author Wz
+ *
+ */
+class UndoJournal {
+    // an edit object and the headers of what it holds
+    private static final int EDIT_OVERHEAD_BYTES = 48;
+
+    private final ArrayDeque<Edit> _undoEdits = new ArrayDeque<Edit>();
+    private final ArrayDeque<Edit> _redoEdits = new ArrayDeque<Edit>();
+    private final long _maxBytes;
+    private long _bytes = 0;
+
+    /**
+     * @param maxBytes
+     *            - the most memory the edits may hold, or 0 to keep none
+     */
+    UndoJournal(long maxBytes) {
+        _maxBytes = maxBytes;
+    }
+
+    boolean isEnabled() {
+        return _maxBytes > 0;
+    }
+
+    long getBytes() {
+        return _bytes;
+    }
+
+    void clear() {
+        for (Edit edit : _undoEdits) {
+            edit.discard();
+        }
+        for (Edit edit : _redoEdits) {
+            edit.discard();
+        }
+        _undoEdits.clear();
+        _redoEdits.clear();
+        _bytes = 0;
+    }
+
+    /**
+     * Records an entry added at a position
+     *
+     * @param wasSorted
+     *            - whether the entries were known to be sorted before the add
+     */
+    void recordAdd(String command, int position, boolean wasSorted) {
+        Edit last = _undoEdits.peekLast();
+        if (last instanceof RemoveEdit && ((RemoveEdit) last).canExtend(position, wasSorted)) {
+            clearRedo();
+            ((RemoveEdit) last)._count++;
+            return;
+        }
+        push(new RemoveEdit(command, wasSorted, position, 1, true), true);
+    }
+
+    /**
+     * Records entries added at [position, position + count) by one command,
+     * which are removed together by undo
+     */
+    void recordAdds(String command, int position, int count, boolean wasSorted) {
+        push(new RemoveEdit(command, wasSorted, position, count, false), true);
+    }
+
+    /**
+     * Records entries deleted from a position onwards
+     */
+    void recordDelete(String command, int position, String[] dataLines, boolean wasSorted) {
+        push(new InsertEdit(command, wasSorted, position, dataLines), true);
+    }
+
+    /**
+     * Records a clear that replaced a store with an empty one, keeping the old
+     * store as it is
+     */
+    void recordClear(String command, EntryStore clearedStore, boolean wasSorted) {
+        if (isEnabled()) {
+            push(new RestoreEdit(command, wasSorted, clearedStore), true);
+        } else {
+            clearedStore.close();
+        }
+    }
+
+    /**
+     * Records a reordering of the entries
+     *
+     * @param order
+     *            - the order given to EntryStore.permute
+     */
+    void recordReorder(String command, int[] order, boolean wasSorted) {
+        if (fits(OrderEdit.getBytes(order))) {
+            push(new OrderEdit(command, wasSorted, EntryStore.invertOrder(order)), true);
+        } else {
+            clear();
+        }
+    }
+
+    /**
+     * Reverses the last command that was not undone yet
+     *
+     * @return the command undone, or null if there is nothing to undo
+     */
+    String undo(TextBuddy textBuddy) {
+        Edit edit = _undoEdits.peekLast();
+        if (edit == null) {
+            return null;
+        }
+        Edit redo = edit.apply(textBuddy, textBuddy.isSorted());
+        textBuddy.setSorted(edit._wasSorted);
+        if (edit.isDone()) {
+            _undoEdits.removeLast();
+            _bytes -= edit.getBytes();
+        }
+        _redoEdits.addLast(redo);
+        _bytes += redo.getBytes();
+        trim();
+        return edit._command;
+    }
+
+    /**
+     * Repeats the last command that was undone
+     *
+     * @return the command redone, or null if there is nothing to redo
+     */
+    String redo(TextBuddy textBuddy) {
+        Edit edit = _redoEdits.pollLast();
+        if (edit == null) {
+            return null;
+        }
+        _bytes -= edit.getBytes();
+        Edit undo = edit.apply(textBuddy, textBuddy.isSorted());
+        textBuddy.setSorted(edit._wasSorted);
+        push(undo, false);
+        return edit._command;
+    }
+
+    private boolean fits(long bytes) {
+        return bytes <= _maxBytes;
+    }
+
+    /**
+     * @param isNewCommand
+     *            - true if the edit reverses a new command, which cannot be
+     *            followed by the redo of an older one
+     */
+    private void push(Edit edit, boolean isNewCommand) {
+        if (isNewCommand) {
+            clearRedo();
+        }
+        if (!fits(edit.getBytes())) {
+            clear();
+            edit.discard();
+            return;
+        }
+        _undoEdits.addLast(edit);
+        _bytes += edit.getBytes();
+        trim();
+    }
+
+    private void clearRedo() {
+        for (Edit edit : _redoEdits) {
+            _bytes -= edit.getBytes();
+            edit.discard();
+        }
+        _redoEdits.clear();
+    }
+
+    /**
+     * Drops the oldest undo edits, then the redo edits furthest from being
+     * redone, until the journal is within its limit
+     */
+    private void trim() {
+        while (_bytes > _maxBytes && !_undoEdits.isEmpty()) {
+            Edit edit = _undoEdits.removeFirst();
+            _bytes -= edit.getBytes();
+            edit.discard();
+        }
+        while (_bytes > _maxBytes && !_redoEdits.isEmpty()) {
+            Edit edit = _redoEdits.removeFirst();
+            _bytes -= edit.getBytes();
+            edit.discard();
+        }
+    }
+
+    /**
+     * This class reverses one command
+     */
+    abstract static class Edit {
+        final String _command;
+        final boolean _wasSorted;
+
+        /**
+         * @param wasSorted
+         *            - whether the entries were known to be sorted before the
+         *            command, which applying this edit restores
+         */
+        Edit(String command, boolean wasSorted) {
+            _command = command;
+            _wasSorted = wasSorted;
+        }
+
+        abstract long getBytes();
+
+        /**
+         * Reverses the command on a TextBuddy
+         *
+         * @param isSorted
+         *            - whether the entries are known to be sorted now
+         * @return the edit that reverses this one
+         */
+        abstract Edit apply(TextBuddy textBuddy, boolean isSorted);
+
+        /**
+         * @return false if the edit still reverses more commands after being
+         *         applied
+         */
+        boolean isDone() {
+            return true;
+        }
+
+        /**
+         * Lets go of what the edit holds once it is dropped without being
+         * applied
+         */
+        void discard() {
+        }
+    }
+
+    /**
+     * This class removes the entries that were added at [_position, _position
+     * + _count), either by one command or by one add command each
+     */
+    static class RemoveEdit extends Edit {
+        private final int _position;
+        private int _count;
+        private final boolean _isRunOfAdds;
+
+        RemoveEdit(String command, boolean wasSorted, int position, int count,
+                boolean isRunOfAdds) {
+            super(command, wasSorted);
+            _position = position;
+            _count = count;
+            _isRunOfAdds = isRunOfAdds;
+        }
+
+        /**
+         * Checks if an add can join this run: it must go right after the run,
+         * and leave the entries as sorted as the adds before it did
+         */
+        boolean canExtend(int position, boolean wasSorted) {
+            return _isRunOfAdds && position == _position + _count && wasSorted == _wasSorted;
+        }
+
+        @Override
+        long getBytes() {
+            return EDIT_OVERHEAD_BYTES;
+        }
+
+        @Override
+        Edit apply(TextBuddy textBuddy, boolean isSorted) {
+            if (_isRunOfAdds) {
+                _count--;
+                int position = _position + _count;
+                String[] removed = textBuddy.removeEntries(position, position + 1);
+                return new InsertEdit(_command, isSorted, position, removed);
+            }
+            String[] removed = textBuddy.removeEntries(_position, _position + _count);
+            return new InsertEdit(_command, isSorted, _position, removed);
+        }
+
+        @Override
+        boolean isDone() {
+            return !_isRunOfAdds || _count == 0;
+        }
+    }
+
+    /**
+     * This class puts back entries that were removed from a position
+     */
+    static class InsertEdit extends Edit {
+        private final int _position;
+        private final String[] _dataLines;
+        private final long _bytes;
+
+        InsertEdit(String command, boolean wasSorted, int position, String[] dataLines) {
+            super(command, wasSorted);
+            _position = position;
+            _dataLines = dataLines;
+            long bytes = EDIT_OVERHEAD_BYTES + (long) dataLines.length * 4;
+            for (String dataLine : dataLines) {
+                bytes += EntryStore.estimateStringBytes(dataLine);
+            }
+            _bytes = bytes;
+        }
+
+        @Override
+        long getBytes() {
+            return _bytes;
+        }
+
+        @Override
+        Edit apply(TextBuddy textBuddy, boolean isSorted) {
+            textBuddy.insertEntries(_position, _dataLines);
+            return new RemoveEdit(_command, isSorted, _position, _dataLines.length,
+                    _dataLines.length == 1);
+        }
+    }
+
+    /**
+     * This class swaps back the store that was in use before a clear. Its
+     * size is the running heap estimate the store keeps, so making one reads
+     * no entry.
+     */
+    static class RestoreEdit extends Edit {
+        private final EntryStore _store;
+        private final long _bytes;
+
+        RestoreEdit(String command, boolean wasSorted, EntryStore store) {
+            super(command, wasSorted);
+            _store = store;
+            _bytes = EDIT_OVERHEAD_BYTES + store.estimateHeapBytes();
+        }
+
+        @Override
+        long getBytes() {
+            return _bytes;
+        }
+
+        @Override
+        Edit apply(TextBuddy textBuddy, boolean isSorted) {
+            EntryStore replaced = textBuddy.replaceStore(_store);
+            return new RestoreEdit(_command, isSorted, replaced);
+        }
+
+        @Override
+        void discard() {
+            _store.close();
+        }
+    }
+
+    /**
+     * This class moves the entries back into the order they had
+     */
+    static class OrderEdit extends Edit {
+        private final int[] _order;
+
+        /**
+         * @param order
+         *            - the order that restores the entries, for
+         *            EntryStore.permute
+         */
+        OrderEdit(String command, boolean wasSorted, int[] order) {
+            super(command, wasSorted);
+            _order = order;
+        }
+
+        static long getBytes(int[] order) {
+            return EDIT_OVERHEAD_BYTES + (long) order.length * 4;
+        }
+
+        @Override
+        long getBytes() {
+            return getBytes(_order);
+        }
+
+        @Override
+        Edit apply(TextBuddy textBuddy, boolean isSorted) {
+            textBuddy.permuteEntries(_order);
+            return new OrderEdit(_command, isSorted, EntryStore.invertOrder(_order));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class UndoJournalTest {
+
+    @Test
+    public void runOfAddsTest() {
+        TextBuddy textBuddy = new TextBuddy("undoJournalTest.txt");
+        textBuddy.setDataLines(new String[] { "a" });
+        for (int i = 0; i < 10000; i++) {
+            textBuddy.addEntry("entry " + i);
+        }
+        // the adds are one edit, which is undone one add at a time
+        long bytes = textBuddy.getUndoJournal().getBytes();
+        assertTrue(bytes < 100);
+        textBuddy.getUndoJournal().undo(textBuddy);
+        textBuddy.getUndoJournal().undo(textBuddy);
+        assertEquals(9999, textBuddy.getDataLines().size());
+        assertEquals("entry 9997", textBuddy.getDataLines().get(9998));
+        assertTrue(textBuddy.getUndoJournal().getBytes() > bytes);
+    }
+
+    @Test
+    public void memoryLimitTest() {
+        TextBuddy textBuddy = new TextBuddy("undoJournalTest.txt");
+        assertTrue(textBuddy.applyOption("--undo-memory=1"));
+        assertFalse(textBuddy.applyOption("--undo-memory=lots"));
+        String[] data = new String[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = "entry " + (data.length - i);
+        }
+        textBuddy.setDataLines(data);
+        UndoJournal journal = textBuddy.getUndoJournal();
+
+        // 100000 positions fit in 1 MB, 100000 deleted entries do not
+        textBuddy.sortEntries();
+        assertTrue(journal.getBytes() > 400000);
+        textBuddy.deleteEntries(0, 50000);
+        assertEquals(0, journal.getBytes());
+        assertNull(journal.undo(textBuddy));
+
+        textBuddy.deleteEntries(0, 1000);
+        textBuddy.deleteEntries(0, 1000);
+        assertEquals("delete", journal.undo(textBuddy));
+        assertEquals("delete", journal.undo(textBuddy));
+        assertEquals(49000 + 1000, textBuddy.getDataLines().size());
+        assertTrue(journal.getBytes() <= 1024 * 1024);
+
+        // a clear keeps the store itself, which is too large to keep here
+        textBuddy.clearEntries();
+        assertNull(journal.undo(textBuddy));
+        assertTrue(new UndoJournal(0).getBytes() == 0);
+    }
+}
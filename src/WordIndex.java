@@ -0,0 +1,217 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * This class is an inverted index from each word in the entries to the
+ * positions of the entries containing that word. A word is a maximal run of
+ * word characters, which are the characters the regex word boundary \b treats
+ * as word characters, so looking up a word gives the same entries as matching
+ * ".*\bword\b.*" against every entry.
+ *
+ * The index stores entry ids rather than positions, as every EntryIndex
+ * does, so a delete does not have to renumber every later entry.
+ *
+ * Subclasses can index other keys of the entries by overriding getKeys, as
+ * TrigramIndex does.
+ *
+ * @author Wz
+ *
+ */
+class WordIndex extends EntryIndex {
+    private HashMap<String, Postings> _postings = new HashMap<String, Postings>();
+
+    /**
+     * This class is a sorted, growable list of entry ids for a single word
+     */
+    static class Postings {
+        private int[] _ids = new int[2];
+        private int _size = 0;
+
+        void append(int id) {
+            if (_size > 0 && _ids[_size - 1] == id) {
+                return;
+            }
+            if (_size == _ids.length) {
+                int[] grown = new int[_size * 2];
+                System.arraycopy(_ids, 0, grown, 0, _size);
+                _ids = grown;
+            }
+            _ids[_size++] = id;
+        }
+
+        void remove(int id) {
+            int index = binarySearch(id);
+            if (index >= 0) {
+                System.arraycopy(_ids, index + 1, _ids, index, _size - index - 1);
+                _size--;
+            }
+        }
+
+        boolean isEmpty() {
+            return _size == 0;
+        }
+
+        int size() {
+            return _size;
+        }
+
+        int get(int index) {
+            return _ids[index];
+        }
+
+        boolean contains(int id) {
+            return binarySearch(id) >= 0;
+        }
+
+        private int binarySearch(int id) {
+            int low = 0;
+            int high = _size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (_ids[mid] < id) {
+                    low = mid + 1;
+                } else if (_ids[mid] > id) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Looks up the positions of the entries containing a word
+     *
+     * @param word
+     *            - a string for which isIndexableWord is true
+     * @return the 0-based positions in ascending order
+     */
+    int[] getPositions(String word) {
+        Postings postings = _postings.get(word);
+        if (postings == null) {
+            return new int[0];
+        }
+        return toPositions(postings._ids, postings.size());
+    }
+
+    /**
+     * @return the ids of the entries with a key, or null if there are none
+     */
+    Postings getPostings(String key) {
+        return _postings.get(key);
+    }
+
+    /**
+     * @return the keys an entry is indexed under, which are its words
+     */
+    Set<String> getKeys(String dataLine) {
+        return getDistinctWords(dataLine);
+    }
+
+    /**
+     * Checks if a keyword can be answered by the index, which is when it is a
+     * single word by itself
+     */
+    static boolean isIndexableWord(String keyword) {
+        if (keyword.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length(); i++) {
+            if (!isWordCodePoint(keyword.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isWordCodePoint(int codePoint) {
+        return Character.isLetterOrDigit(codePoint) || codePoint == '_';
+    }
+
+    /**
+     * A non-spacing mark counts as a word character when it follows one, the
+     * same way \b treats it
+     */
+    static boolean isNonSpacingMark(int codePoint) {
+        return Character.getType(codePoint) == Character.NON_SPACING_MARK;
+    }
+
+    /**
+     * The regex "." does not match line terminators, so an entry containing
+     * one never matched a search and is not indexed
+     */
+    static boolean hasLineTerminator(CharSequence dataLine) {
+        for (int i = 0; i < dataLine.length(); i++) {
+            char c = dataLine.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static HashSet<String> getDistinctWords(String dataLine) {
+        HashSet<String> words = new HashSet<String>();
+        if (hasLineTerminator(dataLine)) {
+            return words;
+        }
+        int length = dataLine.length();
+        int start = -1;
+        int i = 0;
+        while (i <= length) {
+            int codePoint = i < length ? dataLine.codePointAt(i) : -1;
+            boolean isWord = codePoint != -1 && (isWordCodePoint(codePoint)
+                    || (start != -1 && isNonSpacingMark(codePoint)));
+            if (isWord && start == -1) {
+                start = i;
+            } else if (!isWord && start != -1) {
+                words.add(dataLine.substring(start, i));
+                start = -1;
+            }
+            i += codePoint == -1 ? 1 : Character.charCount(codePoint);
+        }
+        return words;
+    }
+
+    @Override
+    void clearKeys() {
+        _postings = new HashMap<String, Postings>();
+    }
+
+    @Override
+    void addKeys(int id, String dataLine) {
+        for (String word : getKeys(dataLine)) {
+            Postings postings = _postings.get(word);
+            if (postings == null) {
+                postings = new Postings();
+                _postings.put(word, postings);
+            }
+            postings.append(id);
+        }
+    }
+
+    @Override
+    void removeKeys(int id, String dataLine) {
+        for (String word : getKeys(dataLine)) {
+            Postings postings = _postings.get(word);
+            postings.remove(id);
+            if (postings.isEmpty()) {
+                _postings.remove(word);
+            }
+        }
+    }
+
+    @Override
+    void renumberIds(int[] newIds) {
+        for (Postings postings : _postings.values()) {
+            for (int i = 0; i < postings._size; i++) {
+                postings._ids[i] = newIds[postings._ids[i]];
+            }
+            // the new ids follow the positions, which the old ones may not
+            Arrays.sort(postings._ids, 0, postings._size);
+        }
+    }
+}
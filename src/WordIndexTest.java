@@ -0,0 +1,86 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class WordIndexTest {
+
+    @Test
+    public void wordBoundaryTest() {
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add("fox on a field");
+        lines.add("fields of gold");
+        lines.add("snake_case field-day");
+        WordIndex index = new WordIndex();
+        index.build(lines);
+
+        assertArrayEquals(new int[] { 0, 2 }, index.getPositions("field"));
+        assertArrayEquals(new int[] { 2 }, index.getPositions("snake_case"));
+        assertArrayEquals(new int[0], index.getPositions("snake"));
+
+        assertTrue(WordIndex.isIndexableWord("field"));
+        assertFalse(WordIndex.isIndexableWord("field day"));
+        assertFalse(WordIndex.isIndexableWord(""));
+    }
+
+    @Test
+    public void positionsAfterManyDeletesTest() {
+        ArrayList<String> lines = new ArrayList<String>();
+        WordIndex index = new WordIndex();
+        index.build(lines);
+        for (int i = 0; i < 5000; i++) {
+            String line = (i % 2 == 0) ? "even " + i : "odd " + i;
+            lines.add(line);
+            index.entryAdded(i, line);
+        }
+
+        // deleting from the front forces the ids to be compacted
+        while (lines.size() > 10) {
+            index.entryRemoved(0, lines.remove(0));
+        }
+
+        int[] positions = index.getPositions("even");
+        assertEquals(5, positions.length);
+        for (int position : positions) {
+            assertTrue(lines.get(position).startsWith("even"));
+        }
+    }
+
+    @Test
+    public void insertsInTheMiddleTest() {
+        ArrayList<String> lines = new ArrayList<String>();
+        WordIndex index = new WordIndex();
+        index.build(lines);
+        Random random = new Random(1);
+        // inserts in sorted position, as --keep-sorted does, mixed with deletes
+        // that force the ids to be compacted
+        for (int i = 0; i < 20000; i++) {
+            if (lines.size() > 0 && random.nextInt(3) == 0) {
+                int position = random.nextInt(lines.size());
+                index.entryRemoved(position, lines.remove(position));
+            } else {
+                int position = random.nextInt(lines.size() + 1);
+                String line = "word" + random.nextInt(20) + " " + i;
+                lines.add(position, line);
+                index.entryAdded(position, line);
+            }
+        }
+        assertFalse(index.isStale());
+
+        for (int w = 0; w < 20; w++) {
+            ArrayList<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < lines.size(); i++) {
+                if (lines.get(i).startsWith("word" + w + " ")) {
+                    expected.add(i);
+                }
+            }
+            int[] positions = index.getPositions("word" + w);
+            assertEquals(expected.size(), positions.length);
+            for (int i = 0; i < positions.length; i++) {
+                assertEquals((int) expected.get(i), positions[i]);
+            }
+        }
+    }
+}
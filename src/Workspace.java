@@ -0,0 +1,283 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps many files open in one program for the "open <file>" and
+ * "use <file>" commands. Each file is a TextBuddy of its own, with its own
+ * operation log and undo history, and every other command goes to the file
+ * in use.
+ *
+ * Loaded files are kept in least recently used order. Each time a file is
+ * opened or used, the heap of every loaded store is estimated again, and if
+ * it is past _maxBytes the least recently used files other than the one in
+ * use are dropped, after saving any that have changes. Using a file that was
+ * dropped loads it again.
+ *
+ * The stores keep a running count of their heap, so estimating it costs the
+ * same however many entries there are. The file in use can grow past the
+ * budget until the next open or use.
+ *
+ * @author Wz
+ *
+ */
+class Workspace {
+    static final String OPTION_WORKSPACE = "--workspace";
+    private static final String OPTION_WORKSPACE_MEMORY = "--workspace-memory=";
+    private static final long DEFAULT_MEMORY_MB = 256;
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    private static final String COMMAND_OPEN = "open";
+    private static final String COMMAND_USE = "use";
+
+    private static final String WELCOME_MSG = "Welcome to TextBuddy. The workspace is ready for use";
+    private static final String OPEN_MSG = "opened %1$s, %2$s entries";
+    private static final String USE_MSG = "using %1$s";
+    private static final String NOT_OPEN_MSG = "%1$s is not open";
+    private static final String NO_FILE_IN_USE_MSG = "No file in use, open one with \"open <file>\"";
+    private static final String INVALID_COMMAND_PARAMETER_MSG = "Invalid command parameter";
+
+    // the files opened so far, by absolute path, keeping the name given
+    private final Map<String, String> _openFiles = new HashMap<String, String>();
+    // the loaded files in least recently used order
+    private final LinkedHashMap<String, TextBuddy> _loadedFiles =
+            new LinkedHashMap<String, TextBuddy>(16, 0.75f, true);
+    private final List<String> _fileOptions = new ArrayList<String>();
+    private long _maxBytes = DEFAULT_MEMORY_MB * BYTES_PER_MB;
+    private boolean _isBatchMode = false;
+    private final OutputSink _output;
+    private TextBuddy _current = null;
+    private String _currentPath = null;
+
+    Workspace(OutputSink output) {
+        _output = output;
+    }
+
+    /**
+     * Checks if the arguments ask for a workspace instead of a single file
+     */
+    static boolean isWorkspaceMode(String[] args) {
+        for (String arg : args) {
+            if (arg.equals(OPTION_WORKSPACE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies a command line option. Options for a file are checked here and
+     * applied to every file opened; --server is not supported.
+     *
+     * @return true if the option is known, else false
+     */
+    boolean applyOption(String option) {
+        if (option.equals(OPTION_WORKSPACE)) {
+            return true;
+        }
+        if (option.startsWith(OPTION_WORKSPACE_MEMORY)) {
+            String megabytes = option.substring(OPTION_WORKSPACE_MEMORY.length());
+            long value = TextBuddy.parseInteger(megabytes, 0, megabytes.length());
+            if (value >= 0) {
+                _maxBytes = value * BYTES_PER_MB;
+            }
+            return value >= 0;
+        }
+        if (option.equals(TextBuddy.OPTION_BATCH) || option.equals(TextBuddy.OPTION_INTERACTIVE)) {
+            _isBatchMode = option.equals(TextBuddy.OPTION_BATCH);
+            return true;
+        }
+        if (option.startsWith(TextBuddy.OPTION_SERVER) || !TextBuddy.isValidOption(option)) {
+            return false;
+        }
+        _fileOptions.add(option);
+        return true;
+    }
+
+    /**
+     * Opens the given files, the last one in use, then runs commands until
+     * exit
+     */
+    void start(List<String> fileNames) {
+        _fileOptions.add(_isBatchMode ? TextBuddy.OPTION_BATCH : TextBuddy.OPTION_INTERACTIVE);
+        _output.printLine(WELCOME_MSG);
+        for (String fileName : fileNames) {
+            _output.printLine(open(fileName));
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in,
+                Charset.defaultCharset()), TextBuddy.BATCH_READ_BUFFER_SIZE);
+        if (_isBatchMode) {
+            runBatchProcess(reader);
+        } else {
+            runCoreProcess(reader);
+        }
+    }
+
+    private void runCoreProcess(BufferedReader reader) {
+        try {
+            String input;
+            while (true) {
+                _output.print(TextBuddy.REQUEST_MSG);
+                _output.flush();
+                if ((input = reader.readLine()) == null || TextBuddy.isExitCommand(input)) {
+                    break;
+                }
+                processInput(input);
+                _output.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        saveAll();
+    }
+
+    /**
+     * Runs commands without prompts, adding runs of add commands to the file
+     * in use in bulk the same way as TextBuddy.runBatchProcess
+     */
+    void runBatchProcess(BufferedReader reader) {
+        ArrayList<String> pendingAdds = new ArrayList<String>();
+        TextBuddy.CommandObject cmd = new TextBuddy.CommandObject();
+        try {
+            String input;
+            while ((input = reader.readLine()) != null && !TextBuddy.isExitCommand(input)) {
+                cmd.reset(input);
+                if (_current != null && TextBuddy.isPlainAdd(cmd)) {
+                    pendingAdds.add(cmd.getParameters());
+                    if (pendingAdds.size() == TextBuddy.MAX_COALESCED_ADDS) {
+                        _current.addPendingEntries(pendingAdds);
+                    }
+                } else {
+                    if (_current != null) {
+                        _current.addPendingEntries(pendingAdds);
+                    }
+                    processCommand(input, cmd);
+                }
+            }
+            if (_current != null) {
+                _current.addPendingEntries(pendingAdds);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        saveAll();
+        _output.flush();
+    }
+
+    void processInput(String input) {
+        processCommand(input, new TextBuddy.CommandObject(input));
+    }
+
+    private void processCommand(String input, TextBuddy.CommandObject cmd) {
+        if (TextBuddy.CommandObject.isCommand(input, COMMAND_OPEN)) {
+            _output.printLine(cmd.hasParameters() ? open(cmd.getParameters())
+                    : INVALID_COMMAND_PARAMETER_MSG);
+        } else if (TextBuddy.CommandObject.isCommand(input, COMMAND_USE)) {
+            _output.printLine(cmd.hasParameters() ? use(cmd.getParameters())
+                    : INVALID_COMMAND_PARAMETER_MSG);
+        } else if (_current == null) {
+            _output.printLine(NO_FILE_IN_USE_MSG);
+        } else {
+            _current.processCommand(cmd, _output);
+        }
+    }
+
+    /**
+     * Adds a file to the workspace if it is not open yet, and uses it
+     */
+    String open(String fileName) {
+        String path = getPath(fileName);
+        if (!_openFiles.containsKey(path)) {
+            _openFiles.put(path, fileName);
+        }
+        switchTo(path);
+        return String.format(OPEN_MSG, _openFiles.get(path), _current.getEntryCount());
+    }
+
+    /**
+     * Switches to a file that was opened before
+     */
+    String use(String fileName) {
+        String path = getPath(fileName);
+        if (!_openFiles.containsKey(path)) {
+            return String.format(NOT_OPEN_MSG, fileName);
+        }
+        switchTo(path);
+        return String.format(USE_MSG, _openFiles.get(path));
+    }
+
+    TextBuddy getCurrent() {
+        return _current;
+    }
+
+    boolean isLoaded(String fileName) {
+        return _loadedFiles.containsKey(getPath(fileName));
+    }
+
+    private static String getPath(String fileName) {
+        return Paths.get(fileName).toAbsolutePath().normalize().toString();
+    }
+
+    private void switchTo(String path) {
+        TextBuddy textBuddy = _loadedFiles.get(path);
+        if (textBuddy == null) {
+            textBuddy = load(_openFiles.get(path));
+            _loadedFiles.put(path, textBuddy);
+        }
+        _current = textBuddy;
+        _currentPath = path;
+        evictIfNeeded();
+    }
+
+    private TextBuddy load(String fileName) {
+        TextBuddy textBuddy = new TextBuddy(fileName);
+        for (String option : _fileOptions) {
+            textBuddy.applyOption(option);
+        }
+        textBuddy.setOutput(_output);
+        textBuddy.loadData();
+        return textBuddy;
+    }
+
+    /**
+     * Drops the least recently used files, saving those with changes, until
+     * the loaded stores fit in the budget or only the file in use is left.
+     * The heap of each store is estimated as it is now, since a file can grow
+     * while it is in use.
+     */
+    private void evictIfNeeded() {
+        long totalBytes = 0;
+        for (TextBuddy textBuddy : _loadedFiles.values()) {
+            totalBytes += textBuddy.estimateStoreHeapBytes();
+        }
+        Iterator<Map.Entry<String, TextBuddy>> iterator = _loadedFiles.entrySet().iterator();
+        while (totalBytes > _maxBytes && iterator.hasNext()) {
+            Map.Entry<String, TextBuddy> entry = iterator.next();
+            if (entry.getKey().equals(_currentPath)) {
+                continue;
+            }
+            totalBytes -= entry.getValue().estimateStoreHeapBytes();
+            entry.getValue().close();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Saves every loaded file that has changes
+     */
+    void saveAll() {
+        for (TextBuddy textBuddy : _loadedFiles.values()) {
+            textBuddy.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class WorkspaceTest {
+    private String[] fileNames = { "workspaceTestA.txt", "workspaceTestB.txt" };
+
+    @After
+    public void deleteFiles() {
+        for (String fileName : fileNames) {
+            new File(fileName).delete();
+            new File(fileName + OperationLog.LOG_SUFFIX).delete();
+        }
+    }
+
+    @Test
+    public void switchFilesTest() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Workspace workspace = new Workspace(new OutputSink(bytes, StandardCharsets.UTF_8));
+        assertTrue(workspace.applyOption("--workspace-memory=0"));
+        assertTrue(workspace.applyOption("--store=packed"));
+        assertFalse(workspace.applyOption("--server=4000"));
+        assertFalse(workspace.applyOption("--store=tree"));
+
+        String input = "display\n" + "open workspaceTestA.txt\n" + "add apple\n"
+                + "open workspaceTestB.txt\n" + "add bean\n" + "add beet\n"
+                + "use workspaceTestC.txt\n" + "use ./workspaceTestA.txt\n" + "add avocado\n"
+                + "display\n";
+        workspace.runBatchProcess(new BufferedReader(new StringReader(input)));
+
+        String[] expected = { "No file in use, open one with \"open <file>\"",
+                "opened workspaceTestA.txt, 0 entries", "added to workspaceTestA.txt: \"apple\"",
+                "opened workspaceTestB.txt, 0 entries", "added to workspaceTestB.txt: \"bean\"",
+                "added to workspaceTestB.txt: \"beet\"", "workspaceTestC.txt is not open",
+                "using workspaceTestA.txt", "added to workspaceTestA.txt: \"avocado\"",
+                "1. apple", "2. avocado" };
+        String output = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList(expected),
+                Arrays.asList(output.split(System.lineSeparator())));
+
+        // with no memory to spare, B was saved and dropped when A was used
+        assertFalse(workspace.isLoaded("workspaceTestB.txt"));
+        assertEquals(Arrays.asList("bean", "beet"),
+                Files.readAllLines(Paths.get("workspaceTestB.txt")));
+        assertFalse(new File("workspaceTestB.txt" + OperationLog.LOG_SUFFIX).exists());
+        // the end of the input saves the files still loaded
+        assertEquals(Arrays.asList("apple", "avocado"),
+                Files.readAllLines(Paths.get("workspaceTestA.txt")));
+    }
+
+    @Test
+    public void cachedFilesTest() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Workspace workspace = new Workspace(new OutputSink(bytes, StandardCharsets.UTF_8));
+        workspace.open(fileNames[0]);
+        TextBuddy first = workspace.getCurrent();
+        workspace.open(fileNames[1]);
+        workspace.use(fileNames[0]);
+
+        // within the budget, the loaded file is used again as it is
+        assertSame(first, workspace.getCurrent());
+        assertTrue(workspace.isLoaded(fileNames[1]));
+    }
+
+    @Test
+    public void grownFileTest() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Workspace workspace = new Workspace(new OutputSink(bytes, StandardCharsets.UTF_8));
+        assertTrue(workspace.applyOption("--workspace-memory=1"));
+        workspace.open(fileNames[0]);
+        workspace.open(fileNames[1]);
+        workspace.use(fileNames[0]);
+        ArrayList<String> dataLines = new ArrayList<String>();
+        for (int i = 0; i < 30000; i++) {
+            dataLines.add("an entry long enough to take the file past the budget " + i);
+        }
+        workspace.getCurrent().addPendingEntries(new ArrayList<String>(dataLines));
+        assertTrue(workspace.isLoaded(fileNames[0]));
+
+        // the file grew after it was loaded, so it is measured again and dropped
+        // when another file that is still loaded is used
+        workspace.use(fileNames[1]);
+        assertFalse(workspace.isLoaded(fileNames[0]));
+        assertTrue(workspace.isLoaded(fileNames[1]));
+        assertEquals(dataLines, Files.readAllLines(Paths.get(fileNames[0])));
+    }
+}